@@ -0,0 +1,92 @@
+package com.rm5248.debianpbuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Adding the snapshot entry to debian/changelog.  The small changelog is
+ * about the size of a young package; the large one is a few MB, like the
+ * changelogs of long-lived packages such as glibc.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Fork( 1 )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+public class ChangelogUpdaterBenchmark {
+
+    @Param( { "20", "15000" } )
+    public int entries;
+
+    private Path m_directory;
+    private Path m_original;
+    private File m_changelog;
+    private DebianPbuilder.ChangelogUpdater m_updater;
+
+    @Setup
+    public void setup() throws IOException {
+        m_directory = Files.createTempDirectory( "changelog-benchmark" );
+        m_original = m_directory.resolve( "changelog.orig" );
+        m_changelog = m_directory.resolve( "changelog" ).toFile();
+        m_updater = new DebianPbuilder.ChangelogUpdater( "hello", "2.10-3+020260101120000.git3f9a1c2.1234",
+                "jenkins@build01.example.org" );
+
+        try( Writer w = Files.newBufferedWriter( m_original, StandardCharsets.UTF_8 ) ){
+            for( int x = entries; x > 0; x-- ){
+                writeEntry( w, x );
+            }
+        }
+    }
+
+    /**
+     * Every invocation prepends an entry, so start from the original each time
+     */
+    @Setup( Level.Invocation )
+    public void resetChangelog() throws IOException {
+        Files.copy( m_original, m_changelog.toPath(), StandardCopyOption.REPLACE_EXISTING );
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists( m_changelog.toPath() );
+        Files.deleteIfExists( m_original );
+        Files.deleteIfExists( m_directory );
+    }
+
+    @Benchmark
+    public Void updateChangelog() throws IOException, InterruptedException {
+        return m_updater.invoke( m_changelog, null );
+    }
+
+    private static void writeEntry( Writer w, int number ) throws IOException {
+        w.write( "hello (2." + (number / 10) + "-" + (number % 10 + 1) + ") unstable; urgency=medium\n" );
+        w.write( "\n" );
+        w.write( "  * New upstream release " + number + ".\n" );
+        w.write( "  * debian/control: Bump Standards-Version to 4.6.2, no changes needed.\n" );
+        w.write( "  * debian/patches: Refresh 0001-fix-build-with-gcc-13.patch.\n" );
+        w.write( "  * Update Vcs-* fields to point at salsa.debian.org.\n" );
+        w.write( "\n" );
+        w.write( " -- Jane Maintainer <jane@example.org>  Mon, 01 Jan 2024 12:00:00 +0000\n" );
+        w.write( "\n" );
+    }
+}
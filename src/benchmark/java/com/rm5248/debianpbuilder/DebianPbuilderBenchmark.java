@@ -0,0 +1,73 @@
+package com.rm5248.debianpbuilder;
+
+import hudson.FilePath;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The checks that the build step does on every build: the type of the
+ * package, and which distribution it is being built for.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Fork( 1 )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+public class DebianPbuilderBenchmark {
+
+    @Param( { "bookworm", "noble", "not-a-distribution" } )
+    public String distribution;
+
+    private Path m_workspace;
+    private FilePath m_workspacePath;
+    private DebianPbuilder m_builder;
+
+    @Setup
+    public void setup() throws IOException {
+        m_workspace = Files.createTempDirectory( "pbuilder-benchmark" );
+        Path format = m_workspace.resolve( "source/debian/source/format" );
+        Files.createDirectories( format.getParent() );
+        Files.write( format, "3.0 (quilt)\n".getBytes( StandardCharsets.UTF_8 ) );
+        m_workspacePath = new FilePath( m_workspace.toFile() );
+
+        m_builder = new DebianPbuilder();
+        m_builder.setDistribution( distribution );
+        m_builder.setDebianDirLocation( "source" );
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, InterruptedException {
+        m_workspacePath.deleteRecursive();
+    }
+
+    @Benchmark
+    public Object getPackageType() throws IOException, InterruptedException {
+        return m_builder.getPackageType( m_workspacePath );
+    }
+
+    @Benchmark
+    public boolean isDebianDistribution(){
+        return m_builder.isDebianDistribution();
+    }
+
+    @Benchmark
+    public boolean isUbuntuDistribution(){
+        return m_builder.isUbuntuDistribution();
+    }
+}
@@ -0,0 +1,51 @@
+package com.rm5248.debianpbuilder;
+
+import hudson.EnvVars;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Formatting the snapshot version, with the default format and a few that
+ * people use.
+ *
+ * Run with -Dbenchmark.args="PackageVersionFormatter -prof gc" to see how
+ * much is allocated; this should only be the resulting string.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Fork( 1 )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+public class PackageVersionFormatterBenchmark {
+
+    @Param( { "YYYYMMddHHmmss.%rev%.%build%", "%build%", "YYYYMMdd+%rev%",
+        "%utc%.%branch%.%shortcommit%", "%epoch%+%commit%" } )
+    public String format;
+
+    private EnvVars m_envVars;
+
+    @Setup
+    public void setup(){
+        m_envVars = new EnvVars();
+        m_envVars.put( "GIT_COMMIT", "3f9a1c2b7d4e5f60718293a4b5c6d7e8f9012345" );
+        m_envVars.put( "GIT_BRANCH", "origin/master" );
+        m_envVars.put( "BUILD_NUMBER", "1234" );
+        m_envVars.put( "JOB_NAME", "hello-debian" );
+    }
+
+    @Benchmark
+    public String formatPackageVersion(){
+        return PackageVersionFormatter.formatPackageVersion( format, m_envVars, 1234 );
+    }
+}
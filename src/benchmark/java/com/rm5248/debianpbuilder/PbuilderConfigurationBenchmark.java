@@ -0,0 +1,61 @@
+package com.rm5248.debianpbuilder;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Generating the pbuilderrc, with the settings that a build with all of the
+ * caches turned on would have.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Fork( 1 )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+public class PbuilderConfigurationBenchmark {
+
+    private PbuilderConfiguration m_config;
+
+    @Setup
+    public void setup(){
+        m_config = new PbuilderConfiguration();
+        m_config.setNetwork( true );
+        m_config.setMirrorSite( "http://deb.debian.org/debian" );
+        m_config.setDebootstrapOpts( "--keyring", "/usr/share/keyrings/debian-archive-keyring.gpg" );
+        m_config.setUseEatMyData( true );
+        m_config.setExtraPackages( "ca-certificates apt-transport-https lintian" );
+        m_config.setAdditionalBuildResults( "../*.buildinfo", "../*.build" );
+        m_config.setComponents( "main contrib non-free" );
+        m_config.setSatisfyDependsCommand( PbuilderConfiguration.SatisfyDependsResolver.APT );
+        m_config.setOtherMirror( "deb http://deb.debian.org/debian bookworm-updates main"
+                + "|deb http://security.debian.org/debian-security bookworm-security main" );
+        m_config.setBuildArch( "amd64" );
+        m_config.setBindMounts( "/var/cache/debian-pbuilder/ccache/hello-amd64" );
+        m_config.setAptCache( "/var/cache/debian-pbuilder/aptcache/bookworm-amd64" );
+        m_config.setAptCacheHardlink( true );
+        m_config.addExport( "CCACHE_DIR", "/var/cache/debian-pbuilder/ccache/hello-amd64" );
+        m_config.addExport( "CCACHE_UMASK", "000" );
+        m_config.addExport( "PATH", "/usr/lib/ccache:$PATH" );
+    }
+
+    @Benchmark
+    public String toConfigFileString(){
+        return m_config.toConfigFileString();
+    }
+
+    @Benchmark
+    public String copyAndToConfigFileString(){
+        // What each architecture of a build does
+        return new PbuilderConfiguration( m_config ).toConfigFileString();
+    }
+}
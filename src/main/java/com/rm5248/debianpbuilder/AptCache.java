@@ -0,0 +1,243 @@
+package com.rm5248.debianpbuilder;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import org.jenkinsci.remoting.RoleChecker;
+
+/**
+ * An apt archive cache for one distribution and architecture on a node.
+ *
+ * The cache lives in the root directory of the node, and is given to pbuilder
+ * as APTCACHE so that packages that were downloaded by one build are reused
+ * by the next one.  It is also bind mounted into the chroot, so that the hooks
+ * that we generate can mark the packages that a build installs as used and
+ * count how many of them came from the cache.  Once a build is done, the least
+ * recently used packages are removed until the cache is below its maximum size.
+ */
+final class AptCache {
+
+    private static final String SNAPSHOT_HOOK = "D90debian-pbuilder-aptcache";
+    private static final String REPORT_HOOK = "A90debian-pbuilder-aptcache";
+    private static final String DEFAULT_BUILDPLACE = "/var/cache/pbuilder/build";
+
+    // dpkg-query prints the same name as the .deb that apt downloads, except
+    // for the epoch separator which apt escapes
+    private static final String LIST_INSTALLED =
+            "dpkg-query -W -f '${Package}_${Version}_${Architecture}.deb\\n' | sed 's/:/%3a/g' | sort";
+    // The packages in the cache, as the chroot sees them through the bind mount
+    private static final String LIST_CACHED =
+            "find \"$cache\" -maxdepth 1 -name '*.deb' -printf '%f\\n' | sort";
+
+    private final FilePath m_directory;
+    private final long m_maxSizeMb;
+
+    private AptCache( FilePath directory, long maxSizeMb ){
+        m_directory = directory;
+        m_maxSizeMb = maxSizeMb;
+    }
+
+    /**
+     * Get the cache for the node that the workspace is on.
+     *
+     * @return The cache, or null if the node has no root directory
+     */
+    static AptCache forNode( FilePath workspace, String distribution, String arch, int maxSizeMb ){
+        FilePath caches = NodeDirectories.get( workspace, "aptcache" );
+
+        if( caches == null ){
+            return null;
+        }
+
+        return new AptCache( caches.child( distribution + "-" + arch ), maxSizeMb );
+    }
+
+    String getPath(){
+        return m_directory.getRemote();
+    }
+
+    /**
+     * Set up the pbuilder configuration and hooks to use this cache.
+     */
+    void apply( PbuilderConfiguration config, HookDirectory hooks ) throws IOException, InterruptedException {
+        String buildPlace = config.getBuildPlace();
+        if( buildPlace == null ){
+            buildPlace = DEFAULT_BUILDPLACE;
+        }
+
+        boolean sameFilesystem = m_directory.act( new Prepare( buildPlace ) );
+
+        config.setAptCache( getPath() );
+        // Hard linking is much faster than copying the whole cache into the
+        // chroot, but only works if the cache is on the same filesystem
+        config.setAptCacheHardlink( sameFilesystem );
+        config.addBindMount( getPath() );
+
+        hooks.addHook( SNAPSHOT_HOOK, String.join( "\n",
+                "#!/bin/sh",
+                "# Generated by the Jenkins debian-pbuilder plugin",
+                "# Remember what is installed and cached before the build dependencies are",
+                "# installed, since pbuilder copies what it downloads into the cache",
+                "# before the A hooks run",
+                "cache='" + getPath() + "'",
+                LIST_INSTALLED + " > /tmp/debian-pbuilder-installed",
+                LIST_CACHED + " > /tmp/debian-pbuilder-cached",
+                "" ) );
+        hooks.addHook( REPORT_HOOK, String.join( "\n",
+                "#!/bin/sh",
+                "# Generated by the Jenkins debian-pbuilder plugin",
+                "# Mark the cached packages that the build dependencies used and count them",
+                "cache='" + getPath() + "'",
+                "[ -f /tmp/debian-pbuilder-installed ] && [ -f /tmp/debian-pbuilder-cached ] || exit 0",
+                "hits=0",
+                "misses=0",
+                LIST_INSTALLED + " > /tmp/debian-pbuilder-installed.after",
+                "for deb in $(comm -13 /tmp/debian-pbuilder-installed /tmp/debian-pbuilder-installed.after); do",
+                "    touch -a -c \"$cache/$deb\"",
+                "    if grep -qxF \"$deb\" /tmp/debian-pbuilder-cached; then",
+                "        hits=$((hits + 1))",
+                "    else",
+                "        misses=$((misses + 1))",
+                "    fi",
+                "done",
+                "echo \"apt cache $cache: $hits hits, $misses misses\"",
+                "" ) );
+    }
+
+    /**
+     * Remove the least recently used packages until the cache is no bigger
+     * than its maximum size.
+     */
+    void evict( PrintStream logger ) throws IOException, InterruptedException {
+        EvictionResult result = m_directory.act( new Evict( m_maxSizeMb * 1024 * 1024 ) );
+
+        logger.println( "apt cache " + getPath() + ": " + result.m_remainingFiles + " packages, "
+                + toMb( result.m_remainingBytes ) + " MB(maximum " + m_maxSizeMb + " MB)" );
+        if( result.m_removedFiles > 0 ){
+            logger.println( "Removed " + result.m_removedFiles + " least recently used packages("
+                    + toMb( result.m_removedBytes ) + " MB) from the apt cache" );
+        }
+    }
+
+    private static long toMb( long bytes ){
+        return bytes / ( 1024 * 1024 );
+    }
+
+    /**
+     * Creates the cache directory, and checks if it is on the same filesystem
+     * as the build place.
+     */
+    private static final class Prepare implements FilePath.FileCallable<Boolean> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String m_buildPlace;
+
+        Prepare( String buildPlace ){
+            m_buildPlace = buildPlace;
+        }
+
+        @Override
+        public Boolean invoke( File f, VirtualChannel channel ) throws IOException, InterruptedException {
+            Files.createDirectories( f.toPath() );
+
+            // The build place itself may not exist until pbuilder creates it
+            Path buildPlace = new File( m_buildPlace ).toPath();
+            while( buildPlace != null && !Files.exists( buildPlace ) ){
+                buildPlace = buildPlace.getParent();
+            }
+
+            if( buildPlace == null ){
+                return false;
+            }
+
+            try{
+                return Objects.equals( Files.getAttribute( f.toPath(), "unix:dev" ),
+                        Files.getAttribute( buildPlace, "unix:dev" ) );
+            }catch( UnsupportedOperationException | IllegalArgumentException ex ){
+                return false;
+            }
+        }
+
+        @Override
+        public void checkRoles( RoleChecker checker ) throws SecurityException {}
+    }
+
+    private static final class EvictionResult implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private int m_remainingFiles;
+        private long m_remainingBytes;
+        private int m_removedFiles;
+        private long m_removedBytes;
+    }
+
+    private static final class Evict implements FilePath.FileCallable<EvictionResult> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long m_maxBytes;
+
+        Evict( long maxBytes ){
+            m_maxBytes = maxBytes;
+        }
+
+        @Override
+        public EvictionResult invoke( File f, VirtualChannel channel ) throws IOException, InterruptedException {
+            EvictionResult result = new EvictionResult();
+            List<Path> packages = new ArrayList<>();
+            List<BasicFileAttributes> attributes = new ArrayList<>();
+
+            if( !f.isDirectory() ){
+                return result;
+            }
+
+            try( DirectoryStream<Path> stream = Files.newDirectoryStream( f.toPath(), "*.deb" ) ){
+                for( Path deb : stream ){
+                    BasicFileAttributes attrs = Files.readAttributes( deb, BasicFileAttributes.class );
+                    packages.add( deb );
+                    attributes.add( attrs );
+                    result.m_remainingFiles++;
+                    result.m_remainingBytes += attrs.size();
+                }
+            }
+
+            List<Integer> order = new ArrayList<>();
+            for( int x = 0; x < packages.size(); x++ ){
+                order.add( x );
+            }
+            order.sort( Comparator.comparing( x -> attributes.get( x ).lastAccessTime() ) );
+
+            for( int x : order ){
+                if( result.m_remainingBytes <= m_maxBytes ){
+                    break;
+                }
+
+                long size = attributes.get( x ).size();
+                if( Files.deleteIfExists( packages.get( x ) ) ){
+                    result.m_removedFiles++;
+                    result.m_removedBytes += size;
+                }
+                result.m_remainingFiles--;
+                result.m_remainingBytes -= size;
+            }
+
+            return result;
+        }
+
+        @Override
+        public void checkRoles( RoleChecker checker ) throws SecurityException {}
+    }
+}
@@ -0,0 +1,372 @@
+package com.rm5248.debianpbuilder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import jenkins.security.MasterToSlaveCallable;
+
+/**
+ * A small caching HTTP proxy for apt mirrors that runs on a node.
+ *
+ * Requests are made to http://127.0.0.1:port/&lt;scheme&gt;/&lt;host&gt;/&lt;path&gt;,
+ * which is fetched from &lt;scheme&gt;://&lt;host&gt;/&lt;path&gt;.  Packages and source
+ * files never change once they are in the archive, so they are served from
+ * the cache without asking the mirror again.  Everything else(Release files,
+ * package indexes) is revalidated with the mirror on every request, and the
+ * cached copy is only used if it has not changed or the mirror can't be reached.
+ *
+ * The cache is kept on disk, and once it gets bigger than its maximum size
+ * the least recently used files are removed.
+ */
+final class AptProxy {
+    private static final Logger LOGGER = Logger.getLogger( AptProxy.class.getName() );
+
+    private static final Pattern IMMUTABLE_PATTERN = Pattern.compile(
+            "(\\.u?deb|\\.dsc|\\.tar\\.[a-z0-9]+|\\.diff\\.gz)$|/by-hash/" );
+    private static final Pattern URL_PATTERN = Pattern.compile( "\\b(https?)://" );
+    private static final Pattern REWRITTEN_PATTERN = Pattern.compile( "http://127\\.0\\.0\\.1:[0-9]+/https?/" );
+
+    private static AptProxy s_instance;
+
+    private final HttpServer m_server;
+    private final ExecutorService m_executor;
+    private final Path m_cacheDir;
+    private final AtomicLong m_cacheSize;
+    private volatile long m_maxBytes;
+
+    AptProxy( int port, Path cacheDir, long maxBytes ) throws IOException {
+        m_cacheDir = cacheDir;
+        m_maxBytes = maxBytes;
+        m_cacheSize = new AtomicLong();
+
+        Files.createDirectories( m_cacheDir );
+        try( Stream<Path> files = Files.walk( m_cacheDir ) ){
+            m_cacheSize.set( files.filter( Files::isRegularFile )
+                    .mapToLong( p -> p.toFile().length() )
+                    .sum() );
+        }
+
+        m_server = HttpServer.create( new InetSocketAddress( InetAddress.getLoopbackAddress(), port ), 0 );
+        m_executor = Executors.newCachedThreadPool( r -> {
+            Thread t = new Thread( r, "debian-pbuilder apt proxy" );
+            t.setDaemon( true );
+            return t;
+        } );
+        m_server.setExecutor( m_executor );
+        m_server.createContext( "/", this::handle );
+        m_server.start();
+    }
+
+    int getPort(){
+        return m_server.getAddress().getPort();
+    }
+
+    void setMaxBytes( long maxBytes ){
+        m_maxBytes = maxBytes;
+    }
+
+    void stop(){
+        m_server.stop( 0 );
+        m_executor.shutdownNow();
+    }
+
+    /**
+     * Rewrite all of the http and https URLs in the given string(a mirror site,
+     * or an other mirror setting) to go through the proxy on the given port.
+     */
+    static String rewrite( String mirrors, int port ){
+        if( mirrors == null ){
+            return null;
+        }
+
+        return URL_PATTERN.matcher( mirrors ).replaceAll( "http://127.0.0.1:" + port + "/$1/" );
+    }
+
+    /**
+     * Check if the given string has any URLs that go through the proxy.
+     */
+    static boolean isRewritten( String mirrors ){
+        return mirrors != null && REWRITTEN_PATTERN.matcher( mirrors ).find();
+    }
+
+    /**
+     * Make sure that the proxy is running on the node that this is called on.
+     * Returns the port that it is running on.
+     */
+    static final class Start extends MasterToSlaveCallable<Integer,IOException> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int m_port;
+        private final String m_cacheDir;
+        private final long m_maxBytes;
+
+        Start( int port, String cacheDir, long maxBytes ){
+            m_port = port;
+            m_cacheDir = cacheDir;
+            m_maxBytes = maxBytes;
+        }
+
+        @Override
+        public Integer call() throws IOException {
+            synchronized( AptProxy.class ){
+                if( s_instance != null &&
+                        s_instance.getPort() == m_port &&
+                        s_instance.m_cacheDir.equals( Paths.get( m_cacheDir ) ) ){
+                    s_instance.setMaxBytes( m_maxBytes );
+                    return m_port;
+                }
+
+                if( s_instance != null ){
+                    s_instance.stop();
+                    s_instance = null;
+                }
+
+                s_instance = new AptProxy( m_port, Paths.get( m_cacheDir ), m_maxBytes );
+                LOGGER.info( "Started apt proxy on port " + m_port + " caching in " + m_cacheDir );
+                return s_instance.getPort();
+            }
+        }
+    }
+
+    private void handle( HttpExchange exchange ) throws IOException {
+        try{
+            String method = exchange.getRequestMethod();
+            if( !method.equals( "GET" ) && !method.equals( "HEAD" ) ){
+                exchange.sendResponseHeaders( 405, -1 );
+                return;
+            }
+
+            String[] parts = exchange.getRequestURI().getRawPath().split( "/", 4 );
+            if( parts.length != 4 ||
+                    !(parts[ 1 ].equals( "http" ) || parts[ 1 ].equals( "https" )) ||
+                    parts[ 2 ].isEmpty() ||
+                    parts[ 3 ].contains( ".." ) ){
+                exchange.sendResponseHeaders( 400, -1 );
+                return;
+            }
+
+            String upstream = parts[ 1 ] + "://" + parts[ 2 ] + "/" + parts[ 3 ];
+            Path cached = m_cacheDir.resolve( parts[ 1 ] )
+                    .resolve( parts[ 2 ].replace( ':', '_' ) )
+                    .resolve( parts[ 3 ] )
+                    .normalize();
+            if( !cached.startsWith( m_cacheDir ) || parts[ 3 ].endsWith( "/" ) ){
+                exchange.sendResponseHeaders( 400, -1 );
+                return;
+            }
+
+            int status = fetch( upstream, cached );
+            if( status == 200 && !serve( exchange, cached, method.equals( "HEAD" ) ) ){
+                // Evicted between being fetched and being served
+                status = fetch( upstream, cached );
+                if( status == 200 && !serve( exchange, cached, method.equals( "HEAD" ) ) ){
+                    status = 503;
+                }
+            }
+
+            if( status != 200 ){
+                exchange.sendResponseHeaders( status, -1 );
+            }
+        }catch( IOException ex ){
+            LOGGER.log( Level.FINE, "Unable to handle " + exchange.getRequestURI(), ex );
+            exchange.sendResponseHeaders( 502, -1 );
+        }finally{
+            exchange.close();
+        }
+    }
+
+    /**
+     * Make sure that the cached copy of the given URL is up to date.
+     *
+     * @return The HTTP status to give to the client; 200 if the cached file
+     * can be served
+     */
+    private int fetch( String upstream, Path cached ) throws IOException {
+        boolean haveCached = Files.isRegularFile( cached );
+
+        if( haveCached && IMMUTABLE_PATTERN.matcher( upstream ).find() ){
+            return 200;
+        }
+
+        HttpURLConnection conn;
+        int status;
+        try{
+            conn = (HttpURLConnection)new URL( upstream ).openConnection();
+            conn.setConnectTimeout( (int)TimeUnit.SECONDS.toMillis( 30 ) );
+            conn.setReadTimeout( (int)TimeUnit.SECONDS.toMillis( 60 ) );
+            conn.setUseCaches( false );
+            if( haveCached ){
+                conn.setIfModifiedSince( Files.getLastModifiedTime( cached ).toMillis() );
+            }
+            status = conn.getResponseCode();
+        }catch( IOException ex ){
+            if( haveCached ){
+                LOGGER.log( Level.FINE, "Unable to revalidate " + upstream + ", using cached copy", ex );
+                return 200;
+            }
+            throw ex;
+        }
+
+        try{
+            if( status == HttpURLConnection.HTTP_NOT_MODIFIED && haveCached ){
+                return 200;
+            }
+
+            if( status != HttpURLConnection.HTTP_OK ){
+                return status;
+            }
+
+            store( conn, cached );
+            return 200;
+        }finally{
+            conn.disconnect();
+        }
+    }
+
+    private void store( HttpURLConnection conn, Path cached ) throws IOException {
+        Files.createDirectories( cached.getParent() );
+
+        long oldSize = Files.isRegularFile( cached ) ? Files.size( cached ) : 0;
+        Path tmp = Files.createTempFile( cached.getParent(), ".download", ".tmp" );
+        try{
+            try( InputStream is = conn.getInputStream() ){
+                Files.copy( is, tmp, StandardCopyOption.REPLACE_EXISTING );
+            }
+
+            long lastModified = conn.getLastModified();
+            if( lastModified > 0 ){
+                Files.setLastModifiedTime( tmp, FileTime.fromMillis( lastModified ) );
+            }
+
+            long newSize = Files.size( tmp );
+            Files.move( tmp, cached, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+            m_cacheSize.addAndGet( newSize - oldSize );
+        }finally{
+            Files.deleteIfExists( tmp );
+        }
+
+        if( m_cacheSize.get() > m_maxBytes ){
+            evict();
+        }
+    }
+
+    /**
+     * Send the cached file to the client.  The file can be replaced by a
+     * revalidation or removed by an eviction at any time, so it is opened
+     * once and the length and contents are both taken from the open file.
+     *
+     * @return False if the file was removed before it could be opened
+     */
+    private boolean serve( HttpExchange exchange, Path cached, boolean headOnly ) throws IOException {
+        SimpleDateFormat format = new SimpleDateFormat( "EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US );
+        format.setTimeZone( TimeZone.getTimeZone( "GMT" ) );
+
+        FileChannel channel;
+        try{
+            channel = FileChannel.open( cached, StandardOpenOption.READ );
+        }catch( NoSuchFileException ex ){
+            return false;
+        }
+
+        try( FileChannel file = channel ){
+            long length = file.size();
+            long lastModified;
+            try{
+                // If the file was replaced since it was opened this is the
+                // time of the newer copy, which only makes apt ask again sooner
+                lastModified = Files.getLastModifiedTime( cached ).toMillis();
+                // Remember when this was last used for evicting
+                Files.setAttribute( cached, "lastAccessTime", FileTime.fromMillis( System.currentTimeMillis() ) );
+            }catch( NoSuchFileException ex ){
+                lastModified = System.currentTimeMillis();
+            }
+
+            exchange.getResponseHeaders().set( "Content-Type", "application/octet-stream" );
+            exchange.getResponseHeaders().set( "Last-Modified", format.format( new Date( lastModified ) ) );
+
+            if( headOnly ){
+                exchange.getResponseHeaders().set( "Content-Length", Long.toString( length ) );
+                exchange.sendResponseHeaders( 200, -1 );
+                return true;
+            }
+
+            exchange.sendResponseHeaders( 200, length == 0 ? -1 : length );
+            try( OutputStream os = exchange.getResponseBody() ){
+                Channels.newInputStream( file ).transferTo( os );
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Remove the least recently used files until the cache is under its
+     * maximum size.
+     */
+    private synchronized void evict() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try( Stream<Path> walk = Files.walk( m_cacheDir ) ){
+            walk.filter( p -> Files.isRegularFile( p ) && !p.getFileName().toString().endsWith( ".tmp" ) )
+                    .forEach( files::add );
+        }
+
+        List<BasicFileAttributes> attributes = new ArrayList<>();
+        long total = 0;
+        for( Path file : files ){
+            BasicFileAttributes attrs = Files.readAttributes( file, BasicFileAttributes.class );
+            attributes.add( attrs );
+            total += attrs.size();
+        }
+
+        List<Integer> order = new ArrayList<>();
+        for( int x = 0; x < files.size(); x++ ){
+            order.add( x );
+        }
+        order.sort( Comparator.comparing( x -> attributes.get( x ).lastAccessTime() ) );
+
+        for( int x : order ){
+            if( total <= m_maxBytes ){
+                break;
+            }
+
+            if( Files.deleteIfExists( files.get( x ) ) ){
+                LOGGER.fine( "Removed " + files.get( x ) + " from the apt proxy cache" );
+            }
+            total -= attributes.get( x ).size();
+        }
+
+        m_cacheSize.set( total );
+    }
+}
@@ -0,0 +1,458 @@
+package com.rm5248.debianpbuilder;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.remoting.VirtualChannel;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import org.jenkinsci.remoting.RoleChecker;
+
+/**
+ * A content-addressed store of build artifacts on the controller.
+ *
+ * The files are hashed on the agent, and only the files that are not in the
+ * store yet are copied to the controller.  Each artifact of a build is a
+ * hard link to the file in the store, so the link count of a file in the
+ * store is the number of builds using it(plus one for the store itself).
+ * When a build is deleted, the files that no other build links to any more
+ * are removed from the store.
+ *
+ * Each build that was archived this way has a manifest in its directory
+ * listing the hash and path of every artifact.  The store keeps a list of
+ * the manifests, since the artifacts of a build may also be deleted without
+ * deleting the build(by a build discarder that only keeps the artifacts of
+ * the last few builds), which we are not told about.  A periodic sweep drops
+ * the manifests of builds whose artifacts are gone, and removes the files
+ * that nothing links to any more.
+ */
+final class ArtifactStore {
+    private static final Logger LOGGER = Logger.getLogger( ArtifactStore.class.getName() );
+
+    static final String MANIFEST = "debian-pbuilder-artifacts.txt";
+
+    // The list of manifests, with the artifacts directory of each build
+    private static final String BUILDS = "builds.txt";
+
+    // Linking a file and removing unused files must not happen at the same time
+    private static final Object LOCK = new Object();
+
+    // Files that have been added to the store, but not linked to yet, with
+    // how many builds are going to link to them
+    private static final Map<Path,Integer> PENDING = new HashMap<>();
+
+    private final Path m_root;
+
+    ArtifactStore( Path root ){
+        m_root = root;
+    }
+
+    static ArtifactStore get(){
+        return new ArtifactStore( Jenkins.get().getRootDir().toPath()
+                .resolve( "debian-pbuilder" )
+                .resolve( "artifact-store" ) );
+    }
+
+    private Path getPath( String hash ){
+        return m_root.resolve( hash.substring( 0, 2 ) ).resolve( hash );
+    }
+
+    /**
+     * Archive files into the artifacts directory of a build.
+     *
+     * @param artifactsDir The artifacts directory of the build
+     * @param manifest Where to write the manifest of the build
+     * @param base The directory on the agent that the files are in
+     * @param files The paths of the files to archive, relative to base
+     * @param transfer How to copy the files that are not in the store yet
+     * to the controller, or null to copy them one at a time
+     */
+    void archive( Path artifactsDir, Path manifest, FilePath base, List<String> files,
+            ResultTransfer transfer, PrintStream logger ) throws IOException, InterruptedException {
+        Map<String,String> hashes = base.act( new HashFiles( files ) );
+        Map<String,String> missing = new LinkedHashMap<>();
+        long transferred = 0;
+        long deduplicated = 0;
+
+        for( Map.Entry<String,String> file : hashes.entrySet() ){
+            Path artifact = getArtifactPath( artifactsDir, file.getKey() );
+            Files.createDirectories( artifact.getParent() );
+            Files.deleteIfExists( artifact );
+
+            if( link( getPath( file.getValue() ), artifact ) ){
+                deduplicated += Files.size( artifact );
+            }else{
+                missing.put( file.getKey(), file.getValue() );
+            }
+        }
+
+        List<Path> added = new ArrayList<>();
+        boolean linked = false;
+        try{
+            if( transfer != null && !missing.isEmpty() ){
+                Files.createDirectories( m_root );
+                Path staging = Files.createTempDirectory( m_root, ".staging" );
+                try{
+                    transfer.transfer( base, new FilePath( staging.toFile() ), new ArrayList<>( missing.keySet() ) );
+                    for( Map.Entry<String,String> file : missing.entrySet() ){
+                        transferred += addToStore( staging.resolve( file.getKey() ), file.getValue(), file.getKey(),
+                                added );
+                    }
+                }finally{
+                    new FilePath( staging.toFile() ).deleteRecursive();
+                }
+            }else{
+                for( Map.Entry<String,String> file : missing.entrySet() ){
+                    transferred += fetch( base.child( file.getKey() ), file.getValue(), added );
+                }
+            }
+
+            for( Map.Entry<String,String> file : missing.entrySet() ){
+                Path stored = getPath( file.getValue() );
+                if( !link( stored, getArtifactPath( artifactsDir, file.getKey() ) ) ){
+                    throw new IOException( stored + " was removed from the artifact store" );
+                }
+            }
+            linked = true;
+        }finally{
+            synchronized( LOCK ){
+                for( Path stored : added ){
+                    PENDING.computeIfPresent( stored, ( path, count ) -> count == 1 ? null : count - 1 );
+                }
+                if( !linked ){
+                    // Don't leave behind the files that no build got linked to
+                    for( Path stored : added ){
+                        removeIfUnused( stored );
+                    }
+                }
+            }
+        }
+        int newFiles = missing.size();
+
+        Files.createDirectories( manifest.getParent() );
+        try( Writer w = Files.newBufferedWriter( manifest, StandardCharsets.UTF_8 ) ){
+            for( Map.Entry<String,String> file : hashes.entrySet() ){
+                w.write( file.getValue() + " " + file.getKey() + "\n" );
+            }
+        }
+        register( artifactsDir, manifest );
+
+        logger.println( "Archived " + hashes.size() + " files(" + newFiles + " new, "
+                + (transferred / 1024) + " KiB transferred, "
+                + (deduplicated / 1024) + " KiB already in the artifact store)" );
+    }
+
+    /**
+     * Remove the files that a build used from the store, if no other build
+     * uses them.
+     *
+     * @param artifactsDir The artifacts directory of the build
+     * @param manifest The manifest of the build
+     */
+    void release( Path artifactsDir, Path manifest ) throws IOException {
+        if( !Files.exists( manifest ) ){
+            return;
+        }
+
+        List<String[]> entries = readManifest( manifest );
+
+        synchronized( LOCK ){
+            for( String[] entry : entries ){
+                Path artifact = artifactsDir.resolve( entry[ 1 ] ).normalize();
+                if( artifact.startsWith( artifactsDir ) ){
+                    Files.deleteIfExists( artifact );
+                }
+
+                removeIfUnused( getPath( entry[ 0 ] ) );
+            }
+        }
+
+        Files.deleteIfExists( manifest );
+    }
+
+    /**
+     * Drop the manifests of builds whose artifacts have been deleted, and
+     * remove the files that no build links to from the store.
+     *
+     * @return The number of files removed from the store
+     */
+    int sweep() throws IOException {
+        synchronized( LOCK ){
+            Path builds = m_root.resolve( BUILDS );
+            if( Files.exists( builds ) ){
+                List<String> kept = new ArrayList<>();
+                for( String line : Files.readAllLines( builds, StandardCharsets.UTF_8 ) ){
+                    String[] build = line.split( "\t", 2 );
+                    if( build.length == 2 && !isArtifactsGone( Paths.get( build[ 0 ] ), Paths.get( build[ 1 ] ) ) ){
+                        kept.add( line );
+                    }
+                }
+                Files.write( builds, kept, StandardCharsets.UTF_8 );
+            }
+
+            int removed = 0;
+            if( !Files.isDirectory( m_root ) ){
+                return removed;
+            }
+            try( DirectoryStream<Path> prefixes = Files.newDirectoryStream( m_root, "[0-9a-f][0-9a-f]" ) ){
+                for( Path prefix : prefixes ){
+                    try( DirectoryStream<Path> stored = Files.newDirectoryStream( prefix ) ){
+                        for( Path file : stored ){
+                            if( !PENDING.containsKey( file ) && removeIfUnused( file ) ){
+                                removed++;
+                            }
+                        }
+                    }
+                }
+            }
+
+            return removed;
+        }
+    }
+
+    /**
+     * Check whether none of the artifacts in a manifest are left, in which
+     * case the manifest is removed.
+     */
+    private static boolean isArtifactsGone( Path artifactsDir, Path manifest ) throws IOException {
+        if( !Files.exists( manifest ) ){
+            return true;
+        }
+
+        for( String[] entry : readManifest( manifest ) ){
+            if( Files.exists( artifactsDir.resolve( entry[ 1 ] ) ) ){
+                return false;
+            }
+        }
+
+        Files.delete( manifest );
+        return true;
+    }
+
+    private static List<String[]> readManifest( Path manifest ) throws IOException {
+        List<String[]> entries = new ArrayList<>();
+        try( BufferedReader reader = Files.newBufferedReader( manifest, StandardCharsets.UTF_8 ) ){
+            String line;
+            while( (line = reader.readLine()) != null ){
+                String[] entry = line.split( " ", 2 );
+                if( entry.length == 2 && entry[ 0 ].matches( "[0-9a-f]{64}" ) ){
+                    entries.add( entry );
+                }
+            }
+        }
+
+        return entries;
+    }
+
+    /**
+     * Add a manifest to the list that the sweep checks.
+     */
+    private void register( Path artifactsDir, Path manifest ) throws IOException {
+        String line = artifactsDir.toAbsolutePath() + "\t" + manifest.toAbsolutePath() + "\n";
+        synchronized( LOCK ){
+            Files.createDirectories( m_root );
+            Files.write( m_root.resolve( BUILDS ), line.getBytes( StandardCharsets.UTF_8 ),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND );
+        }
+    }
+
+    /**
+     * Remove a file from the store if no build links to it.  Must be called
+     * with the lock held.
+     *
+     * @return True if the file was removed
+     */
+    private static boolean removeIfUnused( Path stored ) throws IOException {
+        try{
+            int links = (Integer)Files.getAttribute( stored, "unix:nlink" );
+            if( links <= 1 ){
+                Files.delete( stored );
+                LOGGER.fine( "Removed " + stored + " from the artifact store" );
+                return true;
+            }
+        }catch( NoSuchFileException ex ){
+            // Already removed
+        }catch( UnsupportedOperationException | IllegalArgumentException ex ){
+            // No link count on this filesystem, so we don't know if it is used
+            LOGGER.log( Level.FINE, "Unable to get the link count of " + stored, ex );
+        }
+
+        return false;
+    }
+
+    private static Path getArtifactPath( Path artifactsDir, String file ) throws IOException {
+        Path artifact = artifactsDir.resolve( file ).normalize();
+        if( !artifact.startsWith( artifactsDir ) ){
+            throw new IOException( "Artifact " + file + " is outside of the artifacts directory" );
+        }
+
+        return artifact;
+    }
+
+    /**
+     * Copy a file from the agent into the store.
+     *
+     * @return The number of bytes copied
+     */
+    private long fetch( FilePath source, String hash, List<Path> added ) throws IOException, InterruptedException {
+        Files.createDirectories( m_root );
+        Path tmp = Files.createTempFile( m_root, ".fetch", ".tmp" );
+
+        try{
+            try( OutputStream os = Files.newOutputStream( tmp ) ){
+                source.copyTo( os );
+            }
+
+            return addToStore( tmp, hash, source.getRemote(), added );
+        }finally{
+            Files.deleteIfExists( tmp );
+        }
+    }
+
+    /**
+     * Move a file that has been copied from the agent into the store,
+     * checking its hash.
+     *
+     * @param name The name of the file, for errors
+     * @param added The files that were added to the store, which the
+     * sweep leaves alone until they are linked to
+     * @return The size of the file
+     */
+    private long addToStore( Path copied, String hash, String name, List<Path> added ) throws IOException {
+        if( !FileHashes.sha256( copied ).equals( hash ) ){
+            throw new IOException( name + " changed while it was being archived" );
+        }
+
+        Path stored = getPath( hash );
+        long size = Files.size( copied );
+        Files.createDirectories( stored.getParent() );
+        synchronized( LOCK ){
+            // Another build may have archived the same file at the same
+            // time; don't replace it, since builds are linked to it
+            if( !Files.exists( stored ) ){
+                Files.move( copied, stored, StandardCopyOption.ATOMIC_MOVE );
+            }
+            PENDING.merge( stored, 1, Integer::sum );
+            added.add( stored );
+        }
+
+        return size;
+    }
+
+    /**
+     * Link an artifact to the file in the store.
+     *
+     * @return False if the file is not in the store
+     */
+    private boolean link( Path stored, Path artifact ) throws IOException {
+        synchronized( LOCK ){
+            if( !Files.exists( stored ) ){
+                return false;
+            }
+
+            try{
+                Files.createLink( artifact, stored );
+            }catch( IOException | UnsupportedOperationException ex ){
+                // Not on the same filesystem as the builds: the build gets its
+                // own copy, and does not keep the stored file around
+                LOGGER.log( Level.FINE, "Unable to link " + artifact + ", copying", ex );
+                Files.copy( stored, artifact );
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Get the SHA-256 of files, relative to the directory this is run on.
+     */
+    private static final class HashFiles implements FilePath.FileCallable<Map<String,String>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> m_files;
+
+        HashFiles( List<String> files ){
+            m_files = new ArrayList<>( files );
+        }
+
+        @Override
+        public Map<String,String> invoke( File f, VirtualChannel channel ) throws IOException, InterruptedException {
+            Map<String,String> hashes = new LinkedHashMap<>();
+
+            for( String file : m_files ){
+                hashes.put( file, FileHashes.sha256( new File( f, file ).toPath() ) );
+            }
+
+            return hashes;
+        }
+
+        @Override
+        public void checkRoles( RoleChecker checker ) throws SecurityException {}
+    }
+
+    /**
+     * Removes what is no longer used from the store, for builds whose
+     * artifacts were deleted without the build being deleted.
+     */
+    @Extension
+    public static final class Sweep extends AsyncPeriodicWork {
+
+        public Sweep(){
+            super( "Debian pbuilder artifact store sweep" );
+        }
+
+        @Override
+        public long getRecurrencePeriod(){
+            return HOUR;
+        }
+
+        @Override
+        protected void execute( TaskListener listener ) throws IOException, InterruptedException {
+            int removed = get().sweep();
+            if( removed > 0 ){
+                listener.getLogger().println( "Removed " + removed + " unused files from the artifact store" );
+            }
+        }
+    }
+
+    /**
+     * Releases the artifacts of builds when they are deleted.
+     */
+    @Extension
+    public static final class Cleanup extends RunListener<Run<?,?>> {
+
+        @Override
+        public void onDeleted( Run<?,?> run ){
+            Path manifest = run.getRootDir().toPath().resolve( MANIFEST );
+            try{
+                get().release( run.getArtifactsDir().toPath(), manifest );
+            }catch( IOException ex ){
+                LOGGER.log( Level.WARNING, "Unable to release the artifacts of " + run.getFullDisplayName(), ex );
+            }
+        }
+    }
+}
@@ -0,0 +1,432 @@
+package com.rm5248.debianpbuilder;
+
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.util.Secret;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.jenkinsci.remoting.RoleChecker;
+
+/**
+ * Deploys the results of a build to a Debian repository in Artifactory.
+ *
+ * The files are deployed from the node that they were built on.  The
+ * checksums of each file are worked out on the node, and Artifactory is
+ * first asked to deploy the file by its checksum; only the files that
+ * Artifactory does not have yet are uploaded.  Several files are deployed at
+ * the same time, and deploys that fail because of the network or the server
+ * are retried.
+ *
+ * The files get the same deb.* properties as the files in the Artifactory
+ * spec file, so that Artifactory puts them into the index of the repository.
+ */
+final class ArtifactoryPublisher implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_DELAY_MS = 2000;
+    private static final int CONNECT_TIMEOUT_MS = 30 * 1000;
+    private static final int READ_TIMEOUT_MS = 10 * 60 * 1000;
+
+    private final String m_url;
+    private final String m_repository;
+    private final String m_authorization;
+    private final int m_connections;
+    private long m_retryDelayMs = RETRY_DELAY_MS;
+
+    /**
+     * @param url The URL of Artifactory, e.g. https://example.com/artifactory
+     * @param repository The name of the Debian repository to deploy to
+     * @param username The user to deploy as, or null to use the password
+     * as an access token
+     * @param password The password or access token, or null to deploy
+     * anonymously
+     * @param connections How many files to deploy at the same time
+     */
+    ArtifactoryPublisher( String url, String repository, String username, Secret password, int connections ){
+        m_url = url.replaceAll( "/+$", "" );
+        m_repository = repository;
+        m_connections = Math.max( 1, connections );
+
+        if( password == null ){
+            m_authorization = null;
+        }else if( username == null || username.isEmpty() ){
+            m_authorization = "Bearer " + password.getPlainText();
+        }else{
+            m_authorization = "Basic " + Base64.getEncoder().encodeToString(
+                    (username + ":" + password.getPlainText()).getBytes( StandardCharsets.UTF_8 ) );
+        }
+    }
+
+    /**
+     * Set how long to wait before the first retry; each retry after that
+     * waits twice as long as the one before.
+     */
+    void setRetryDelay( long millis ){
+        m_retryDelayMs = millis;
+    }
+
+    /**
+     * One file to deploy.
+     */
+    static final class Deploy implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String m_file;
+        private final String m_target;
+        private final String m_properties;
+
+        /**
+         * @param file The path of the file, relative to the directory it is
+         * deployed from
+         * @param target The path to deploy to, relative to the repository
+         * @param properties Pairs of property names and values
+         */
+        Deploy( String file, String target, String ... properties ){
+            StringBuilder sb = new StringBuilder();
+            for( int x = 0; x + 1 < properties.length; x += 2 ){
+                sb.append( ';' )
+                    .append( encode( properties[ x ] ) )
+                    .append( '=' )
+                    .append( encode( properties[ x + 1 ] ) );
+            }
+
+            m_file = file;
+            m_target = target;
+            m_properties = sb.toString();
+        }
+    }
+
+    /**
+     * Get the files to deploy out of the results of a build.  The same files
+     * are deployed with the same properties as in the Artifactory spec file.
+     *
+     * @param binariesLocation The directory with the results of the build
+     * @param sourceName The name of the source package
+     * @param architectures The architectures that were built
+     * @param perArchitecture True if the results of each architecture are in
+     * their own sub-directory of the binaries location
+     */
+    static List<Deploy> plan( FilePath binariesLocation,
+            String sourceName,
+            String distribution,
+            List<String> architectures,
+            boolean perArchitecture ) throws IOException, InterruptedException {
+        List<Deploy> deploys = new ArrayList<>();
+        Set<String> targets = new LinkedHashSet<>();
+        String pool = "pool/" + sourceName + "/";
+
+        for( String architecture : architectures ){
+            String dir = perArchitecture ? architecture + "/" : "";
+            FilePath resultDir = perArchitecture ? binariesLocation.child( architecture ) : binariesLocation;
+            for( FilePath file : resultDir.list() ){
+                String name = file.getName();
+                // Packages that are the same for all architectures are only deployed once
+                if( name.endsWith( ".deb" ) && targets.add( pool + name ) ){
+                    deploys.add( new Deploy( dir + name, pool + name,
+                            "deb.distribution", distribution,
+                            "deb.component", "main",
+                            "deb.architecture", architecture ) );
+                }
+            }
+        }
+
+        // The source package is only built once
+        String sourceDir = perArchitecture ? architectures.get( 0 ) + "/" : "";
+        FilePath sourceResultDir = perArchitecture ? binariesLocation.child( architectures.get( 0 ) ) : binariesLocation;
+        for( FilePath file : sourceResultDir.list() ){
+            String name = file.getName();
+            if( (name.contains( ".tar" ) || name.endsWith( ".dsc" )) && targets.add( pool + name ) ){
+                deploys.add( new Deploy( sourceDir + name, pool + name,
+                        "deb.distribution", distribution,
+                        "deb.component", "main" ) );
+            }
+        }
+
+        return deploys;
+    }
+
+    /**
+     * Deploy files from a directory on the node.
+     *
+     * @param base The directory that the files are in
+     * @param deploys The files to deploy
+     */
+    void publish( FilePath base, List<Deploy> deploys, TaskListener listener )
+            throws IOException, InterruptedException {
+        if( deploys.isEmpty() ){
+            listener.getLogger().println( "No files to deploy to Artifactory" );
+            return;
+        }
+
+        base.act( new DeployFiles( this, deploys, listener ) );
+    }
+
+    private static String encode( String value ){
+        return URLEncoder.encode( value, StandardCharsets.UTF_8 ).replace( "+", "%20" );
+    }
+
+    private URL getUrl( Deploy deploy ) throws IOException {
+        StringBuilder url = new StringBuilder( m_url );
+        url.append( '/' ).append( encode( m_repository ) );
+        for( String segment : deploy.m_target.split( "/" ) ){
+            url.append( '/' ).append( encode( segment ) );
+        }
+        url.append( deploy.m_properties );
+
+        return new URL( url.toString() );
+    }
+
+    /**
+     * The SHA-256, SHA-1 and MD5 of a file, all worked out in one read.
+     */
+    private static final class Checksums {
+        private final String m_sha256;
+        private final String m_sha1;
+        private final String m_md5;
+
+        Checksums( File file ) throws IOException {
+            MessageDigest sha256;
+            MessageDigest sha1;
+            MessageDigest md5;
+            try{
+                sha256 = MessageDigest.getInstance( "SHA-256" );
+                sha1 = MessageDigest.getInstance( "SHA-1" );
+                md5 = MessageDigest.getInstance( "MD5" );
+            }catch( NoSuchAlgorithmException ex ){
+                throw new IOException( ex );
+            }
+
+            byte[] buffer = new byte[ 64 * 1024 ];
+            try( InputStream is = Files.newInputStream( file.toPath() ) ){
+                int read;
+                while( (read = is.read( buffer )) >= 0 ){
+                    sha256.update( buffer, 0, read );
+                    sha1.update( buffer, 0, read );
+                    md5.update( buffer, 0, read );
+                }
+            }
+
+            m_sha256 = HexFormat.of().formatHex( sha256.digest() );
+            m_sha1 = HexFormat.of().formatHex( sha1.digest() );
+            m_md5 = HexFormat.of().formatHex( md5.digest() );
+        }
+    }
+
+    private static final class Response {
+        private final int m_code;
+        private final String m_body;
+
+        Response( int code, String body ){
+            m_code = code;
+            m_body = body;
+        }
+
+        boolean isSuccess(){
+            return m_code >= 200 && m_code < 300;
+        }
+
+        boolean isRetryable(){
+            return m_code >= 500 ||
+                m_code == HttpURLConnection.HTTP_CLIENT_TIMEOUT ||
+                m_code == 429;
+        }
+    }
+
+    /**
+     * Deploy one file, first by its checksum and then by uploading it.
+     *
+     * @return True if the file was uploaded, false if Artifactory already had it
+     */
+    private boolean deploy( File file, Deploy deploy, PrintStream logger ) throws IOException, InterruptedException {
+        if( !file.isFile() ){
+            throw new IOException( file + " does not exist" );
+        }
+
+        Checksums checksums = new Checksums( file );
+        URL url = getUrl( deploy );
+        IOException lastError = null;
+
+        for( int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++ ){
+            if( attempt > 1 ){
+                logger.println( "Retrying deploy of " + deploy.m_target + ": " + lastError.getMessage() );
+                Thread.sleep( m_retryDelayMs << (attempt - 2) );
+            }
+
+            Response response;
+            boolean uploaded = false;
+            try{
+                response = put( url, checksums, null );
+                if( response.m_code == HttpURLConnection.HTTP_NOT_FOUND ){
+                    // Artifactory does not have a file with this checksum yet
+                    response = put( url, checksums, file );
+                    uploaded = true;
+                }
+            }catch( IOException ex ){
+                lastError = ex;
+                continue;
+            }
+
+            if( response.isSuccess() ){
+                if( uploaded ){
+                    logger.println( "Uploaded " + deploy.m_target + "(" + (file.length() / 1024) + " KiB)" );
+                }else{
+                    logger.println( "Deployed " + deploy.m_target + " by checksum" );
+                }
+                return uploaded;
+            }
+
+            lastError = new IOException( "Artifactory returned HTTP " + response.m_code
+                    + " for " + deploy.m_target
+                    + (response.m_body.isEmpty() ? "" : ": " + response.m_body) );
+            if( !response.isRetryable() ){
+                break;
+            }
+        }
+
+        throw lastError;
+    }
+
+    /**
+     * PUT a file to Artifactory.
+     *
+     * @param content The file to upload, or null to deploy by checksum
+     */
+    private Response put( URL url, Checksums checksums, File content ) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection)url.openConnection();
+        conn.setConnectTimeout( CONNECT_TIMEOUT_MS );
+        conn.setReadTimeout( READ_TIMEOUT_MS );
+        conn.setRequestMethod( "PUT" );
+        conn.setDoOutput( true );
+        if( m_authorization != null ){
+            conn.setRequestProperty( "Authorization", m_authorization );
+        }
+        conn.setRequestProperty( "X-Checksum-Sha256", checksums.m_sha256 );
+        conn.setRequestProperty( "X-Checksum-Sha1", checksums.m_sha1 );
+        conn.setRequestProperty( "X-Checksum", checksums.m_md5 );
+
+        if( content == null ){
+            conn.setRequestProperty( "X-Checksum-Deploy", "true" );
+            conn.setFixedLengthStreamingMode( 0 );
+            conn.getOutputStream().close();
+        }else{
+            conn.setRequestProperty( "Content-Type", "application/octet-stream" );
+            conn.setFixedLengthStreamingMode( content.length() );
+            try( OutputStream os = conn.getOutputStream() ){
+                Files.copy( content.toPath(), os );
+            }
+        }
+
+        int code = conn.getResponseCode();
+
+        // Read all of the response so that the connection can be used again
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try( InputStream is = code >= 400 ? conn.getErrorStream() : conn.getInputStream() ){
+            if( is != null ){
+                is.transferTo( body );
+            }
+        }
+
+        String text = body.toString( StandardCharsets.UTF_8 ).trim();
+        if( text.length() > 500 ){
+            text = text.substring( 0, 500 ) + "...";
+        }
+
+        return new Response( code, code >= 400 ? text : "" );
+    }
+
+    /**
+     * Deploy files, relative to the directory this is run on.
+     */
+    private static final class DeployFiles implements FilePath.FileCallable<Void> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ArtifactoryPublisher m_publisher;
+        private final List<Deploy> m_deploys;
+        private final TaskListener m_listener;
+
+        DeployFiles( ArtifactoryPublisher publisher, List<Deploy> deploys, TaskListener listener ){
+            m_publisher = publisher;
+            m_deploys = new ArrayList<>( deploys );
+            m_listener = listener;
+        }
+
+        @Override
+        public Void invoke( File f, VirtualChannel channel ) throws IOException, InterruptedException {
+            ArtifactoryPublisher publisher = m_publisher;
+            int connections = Math.min( publisher.m_connections, m_deploys.size() );
+            PrintStream logger = m_listener.getLogger();
+            ExecutorService executor = Executors.newFixedThreadPool( connections );
+            List<Future<Boolean>> results = new ArrayList<>();
+            long start = System.currentTimeMillis();
+
+            logger.println( "Deploying " + m_deploys.size() + " files to " + publisher.m_url + "/"
+                    + publisher.m_repository + " over " + connections + " connections" );
+
+            try{
+                for( Deploy deploy : m_deploys ){
+                    results.add( executor.submit( () -> publisher.deploy( new File( f, deploy.m_file ), deploy, logger ) ) );
+                }
+
+                int uploaded = 0;
+                long uploadedBytes = 0;
+                List<String> failed = new ArrayList<>();
+                for( int x = 0; x < results.size(); x++ ){
+                    Deploy deploy = m_deploys.get( x );
+                    try{
+                        if( results.get( x ).get() ){
+                            uploaded++;
+                            uploadedBytes += new File( f, deploy.m_file ).length();
+                        }
+                    }catch( ExecutionException ex ){
+                        logger.println( "Unable to deploy " + deploy.m_target + ": " + ex.getCause().getMessage() );
+                        failed.add( deploy.m_target );
+                    }
+                }
+
+                if( !failed.isEmpty() ){
+                    throw new IOException( "Unable to deploy " + failed.size() + " of "
+                            + m_deploys.size() + " files: " + failed );
+                }
+
+                logger.println( "Deployed " + m_deploys.size() + " files in "
+                        + ((System.currentTimeMillis() - start) / 1000) + " seconds: "
+                        + (m_deploys.size() - uploaded) + " by checksum, "
+                        + uploaded + " uploaded(" + (uploadedBytes / 1024) + " KiB)" );
+            }finally{
+                executor.shutdownNow();
+            }
+
+            return null;
+        }
+
+        @Override
+        public void checkRoles( RoleChecker checker ) throws SecurityException {}
+    }
+}
@@ -0,0 +1,311 @@
+package com.rm5248.debianpbuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Creates or updates the bases of the architectures that are being built in
+ * the background, while the source package is being prepared.  The base does
+ * not depend on the source package, so there is no need to wait for it.
+ *
+ * The output of each update is held back until the build joins it, and is
+ * then written to the log all at once, so that it does not get mixed up
+ * with the output of preparing the source package.  If every update fails,
+ * the thread that is preparing the source package is interrupted; if
+ * preparing the source package fails, the updates are cancelled.  An update
+ * that is already changing the base in place is not cancelled, since that
+ * would leave the base broken for every job on the node; it is waited for
+ * instead.
+ */
+final class BackgroundBaseUpdates {
+
+    private final Map<String,Update> m_updates = new LinkedHashMap<>();
+    private final Thread m_preparingThread;
+    private ExecutorService m_executor;
+    private boolean m_preparing;
+    private boolean m_sourcesCancelled;
+    private int m_failed;
+
+    /**
+     * Tells if an update that is running can be stopped.
+     */
+    interface StopCheck {
+        boolean canStop() throws IOException, InterruptedException;
+    }
+
+    /**
+     * Must be created on the thread that prepares the source package.
+     */
+    BackgroundBaseUpdates(){
+        m_preparingThread = Thread.currentThread();
+    }
+
+    /**
+     * Get the stream for everything to do with the base of an architecture
+     * to log to.  What is written to it is held back until the update of
+     * the base is joined.
+     */
+    synchronized PrintStream getLogger( String architecture, PrintStream logger ) throws UnsupportedEncodingException {
+        Update update = new Update( logger );
+        m_updates.put( architecture, update );
+        return update.m_logger;
+    }
+
+    /**
+     * Set how to create or update the base of an architecture, and how to
+     * tell if it can be cancelled once it is running.
+     */
+    synchronized void setUpdate( String architecture, PhaseTimingAction.Phase<Boolean> task, StopCheck stopCheck ){
+        Update update = m_updates.get( architecture );
+        update.m_task = task;
+        update.m_stopCheck = stopCheck;
+    }
+
+    /**
+     * Start creating or updating all of the bases in the background.
+     */
+    synchronized void start(){
+        if( m_executor != null || m_updates.isEmpty() ){
+            return;
+        }
+
+        m_preparing = true;
+        m_executor = Executors.newFixedThreadPool( m_updates.size() );
+        for( Update update : m_updates.values() ){
+            update.m_future = m_executor.submit( () -> run( update ) );
+        }
+    }
+
+    private Boolean run( Update update ) throws IOException, InterruptedException {
+        boolean success = false;
+        try{
+            success = update.m_task.run();
+            return success;
+        }finally{
+            update.m_finished = true;
+            if( !success ){
+                failed();
+            }
+        }
+    }
+
+    private synchronized void failed(){
+        m_failed++;
+
+        // There is no point in preparing the source package if it can't be built
+        if( m_preparing && m_failed == m_updates.size() ){
+            m_sourcesCancelled = true;
+            m_preparingThread.interrupt();
+        }
+    }
+
+    /**
+     * Called once preparing the source package has finished.
+     *
+     * @param prepared False if preparing the source package failed, in which
+     * case the updates are cancelled
+     */
+    void sourcesPrepared( boolean prepared ) throws IOException {
+        List<Update> updates;
+        synchronized( this ){
+            m_preparing = false;
+
+            if( m_sourcesCancelled ){
+                // The preparing thread may have finished before it saw the interrupt
+                Thread.interrupted();
+            }
+
+            updates = new ArrayList<>( m_updates.values() );
+        }
+
+        // Not synchronized, since the updates that are waited for call
+        // back into this when they finish
+        if( !prepared ){
+            cancel( updates );
+        }
+    }
+
+    /**
+     * @return True if preparing the source package was interrupted because
+     * none of the bases could be created or updated
+     */
+    synchronized boolean wereSourcesCancelled(){
+        return m_sourcesCancelled;
+    }
+
+    /**
+     * Wait for the base of an architecture to be created or updated.  If it
+     * was not started in the background, it is done now.
+     *
+     * @return True if the base was created or updated
+     */
+    boolean join( String architecture ) throws IOException, InterruptedException {
+        Update update;
+        synchronized( this ){
+            update = m_updates.get( architecture );
+        }
+
+        if( update.m_future == null ){
+            update.m_output.release();
+            return update.m_task.run();
+        }
+
+        update.m_target.println( "Creating or updating the base while the source package was prepared:" );
+        update.m_output.release();
+
+        try{
+            return update.m_future.get();
+        }catch( ExecutionException ex ){
+            Throwable cause = ex.getCause();
+            if( cause instanceof IOException ){
+                throw (IOException)cause;
+            }else if( cause instanceof InterruptedException ){
+                throw (InterruptedException)cause;
+            }else if( cause instanceof RuntimeException ){
+                throw (RuntimeException)cause;
+            }
+            throw new IOException( cause );
+        }
+    }
+
+    private void cancel( List<Update> updates ) throws IOException {
+        List<Update> running = new ArrayList<>();
+
+        for( Update update : updates ){
+            if( update.m_future != null && !update.m_finished ){
+                if( canStop( update ) && update.m_future.cancel( true ) ){
+                    update.m_target.println( "Cancelled creating or updating the base since the source package could not be prepared" );
+                }else if( !update.m_future.isDone() ){
+                    update.m_target.println( "The base is being updated in place, waiting for it to finish "
+                            + "before stopping so that it is not left half updated" );
+                    running.add( update );
+                }
+            }
+            update.m_output.release();
+        }
+
+        for( Update update : running ){
+            try{
+                update.m_future.get();
+            }catch( ExecutionException | CancellationException ex ){
+                // The update wrote why it failed to its log
+            }catch( InterruptedException ex ){
+                // The build was aborted; close() stops what is left
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static boolean canStop( Update update ){
+        if( update.m_stopCheck == null ){
+            return true;
+        }
+
+        try{
+            return update.m_stopCheck.canStop();
+        }catch( IOException ex ){
+            // If we can't tell, don't risk breaking the base
+            return false;
+        }catch( InterruptedException ex ){
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Stop any updates that are still running, and write out any output
+     * that is still held back.
+     */
+    synchronized void close() throws IOException {
+        if( m_executor != null ){
+            m_executor.shutdownNow();
+        }
+
+        for( Update update : m_updates.values() ){
+            update.m_output.release();
+        }
+    }
+
+    private static final class Update {
+        private final PrintStream m_target;
+        private final DeferredOutputStream m_output;
+        private final PrintStream m_logger;
+        private PhaseTimingAction.Phase<Boolean> m_task;
+        private StopCheck m_stopCheck;
+        private volatile Future<Boolean> m_future;
+        private volatile boolean m_finished;
+
+        Update( PrintStream target ) throws UnsupportedEncodingException {
+            m_target = target;
+            m_output = new DeferredOutputStream( target );
+            m_logger = new PrintStream( m_output, true, "UTF-8" );
+        }
+    }
+
+    /**
+     * Holds on to what is written to it until it is released, after which
+     * everything is written straight through.
+     */
+    private static final class DeferredOutputStream extends OutputStream {
+        private final OutputStream m_out;
+        private ByteArrayOutputStream m_buffer = new ByteArrayOutputStream();
+
+        DeferredOutputStream( OutputStream out ){
+            m_out = out;
+        }
+
+        synchronized void release() throws IOException {
+            if( m_buffer == null ){
+                return;
+            }
+
+            m_buffer.writeTo( m_out );
+            m_buffer = null;
+            m_out.flush();
+        }
+
+        @Override
+        public synchronized void write( int b ) throws IOException {
+            if( m_buffer != null ){
+                m_buffer.write( b );
+            }else{
+                m_out.write( b );
+            }
+        }
+
+        @Override
+        public synchronized void write( byte[] b, int off, int len ) throws IOException {
+            if( m_buffer != null ){
+                m_buffer.write( b, off, len );
+            }else{
+                m_out.write( b, off, len );
+            }
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            if( m_buffer == null ){
+                m_out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            release();
+            // The other stream is shared, so it is not closed
+        }
+    }
+}
@@ -0,0 +1,353 @@
+package com.rm5248.debianpbuilder;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jenkinsci.remoting.RoleChecker;
+
+/**
+ * Decides if a base chroot needs to be updated before a build.
+ *
+ * Every time that a base is created or updated, a stamp file is written next
+ * to it(e.g. /var/cache/pbuilder/base-buster-amd64.stamp) that holds the
+ * time of the update and the checksums of the InRelease/Release files of the
+ * mirrors that the base uses.  A base is considered fresh if it was updated
+ * less than the configured number of minutes ago, or if none of the mirror
+ * indexes have changed since it was updated.
+ */
+final class BaseFreshness implements Serializable {
+    private static final Logger LOGGER = Logger.getLogger( BaseFreshness.class.getName() );
+
+    private static final long serialVersionUID = 1L;
+
+    private static final String UPDATED_KEY = "updated";
+    private static final String INDEX_KEY_PREFIX = "index.";
+    private static final String[] INDEX_FILES = { "InRelease", "Release" };
+
+    private final int m_maxAgeMinutes;
+    private final boolean m_checkMirrorIndexes;
+    private final List<String> m_indexDirectories;
+
+    /**
+     * @param maxAgeMinutes Bases updated less than this many minutes ago are not updated;
+     * 0 to disable
+     * @param checkMirrorIndexes True to skip the update if the mirror indexes have not changed
+     * @param indexDirectories The URLs of the directories that hold the (In)Release files
+     * of all of the mirrors that the base uses
+     */
+    BaseFreshness( int maxAgeMinutes, boolean checkMirrorIndexes, List<String> indexDirectories ){
+        m_maxAgeMinutes = maxAgeMinutes;
+        m_checkMirrorIndexes = checkMirrorIndexes;
+        m_indexDirectories = new ArrayList<>( indexDirectories );
+    }
+
+    /**
+     * Create the freshness policy for the given pbuilder configuration.
+     */
+    static BaseFreshness forConfiguration( int maxAgeMinutes, boolean checkMirrorIndexes,
+            PbuilderConfiguration config, String distribution ){
+        List<String> indexDirectories = new ArrayList<>();
+
+        if( config.getMirrorSite() != null && config.getMirrorSite().length() > 0 ){
+            indexDirectories.add( getIndexDirectory( config.getMirrorSite(), distribution ) );
+        }
+
+        String otherMirror = config.getOtherMirror();
+        if( otherMirror != null ){
+            for( String line : otherMirror.split( "\\|" ) ){
+                String[] parts = line.trim().replaceAll( "\\[[^\\]]*\\]", " " ).trim().split( "\\s+" );
+                if( parts.length >= 3 && parts[ 0 ].equals( "deb" ) ){
+                    indexDirectories.add( getIndexDirectory( parts[ 1 ], parts[ 2 ] ) );
+                }
+            }
+        }
+
+        return new BaseFreshness( maxAgeMinutes, checkMirrorIndexes, indexDirectories );
+    }
+
+    private static String getIndexDirectory( String mirror, String suite ){
+        if( !mirror.endsWith( "/" ) ){
+            mirror += "/";
+        }
+
+        if( suite.endsWith( "/" ) ){
+            // Flat repository, e.g. 'deb file:///binaries ./'
+            return mirror + suite;
+        }
+
+        return mirror + "dists/" + suite + "/";
+    }
+
+    boolean isEnabled(){
+        return m_maxAgeMinutes > 0 ||
+                (m_checkMirrorIndexes && !m_indexDirectories.isEmpty());
+    }
+
+    @Override
+    public String toString(){
+        return "max age " + m_maxAgeMinutes + " minutes, check mirror indexes " + m_checkMirrorIndexes;
+    }
+
+    /**
+     * Get the path of the stamp for the given base.
+     */
+    static String getStampPath( String basePath ){
+        return basePath + ".stamp";
+    }
+
+    /**
+     * The result of checking if a base is fresh.
+     */
+    static final class Result implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String m_freshReason;
+        private final TreeMap<String,String> m_indexChecksums;
+
+        Result( String freshReason, TreeMap<String,String> indexChecksums ){
+            m_freshReason = freshReason;
+            m_indexChecksums = indexChecksums;
+        }
+
+        /**
+         * True if the base does not need to be updated.
+         */
+        boolean isFresh(){
+            return m_freshReason != null;
+        }
+
+        /**
+         * Why the base does not need to be updated.
+         */
+        String getFreshReason(){
+            return m_freshReason;
+        }
+    }
+
+    /**
+     * Check if the base with the given stamp needs to be updated.
+     */
+    FilePath.FileCallable<Result> check( String stampPath ){
+        return new Check( this, stampPath );
+    }
+
+    /**
+     * Write the stamp for a base that was just updated, using the mirror
+     * checksums that were seen before the update started.  Returns false if
+     * the stamp could not be written.
+     */
+    FilePath.FileCallable<Boolean> record( String stampPath, Result checkResult ){
+        return new Record( stampPath, checkResult.m_indexChecksums );
+    }
+
+    /**
+     * Get the checksums of the (In)Release files of all of the mirrors that
+     * the base uses.  Returns null if there are no mirrors, or if any of the
+     * indexes could not be downloaded.
+     */
+    FilePath.FileCallable<TreeMap<String,String>> getMirrorIndexes(){
+        return new MirrorIndexes( this );
+    }
+
+    private TreeMap<String,String> getIndexChecksums(){
+        TreeMap<String,String> checksums = new TreeMap<>();
+
+        if( !m_checkMirrorIndexes ){
+            return checksums;
+        }
+
+        for( String directory : m_indexDirectories ){
+            for( String indexFile : INDEX_FILES ){
+                String checksum = getChecksum( directory + indexFile );
+                if( checksum != null ){
+                    checksums.put( directory, checksum );
+                    break;
+                }
+            }
+        }
+
+        return checksums;
+    }
+
+    private static String getChecksum( String url ){
+        try{
+            MessageDigest digest = MessageDigest.getInstance( "SHA-256" );
+            URLConnection conn = new URL( url ).openConnection();
+            conn.setConnectTimeout( (int)TimeUnit.SECONDS.toMillis( 10 ) );
+            conn.setReadTimeout( (int)TimeUnit.SECONDS.toMillis( 30 ) );
+            conn.setUseCaches( false );
+
+            try( InputStream is = conn.getInputStream() ){
+                byte[] buffer = new byte[ 8192 ];
+                int read;
+                while( (read = is.read( buffer )) >= 0 ){
+                    digest.update( buffer, 0, read );
+                }
+            }
+
+            return HexFormat.of().formatHex( digest.digest() );
+        }catch( IOException | NoSuchAlgorithmException ex ){
+            LOGGER.log( Level.FINE, "Unable to get checksum of " + url, ex );
+            return null;
+        }
+    }
+
+    private static final class Check implements FilePath.FileCallable<Result> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final BaseFreshness m_policy;
+        private final String m_stampPath;
+
+        Check( BaseFreshness policy, String stampPath ){
+            m_policy = policy;
+            m_stampPath = stampPath;
+        }
+
+        @Override
+        public Result invoke( File f, VirtualChannel channel ) throws IOException, InterruptedException {
+            TreeMap<String,String> current = m_policy.getIndexChecksums();
+            return new Result( getFreshReason( current ), current );
+        }
+
+        private String getFreshReason( Map<String,String> current ) throws IOException {
+            Path stamp = new File( m_stampPath ).toPath();
+            if( !Files.isReadable( stamp ) ){
+                return null;
+            }
+
+            Properties props = new Properties();
+            try( InputStream is = Files.newInputStream( stamp ) ){
+                props.load( is );
+            }
+
+            long updated;
+            try{
+                updated = Long.parseLong( props.getProperty( UPDATED_KEY, "0" ) );
+            }catch( NumberFormatException ex ){
+                return null;
+            }
+
+            long age = System.currentTimeMillis() - updated;
+            if( m_policy.m_maxAgeMinutes > 0 &&
+                    age >= 0 &&
+                    age < TimeUnit.MINUTES.toMillis( m_policy.m_maxAgeMinutes ) ){
+                return "base was updated " + TimeUnit.MILLISECONDS.toMinutes( age )
+                        + " minutes ago(maximum age " + m_policy.m_maxAgeMinutes + " minutes)";
+            }
+
+            if( !m_policy.m_checkMirrorIndexes || m_policy.m_indexDirectories.isEmpty() ){
+                return null;
+            }
+
+            if( current.size() != m_policy.m_indexDirectories.size() ){
+                // Couldn't get all of the indexes, so we can't say that they are unchanged
+                return null;
+            }
+
+            for( Map.Entry<String,String> entry : current.entrySet() ){
+                if( !entry.getValue().equals( props.getProperty( INDEX_KEY_PREFIX + entry.getKey() ) ) ){
+                    return null;
+                }
+            }
+
+            return "mirror indexes have not changed since the last update";
+        }
+
+        @Override
+        public void checkRoles( RoleChecker checker ) throws SecurityException {}
+    }
+
+    private static final class MirrorIndexes implements FilePath.FileCallable<TreeMap<String,String>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final BaseFreshness m_policy;
+
+        MirrorIndexes( BaseFreshness policy ){
+            m_policy = policy;
+        }
+
+        @Override
+        public TreeMap<String,String> invoke( File f, VirtualChannel channel ) throws IOException, InterruptedException {
+            TreeMap<String,String> current = m_policy.getIndexChecksums();
+            if( m_policy.m_indexDirectories.isEmpty() ||
+                    current.size() != m_policy.m_indexDirectories.size() ){
+                return null;
+            }
+
+            return current;
+        }
+
+        @Override
+        public void checkRoles( RoleChecker checker ) throws SecurityException {}
+    }
+
+    private static final class Record implements FilePath.FileCallable<Boolean> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String m_stampPath;
+        private final TreeMap<String,String> m_indexChecksums;
+
+        Record( String stampPath, TreeMap<String,String> indexChecksums ){
+            m_stampPath = stampPath;
+            m_indexChecksums = indexChecksums;
+        }
+
+        @Override
+        public Boolean invoke( File f, VirtualChannel channel ) throws IOException, InterruptedException {
+            Path stamp = new File( m_stampPath ).toPath();
+            Properties props = new Properties();
+
+            props.setProperty( UPDATED_KEY, Long.toString( System.currentTimeMillis() ) );
+            for( Map.Entry<String,String> entry : m_indexChecksums.entrySet() ){
+                props.setProperty( INDEX_KEY_PREFIX + entry.getKey(), entry.getValue() );
+            }
+
+            Path tmpStamp = null;
+            try{
+                tmpStamp = Files.createTempFile( stamp.getParent(), ".stamp", ".tmp" );
+                try( OutputStream os = Files.newOutputStream( tmpStamp ) ){
+                    props.store( os, "Written by the Jenkins debian-pbuilder plugin" );
+                }
+                Files.move( tmpStamp, stamp,
+                        StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING );
+            }catch( IOException ex ){
+                LOGGER.log( Level.FINE, "Unable to write " + m_stampPath, ex );
+                return false;
+            }finally{
+                if( tmpStamp != null ){
+                    Files.deleteIfExists( tmpStamp );
+                }
+            }
+
+            return true;
+        }
+
+        @Override
+        public void checkRoles( RoleChecker checker ) throws SecurityException {}
+    }
+}
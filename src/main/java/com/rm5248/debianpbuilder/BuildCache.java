@@ -0,0 +1,271 @@
+package com.rm5248.debianpbuilder;
+
+import hudson.FilePath;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.remoting.VirtualChannel;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import jenkins.util.VirtualFile;
+import org.jenkinsci.remoting.RoleChecker;
+
+/**
+ * Finds an earlier build of a job that built a package from the same
+ * inputs, so that its artifacts can be used instead of building again.
+ *
+ * The inputs of a package are fingerprinted with:
+ * <ul>
+ * <li>The content of the source tree, before the snapshot entry is added to
+ * debian/changelog, the upstream tarballs and the hooks</li>
+ * <li>The generated pbuilderrc</li>
+ * <li>The distribution and architectures</li>
+ * <li>The checksums of the (In)Release files of the mirrors, so that the
+ * base and build dependencies are the same</li>
+ * </ul>
+ *
+ * The fingerprint is kept in a {@link BuildCacheAction} on each build.
+ */
+final class BuildCache {
+
+    // How many builds back to look for a build with the same fingerprint
+    private static final int MAX_BUILDS = 50;
+
+    private static final String[] VCS_DIRECTORIES = { ".git", ".svn", ".hg", ".bzr" };
+
+    private BuildCache(){}
+
+    /**
+     * Hash the source tree, the upstream tarballs and the hooks of a package
+     * in the workspace.  This must be done before the snapshot entry is added
+     * to debian/changelog.
+     *
+     * @param sourceDir The directory that the debian/ directory is in,
+     * relative to the workspace
+     * @param upstreamVersion The upstream version of the package
+     */
+    static String hashSources( FilePath workspace, String sourceDir, String packageName, String upstreamVersion )
+            throws IOException, InterruptedException {
+        return workspace.act( new HashSources( sourceDir, packageName + "_" + upstreamVersion + ".orig" ) );
+    }
+
+    /**
+     * Get the fingerprint of everything that goes into building a package.
+     *
+     * @param sourceHash The hash from {@link #hashSources}
+     * @param config The pbuilder configuration, with the mirrors that the
+     * build will use
+     * @param architectures The architectures that will be built
+     * @param extra Any other settings that change the result of the build
+     * @return The fingerprint, or null if the indexes of the mirrors could
+     * not be checked
+     */
+    static String getFingerprint( FilePath workspace,
+            String sourceHash,
+            PbuilderConfiguration config,
+            String distribution,
+            List<String> architectures,
+            String extra,
+            PrintStream logger ) throws IOException, InterruptedException {
+        BaseFreshness mirrors = BaseFreshness.forConfiguration( 0, true, config, distribution );
+        TreeMap<String,String> indexes = workspace.act( mirrors.getMirrorIndexes() );
+        if( indexes == null ){
+            logger.println( "Build cache: unable to get the index of every mirror, so the build "
+                    + "dependencies may have changed; not using the build cache" );
+            return null;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append( "sources " ).append( sourceHash ).append( '\n' );
+        sb.append( "distribution " ).append( distribution ).append( '\n' );
+        sb.append( "architectures " ).append( String.join( " ", architectures ) ).append( '\n' );
+        sb.append( "settings " ).append( extra ).append( '\n' );
+        for( Map.Entry<String,String> index : indexes.entrySet() ){
+            sb.append( "index " ).append( index.getKey() ).append( ' ' ).append( index.getValue() ).append( '\n' );
+        }
+        sb.append( "pbuilderrc\n" ).append( config.toConfigFileString() );
+
+        return HexFormat.of().formatHex( FileHashes.newSha256().digest( sb.toString().getBytes( StandardCharsets.UTF_8 ) ) );
+    }
+
+    /**
+     * Find the newest successful build of the job before this one that
+     * built a package with the same fingerprint, and still has its artifacts.
+     *
+     * @return The cache entry of the package in the build, or null if there
+     * is none
+     */
+    static BuildCacheAction find( Run<?,?> build, String fingerprint ){
+        Run<?,?> previous = build.getPreviousBuild();
+        for( int x = 0; x < MAX_BUILDS && previous != null; x++, previous = previous.getPreviousBuild() ){
+            if( previous.isBuilding() || previous.getResult() != Result.SUCCESS || !previous.getHasArtifacts() ){
+                continue;
+            }
+
+            for( BuildCacheAction action : previous.getActions( BuildCacheAction.class ) ){
+                if( action.getFingerprint().equals( fingerprint ) ){
+                    return action;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Copy the artifacts of a package from an earlier build into a directory.
+     *
+     * @return False if any of the artifacts no longer exist, in which case
+     * nothing is copied
+     */
+    static boolean restore( BuildCacheAction cached, FilePath target, PrintStream logger )
+            throws IOException, InterruptedException {
+        Run<?,?> from = cached.getRun();
+        VirtualFile root = from.getArtifactManager().root();
+        Map<String,VirtualFile> files = new TreeMap<>();
+
+        for( String artifact : cached.getArtifacts() ){
+            VirtualFile file = root;
+            for( String part : artifact.split( "/" ) ){
+                file = file.child( part );
+            }
+
+            if( !file.isFile() ){
+                logger.println( "Build cache: " + artifact + " of " + from.getFullDisplayName() + " no longer exists" );
+                return false;
+            }
+            files.put( artifact, file );
+        }
+
+        for( Map.Entry<String,VirtualFile> file : files.entrySet() ){
+            FilePath copy = target.child( file.getKey() );
+            copy.getParent().mkdirs();
+            try( InputStream is = file.getValue().open() ){
+                copy.copyFrom( is );
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Get the version of the source package that an earlier build built,
+     * from the name of its .dsc.
+     *
+     * @return The version, or null if the build has no .dsc
+     */
+    static String getVersion( BuildCacheAction cached ){
+        for( String artifact : cached.getArtifacts() ){
+            String name = artifact.substring( artifact.lastIndexOf( '/' ) + 1 );
+            int underscore = name.indexOf( '_' );
+            if( name.endsWith( ".dsc" ) && underscore > 0 ){
+                return name.substring( underscore + 1, name.length() - ".dsc".length() );
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Hash the paths, types, permissions and contents of everything in the
+     * source tree and the hookdir, and the upstream tarballs in the
+     * directory this is run on.  Version control directories are skipped.
+     */
+    private static final class HashSources implements FilePath.FileCallable<String> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String m_sourceDir;
+        private final String m_origPrefix;
+
+        HashSources( String sourceDir, String origPrefix ){
+            m_sourceDir = sourceDir;
+            m_origPrefix = origPrefix;
+        }
+
+        @Override
+        public String invoke( File f, VirtualChannel channel ) throws IOException, InterruptedException {
+            MessageDigest digest = FileHashes.newSha256();
+            Path workspace = f.toPath();
+
+            hashTree( digest, workspace, workspace.resolve( m_sourceDir ) );
+            hashTree( digest, workspace, workspace.resolve( "hookdir" ) );
+
+            try( Stream<Path> files = Files.list( workspace ) ){
+                for( Path orig : files.filter( p -> p.getFileName().toString().startsWith( m_origPrefix ) )
+                        .sorted()
+                        .collect( Collectors.toList() ) ){
+                    hashFile( digest, workspace, orig );
+                }
+            }
+
+            return HexFormat.of().formatHex( digest.digest() );
+        }
+
+        private static void hashTree( MessageDigest digest, Path workspace, Path dir ) throws IOException {
+            if( !Files.isDirectory( dir ) ){
+                return;
+            }
+
+            List<Path> paths;
+            try( Stream<Path> walk = Files.walk( dir ) ){
+                paths = walk.filter( p -> !isInVcsDirectory( dir.relativize( p ) ) )
+                        .sorted()
+                        .collect( Collectors.toList() );
+            }
+
+            for( Path path : paths ){
+                hashFile( digest, workspace, path );
+            }
+        }
+
+        private static boolean isInVcsDirectory( Path relative ){
+            for( Path part : relative ){
+                for( String vcs : VCS_DIRECTORIES ){
+                    if( part.toString().equals( vcs ) ){
+                        return true;
+                    }
+                }
+            }
+
+            return false;
+        }
+
+        private static void hashFile( MessageDigest digest, Path workspace, Path path ) throws IOException {
+            List<String> header = new ArrayList<>();
+            header.add( workspace.relativize( path ).toString() );
+
+            if( Files.isSymbolicLink( path ) ){
+                header.add( "link" );
+                header.add( Files.readSymbolicLink( path ).toString() );
+            }else if( Files.isDirectory( path, LinkOption.NOFOLLOW_LINKS ) ){
+                header.add( "dir" );
+            }else{
+                header.add( Files.isExecutable( path ) ? "exec" : "file" );
+                header.add( Long.toString( Files.size( path ) ) );
+            }
+
+            digest.update( (String.join( "\0", header ) + "\n").getBytes( StandardCharsets.UTF_8 ) );
+
+            if( Files.isRegularFile( path, LinkOption.NOFOLLOW_LINKS ) ){
+                FileHashes.update( digest, path );
+            }
+        }
+
+        @Override
+        public void checkRoles( RoleChecker checker ) throws SecurityException {}
+    }
+}
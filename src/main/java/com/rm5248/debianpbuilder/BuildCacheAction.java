@@ -0,0 +1,52 @@
+package com.rm5248.debianpbuilder;
+
+import hudson.model.InvisibleAction;
+import hudson.model.Run;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import jenkins.model.RunAction2;
+
+/**
+ * The fingerprint of the inputs of a package that was built, and the
+ * artifacts that were built from them.  A later build with the same
+ * fingerprint can use these artifacts instead of building the package again.
+ *
+ * A build has one of these for every package that it built.
+ */
+public class BuildCacheAction extends InvisibleAction implements RunAction2 {
+
+    private final String m_fingerprint;
+    private final ArrayList<String> m_artifacts;
+    private transient Run<?,?> m_run;
+
+    BuildCacheAction( String fingerprint, List<String> artifacts ){
+        m_fingerprint = fingerprint;
+        m_artifacts = new ArrayList<>( artifacts );
+    }
+
+    @Override
+    public void onAttached( Run<?,?> run ){
+        m_run = run;
+    }
+
+    @Override
+    public void onLoad( Run<?,?> run ){
+        m_run = run;
+    }
+
+    public Run<?,?> getRun(){
+        return m_run;
+    }
+
+    public String getFingerprint(){
+        return m_fingerprint;
+    }
+
+    /**
+     * The paths of the artifacts, relative to the artifacts of the build.
+     */
+    public List<String> getArtifacts(){
+        return Collections.unmodifiableList( m_artifacts );
+    }
+}
@@ -0,0 +1,198 @@
+package com.rm5248.debianpbuilder;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import org.jenkinsci.remoting.RoleChecker;
+
+/**
+ * A cowbuilder base that has the build dependencies of a package already
+ * installed.
+ *
+ * Layers are copies of the base with the build dependencies installed, named
+ * after a hash of the build dependencies of the package, the distribution,
+ * the architecture and the generation of the base they were made from.  A
+ * package whose build dependencies have not changed since the last build,
+ * and whose base has not been updated since, is built using the layer and
+ * so doesn't have to install its build dependencies again.
+ *
+ * Builds hold a shared lock on the layer that they use; creating or removing
+ * a layer takes an exclusive lock.
+ */
+final class BuildDepsLayer {
+
+    static final String LAYER_DIRECTORY = "/var/cache/pbuilder/layers";
+
+    private static final String[] DEPENDENCY_FIELDS = {
+        "build-depends",
+        "build-depends-arch",
+        "build-depends-indep",
+        "build-conflicts",
+        "build-conflicts-arch",
+        "build-conflicts-indep"
+    };
+
+    /**
+     * Creates a layer from a base, unless it already exists.
+     *
+     * Arguments: layer path, layer lock file, base path, lock timeout in
+     * seconds(0 waits forever), then the arguments for cowbuilder --execute
+     * without --basepath.
+     *
+     * This must be run while holding the shared lock on the base.  The
+     * commands run with sudo are given by their full path, as they are
+     * listed in the sudoers entries in the README.
+     */
+    static final String CREATE_SCRIPT = String.join( "\n",
+            "layer=\"$1\"; lock=\"$2\"; base=\"$3\"; timeout=\"$4\"; shift 4",
+            "exec 8>>\"$lock\" || exit 1",
+            "if [ \"$timeout\" -gt 0 ]; then flock -x -w \"$timeout\" 8; else flock -x 8; fi || exit " + PbuilderInterface.LOCK_TIMEOUT_STATUS,
+            "[ -d \"$layer\" ] && exit 0",
+            "echo \"Creating build dependency layer $layer\"",
+            "sudo /bin/mkdir -p " + LAYER_DIRECTORY + " && sudo /bin/rm -rf \"$layer.tmp\" || exit 1",
+            "generation=$(readlink \"$base\") || generation=\"$base\"",
+            "sudo /bin/cp -a --reflink=auto \"$generation\" \"$layer.tmp\" || exit 1",
+            "sudo cowbuilder --execute --basepath \"$layer.tmp\" --save-after-exec \"$@\" || { sudo /bin/rm -rf \"$layer.tmp\"; exit 1; }",
+            "sudo /bin/mv -T \"$layer.tmp\" \"$layer\"" );
+
+    /**
+     * Removes a layer if no build is using it.
+     *
+     * Arguments: layer path, layer lock file
+     */
+    static final String REMOVE_SCRIPT = String.join( "\n",
+            "exec 8>>\"$1\" || exit 1",
+            "flock -n -x 8 || exit 1",
+            "sudo /bin/rm -rf \"$0\" && rm -f \"$1\"" );
+
+    /**
+     * Run inside of the chroot to install the build dependencies of a .dsc
+     */
+    static final String INSTALL_SCRIPT = String.join( "\n",
+            "#!/bin/sh",
+            "# Generated by the Jenkins debian-pbuilder plugin",
+            "set -e",
+            "apt-get update",
+            "apt-get -y --no-install-recommends build-dep \"$1\"",
+            "apt-get clean",
+            "" );
+
+    private BuildDepsLayer(){}
+
+    static String getLockfile( String layer ){
+        return "/var/run/lock/debian-pbuilder-layer-" + layer.substring( layer.lastIndexOf( '/' ) + 1 );
+    }
+
+    /**
+     * Computes the name of the layer for a .dsc.  Returns null if the base
+     * does not exist or the package has no build dependencies.
+     */
+    static final class Key implements FilePath.FileCallable<String> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String m_basePath;
+        private final String m_distribution;
+        private final String m_arch;
+
+        Key( String basePath, String distribution, String arch ){
+            m_basePath = basePath;
+            m_distribution = distribution;
+            m_arch = arch;
+        }
+
+        @Override
+        public String invoke( File dsc, VirtualChannel channel ) throws IOException, InterruptedException {
+            Path base = new File( m_basePath ).toPath();
+            Path status = base.resolve( "var/lib/dpkg/status" );
+            if( !Files.exists( status ) ){
+                return null;
+            }
+
+            Map<String,String> fields = getDependencyFields( dsc.toPath() );
+            if( fields.isEmpty() ){
+                return null;
+            }
+
+            MessageDigest digest;
+            try{
+                digest = MessageDigest.getInstance( "SHA-256" );
+            }catch( NoSuchAlgorithmException ex ){
+                throw new IOException( ex );
+            }
+
+            StringBuilder sb = new StringBuilder();
+            for( Map.Entry<String,String> field : fields.entrySet() ){
+                sb.append( field.getKey() ).append( ": " ).append( field.getValue() ).append( "\n" );
+            }
+            // The base generation: which base it is, and when it was last changed
+            sb.append( base.toRealPath() ).append( "\n" );
+            sb.append( Files.getLastModifiedTime( status ).toMillis() ).append( "\n" );
+            // Updating the base with --override-config may only change its
+            // mirrors, which the layer has to pick up too
+            Path sources = base.resolve( "etc/apt/sources.list" );
+            if( Files.isRegularFile( sources ) ){
+                sb.append( new String( Files.readAllBytes( sources ), StandardCharsets.UTF_8 ) );
+            }
+
+            String hash = HexFormat.of().formatHex( digest.digest( sb.toString().getBytes( StandardCharsets.UTF_8 ) ) );
+
+            return m_distribution + "-" + m_arch + "-" + hash.substring( 0, 16 );
+        }
+
+        @Override
+        public void checkRoles( RoleChecker checker ) throws SecurityException {}
+    }
+
+    /**
+     * Read the build dependency fields from a .dsc, with whitespace normalized.
+     */
+    static Map<String,String> getDependencyFields( Path dsc ) throws IOException {
+        Map<String,String> fields = new TreeMap<>();
+        String currentField = null;
+
+        try( BufferedReader reader = Files.newBufferedReader( dsc, StandardCharsets.UTF_8 ) ){
+            String line;
+            while( (line = reader.readLine()) != null ){
+                if( line.startsWith( " " ) || line.startsWith( "\t" ) ){
+                    if( currentField != null ){
+                        fields.put( currentField, fields.get( currentField ) + " " + line.trim() );
+                    }
+                    continue;
+                }
+
+                currentField = null;
+                int colon = line.indexOf( ':' );
+                if( colon < 0 ){
+                    continue;
+                }
+
+                String name = line.substring( 0, colon ).trim().toLowerCase( Locale.ROOT );
+                for( String field : DEPENDENCY_FIELDS ){
+                    if( field.equals( name ) ){
+                        currentField = name;
+                        fields.put( name, line.substring( colon + 1 ).trim() );
+                        break;
+                    }
+                }
+            }
+        }
+
+        for( Map.Entry<String,String> field : fields.entrySet() ){
+            field.setValue( field.getValue().replaceAll( "\\s+", " " ).trim() );
+        }
+
+        return fields;
+    }
+}
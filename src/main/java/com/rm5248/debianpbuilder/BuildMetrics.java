@@ -0,0 +1,245 @@
+package com.rm5248.debianpbuilder;
+
+import hudson.FilePath;
+import hudson.model.Computer;
+import java.io.PrintWriter;
+import java.io.Serializable;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAdder;
+
+/**
+ * Counters and histograms of how builds are doing on all of the nodes.
+ *
+ * These are kept in memory on the controller since it was started, and are
+ * served in the Prometheus text exposition format by
+ * {@link DebianPbuilderRootAction}.
+ */
+final class BuildMetrics {
+
+    private static final String PREFIX = "debian_pbuilder_";
+
+    private static final double[] DURATION_BUCKETS = {
+        1, 5, 15, 30, 60, 120, 300, 600, 1200, 1800, 3600, 7200
+    };
+    private static final double[] LOCK_WAIT_BUCKETS = {
+        0, 1, 5, 15, 30, 60, 300, 600, 1800, 3600
+    };
+
+    private static final Family BUILD_DURATION = new Family( "build_duration_seconds", "histogram",
+            "How long building the package in the chroot took", DURATION_BUCKETS );
+    private static final Family BASE_DURATION = new Family( "base_duration_seconds", "histogram",
+            "How long creating or updating the base took", DURATION_BUCKETS );
+    private static final Family LOCK_WAIT = new Family( "lock_wait_seconds", "histogram",
+            "How long we waited for the lock on a base", LOCK_WAIT_BUCKETS );
+    private static final Family BASE_OPERATIONS = new Family( "base_operations_total", "counter",
+            "How many times the base was created, updated, or not updated because it was fresh", null );
+    private static final Family BUILDS = new Family( "builds_total", "counter",
+            "How many packages were built, by result", null );
+    private static final Family FAILURES = new Family( "failures_total", "counter",
+            "How many builds failed, by the phase that failed", null );
+
+    private static final Family[] FAMILIES = {
+        BUILDS, BUILD_DURATION, BASE_OPERATIONS, BASE_DURATION, LOCK_WAIT, FAILURES
+    };
+
+    private BuildMetrics(){}
+
+    /**
+     * The labels that every metric has.
+     */
+    static final class Labels implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String m_distribution;
+        private final String m_architecture;
+        private final String m_backend;
+        private final String m_agent;
+
+        Labels( String distribution, String architecture, String backend, String agent ){
+            m_distribution = distribution == null ? "unknown" : distribution;
+            m_architecture = architecture == null ? "unknown" : architecture;
+            m_backend = backend == null ? "unknown" : backend;
+            m_agent = agent == null ? "unknown" : agent;
+        }
+
+        /**
+         * Get the labels for a build on the node that the workspace is on.
+         */
+        static Labels forWorkspace( FilePath workspace, String distribution, String architecture, Object backend ){
+            Computer computer = workspace == null ? null : workspace.toComputer();
+            String agent = null;
+            if( computer != null ){
+                agent = computer.getName().isEmpty() ? "built-in" : computer.getName();
+            }
+
+            return new Labels( distribution, architecture, backend == null ? null : backend.toString(), agent );
+        }
+
+        private Map<String,String> toMap(){
+            Map<String,String> map = new TreeMap<>();
+            map.put( "agent", m_agent );
+            map.put( "architecture", m_architecture );
+            map.put( "backend", m_backend );
+            map.put( "distribution", m_distribution );
+            return map;
+        }
+    }
+
+    /**
+     * A package was built in the chroot.
+     */
+    static void recordBuild( Labels labels, boolean success, long millis ){
+        String result = success ? "success" : "failure";
+        BUILDS.counter( labels, "result", result ).incrementAndGet();
+        BUILD_DURATION.histogram( labels, "result", result ).observe( millis / 1000.0 );
+    }
+
+    /**
+     * The base was created or updated.
+     *
+     * @param operation create or update
+     */
+    static void recordBaseOperation( Labels labels, String operation, boolean success, long millis ){
+        BASE_OPERATIONS.counter( labels, "operation", operation, "result", success ? "success" : "failure" ).incrementAndGet();
+        BASE_DURATION.histogram( labels, "operation", operation ).observe( millis / 1000.0 );
+    }
+
+    /**
+     * The base was not updated because it was fresh enough.
+     */
+    static void recordBaseSkipped( Labels labels ){
+        BASE_OPERATIONS.counter( labels, "operation", "skip", "result", "success" ).incrementAndGet();
+    }
+
+    /**
+     * @param lockType shared or exclusive
+     */
+    static void recordLockWait( Labels labels, String lockType, long seconds ){
+        LOCK_WAIT.histogram( labels, "lock", lockType ).observe( seconds );
+    }
+
+    static void recordFailure( Labels labels, String phase ){
+        FAILURES.counter( labels, "phase", phase ).incrementAndGet();
+    }
+
+    /**
+     * Write all of the metrics in the Prometheus text exposition format.
+     */
+    static void write( PrintWriter w ){
+        for( Family family : FAMILIES ){
+            family.write( w );
+        }
+    }
+
+    /**
+     * All of the series of one metric.
+     */
+    private static final class Family {
+        private final String m_name;
+        private final String m_type;
+        private final String m_help;
+        private final double[] m_buckets;
+        private final Map<String,Object> m_series = new ConcurrentHashMap<>();
+
+        Family( String name, String type, String help, double[] buckets ){
+            m_name = PREFIX + name;
+            m_type = type;
+            m_help = help;
+            m_buckets = buckets;
+        }
+
+        AtomicLong counter( Labels labels, String ... extraLabels ){
+            return (AtomicLong)m_series.computeIfAbsent( formatLabels( labels, extraLabels ),
+                    k -> new AtomicLong() );
+        }
+
+        Histogram histogram( Labels labels, String ... extraLabels ){
+            return (Histogram)m_series.computeIfAbsent( formatLabels( labels, extraLabels ),
+                    k -> new Histogram( m_buckets ) );
+        }
+
+        void write( PrintWriter w ){
+            w.println( "# HELP " + m_name + " " + m_help );
+            w.println( "# TYPE " + m_name + " " + m_type );
+
+            for( Map.Entry<String,Object> series : new TreeMap<>( m_series ).entrySet() ){
+                String labels = series.getKey();
+                if( series.getValue() instanceof AtomicLong ){
+                    w.println( m_name + "{" + labels + "} " + ((AtomicLong)series.getValue()).get() );
+                    continue;
+                }
+
+                Histogram histogram = (Histogram)series.getValue();
+                synchronized( histogram ){
+                    long cumulative = 0;
+                    for( int x = 0; x < m_buckets.length; x++ ){
+                        cumulative += histogram.m_counts.get( x );
+                        w.println( m_name + "_bucket{" + labels + ",le=\"" + formatNumber( m_buckets[ x ] ) + "\"} " + cumulative );
+                    }
+                    w.println( m_name + "_bucket{" + labels + ",le=\"+Inf\"} " + histogram.m_count.get() );
+                    w.println( m_name + "_sum{" + labels + "} " + formatNumber( histogram.m_sum.sum() ) );
+                    w.println( m_name + "_count{" + labels + "} " + histogram.m_count.get() );
+                }
+            }
+        }
+    }
+
+    private static final class Histogram {
+        private final double[] m_buckets;
+        private final AtomicLongArray m_counts;
+        private final DoubleAdder m_sum = new DoubleAdder();
+        private final AtomicLong m_count = new AtomicLong();
+
+        Histogram( double[] buckets ){
+            m_buckets = buckets;
+            m_counts = new AtomicLongArray( buckets.length );
+        }
+
+        synchronized void observe( double value ){
+            for( int x = 0; x < m_buckets.length; x++ ){
+                if( value <= m_buckets[ x ] ){
+                    m_counts.incrementAndGet( x );
+                    break;
+                }
+            }
+            m_sum.add( value );
+            m_count.incrementAndGet();
+        }
+    }
+
+    private static String formatLabels( Labels labels, String ... extraLabels ){
+        Map<String,String> all = labels.toMap();
+        for( int x = 0; x + 1 < extraLabels.length; x += 2 ){
+            all.put( extraLabels[ x ], extraLabels[ x + 1 ] );
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for( Map.Entry<String,String> label : all.entrySet() ){
+            if( sb.length() > 0 ){
+                sb.append( ',' );
+            }
+            sb.append( label.getKey() ).append( "=\"" ).append( escape( label.getValue() ) ).append( '"' );
+        }
+
+        return sb.toString();
+    }
+
+    private static String escape( String value ){
+        return value.replace( "\\", "\\\\" )
+                .replace( "\"", "\\\"" )
+                .replace( "\n", "\\n" );
+    }
+
+    private static String formatNumber( double value ){
+        if( value == Math.rint( value ) && !Double.isInfinite( value ) ){
+            return Long.toString( (long)value );
+        }
+
+        return Double.toString( value );
+    }
+}
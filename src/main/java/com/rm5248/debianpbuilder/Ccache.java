@@ -0,0 +1,81 @@
+package com.rm5248.debianpbuilder;
+
+import hudson.FilePath;
+import java.io.IOException;
+
+/**
+ * A ccache directory for one source package and architecture on a node.
+ *
+ * The directory is bind mounted into the chroot and ccache is put first in
+ * the PATH of the build, so that rebuilding a package only has to compile
+ * what has changed since the last build.
+ */
+final class Ccache {
+
+    private static final String SETUP_HOOK = "D80debian-pbuilder-ccache";
+    private static final String REPORT_HOOK = "B90debian-pbuilder-ccache";
+
+    private final FilePath m_directory;
+    private final int m_maxSizeMb;
+
+    private Ccache( FilePath directory, int maxSizeMb ){
+        m_directory = directory;
+        m_maxSizeMb = maxSizeMb;
+    }
+
+    /**
+     * Get the ccache directory for the node that the workspace is on.
+     *
+     * @return The cache, or null if the node has no root directory
+     */
+    static Ccache forNode( FilePath workspace, String packageName, String arch, int maxSizeMb ){
+        FilePath caches = NodeDirectories.get( workspace, "ccache" );
+
+        if( caches == null ){
+            return null;
+        }
+
+        return new Ccache( caches.child( packageName + "-" + arch ), maxSizeMb );
+    }
+
+    String getPath(){
+        return m_directory.getRemote();
+    }
+
+    /**
+     * Set up the pbuilder configuration and hooks to use this cache.
+     */
+    void apply( PbuilderConfiguration config, HookDirectory hooks ) throws IOException, InterruptedException {
+        m_directory.mkdirs();
+        // The build runs as the pbuilder build user, not as us
+        m_directory.chmod( 0777 );
+
+        config.addBindMount( getPath() );
+        config.addExtraPackages( "ccache" );
+        config.addExport( "CCACHE_DIR", getPath() );
+        config.addExport( "CCACHE_UMASK", "000" );
+        config.addExport( "PATH", "/usr/lib/ccache:$PATH" );
+
+        // EXTRAPACKAGES is only installed when the base is created or updated,
+        // so make sure that ccache is there in case the base is older than that
+        hooks.addHook( SETUP_HOOK, String.join( "\n",
+                "#!/bin/sh",
+                "# Generated by the Jenkins debian-pbuilder plugin",
+                "export CCACHE_DIR='" + getPath() + "'",
+                "export CCACHE_UMASK=000",
+                "if ! command -v ccache > /dev/null; then",
+                "    apt-get install -y ccache || exit 0",
+                "fi",
+                "ccache --max-size " + m_maxSizeMb + "M",
+                "ccache --zero-stats",
+                "" ) );
+        hooks.addHook( REPORT_HOOK, String.join( "\n",
+                "#!/bin/sh",
+                "# Generated by the Jenkins debian-pbuilder plugin",
+                "export CCACHE_DIR='" + getPath() + "'",
+                "command -v ccache > /dev/null || exit 0",
+                "echo \"ccache statistics for $CCACHE_DIR:\"",
+                "ccache --show-stats",
+                "" ) );
+    }
+}
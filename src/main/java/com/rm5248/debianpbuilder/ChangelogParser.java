@@ -0,0 +1,213 @@
+package com.rm5248.debianpbuilder;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.jenkinsci.remoting.RoleChecker;
+
+/**
+ * Parses the topmost entry of a debian/changelog file on the node that holds it.
+ *
+ * This gives us the same information as dpkg-parsechangelog, but without having
+ * to start a new process for every field that we want.  Only the first entry
+ * is read; the rest of the file is never touched.
+ *
+ * See deb-changelog(5) for the format that we understand.
+ */
+class ChangelogParser implements FilePath.FileCallable<ChangelogParser.ChangelogEntry> {
+
+    private static final long serialVersionUID = 1L;
+
+    // These are the same expressions that dpkg uses in Dpkg::Changelog::Entry::Debian
+    private static final Pattern HEADER_PATTERN = Pattern.compile(
+            "^(\\w[-+0-9a-z.]*) \\(([^\\(\\) \\t]+)\\)((?:\\s+[-+0-9a-z.]+)+)\\;(.*?)\\s*$",
+            Pattern.CASE_INSENSITIVE );
+    private static final Pattern TRAILER_PATTERN = Pattern.compile(
+            "^ \\-\\- (.*) <(.*)>(  ?)(.*)$" );
+
+    /**
+     * The fields of a single changelog entry that we care about.
+     */
+    static final class ChangelogEntry implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private String m_source;
+        private String m_version;
+        private String m_distribution;
+        private String m_urgency;
+        private String m_maintainer;
+
+        String getSource(){
+            return m_source;
+        }
+
+        String getVersion(){
+            return m_version;
+        }
+
+        /**
+         * The version without the epoch and the Debian revision.
+         */
+        String getUpstreamVersion(){
+            return m_version.replaceFirst( "^[0-9]+:", "" ).replaceFirst( "-[^-]*$", "" );
+        }
+
+        String getDistribution(){
+            return m_distribution;
+        }
+
+        String getUrgency(){
+            return m_urgency;
+        }
+
+        String getMaintainer(){
+            return m_maintainer;
+        }
+
+        /**
+         * True if all of the fields that we need in order to build have been found.
+         */
+        boolean isComplete(){
+            return m_source != null &&
+                    m_version != null &&
+                    m_distribution != null &&
+                    m_maintainer != null;
+        }
+    }
+
+    @Override
+    public ChangelogEntry invoke( File f, VirtualChannel channel ) throws IOException, InterruptedException {
+        if( !f.isFile() ){
+            return null;
+        }
+
+        // Files.newBufferedReader throws on anything that is not valid UTF-8,
+        // while dpkg-parsechangelog doesn't care; old changelogs in latin-1
+        // are not unusual, so replace what can't be decoded instead
+        try( BufferedReader reader = new BufferedReader(
+                new InputStreamReader( Files.newInputStream( f.toPath() ), StandardCharsets.UTF_8 ) ) ){
+            return parseTopEntry( reader );
+        }
+    }
+
+    @Override
+    public void checkRoles( RoleChecker checker ) throws SecurityException {}
+
+    /**
+     * Read the first entry from the given changelog.
+     *
+     * @param reader Where to read the changelog from
+     * @return The entry, or null if the first entry is not valid
+     * @throws IOException
+     */
+    static ChangelogEntry parseTopEntry( BufferedReader reader ) throws IOException {
+        ChangelogEntry entry = null;
+        String line;
+
+        while( (line = reader.readLine()) != null ){
+            if( entry == null ){
+                if( line.trim().isEmpty() ){
+                    continue;
+                }
+
+                Matcher header = HEADER_PATTERN.matcher( line );
+                if( !header.matches() ){
+                    // First non-blank line must be the header, otherwise
+                    // this isn't something that we know how to deal with
+                    return null;
+                }
+
+                entry = new ChangelogEntry();
+                entry.m_source = header.group( 1 );
+                entry.m_version = header.group( 2 );
+                entry.m_distribution = header.group( 3 ).trim().replaceAll( "\\s+", " " );
+                entry.m_urgency = getUrgency( header.group( 4 ) );
+                continue;
+            }
+
+            if( HEADER_PATTERN.matcher( line ).matches() ){
+                // Got to the next entry without finding a trailer
+                break;
+            }
+
+            Matcher trailer = TRAILER_PATTERN.matcher( line );
+            if( trailer.matches() ){
+                entry.m_maintainer = trailer.group( 1 ) + " <" + trailer.group( 2 ) + ">";
+                break;
+            }
+        }
+
+        if( entry == null || !entry.isComplete() ){
+            return null;
+        }
+
+        return entry;
+    }
+
+    /**
+     * Parse the output of 'dpkg-parsechangelog --count 1' into an entry.
+     *
+     * @param is The stdout of dpkg-parsechangelog
+     * @return The entry, or null if not all of the needed fields were found
+     * @throws IOException
+     */
+    static ChangelogEntry parseDpkgOutput( InputStream is ) throws IOException {
+        ChangelogEntry entry = new ChangelogEntry();
+        BufferedReader reader = new BufferedReader( new InputStreamReader( is, StandardCharsets.UTF_8 ) );
+        String line;
+
+        while( (line = reader.readLine()) != null ){
+            int colon = line.indexOf( ':' );
+            if( line.startsWith( " " ) || colon < 0 ){
+                // Continuation line(e.g. Changes) or garbage
+                continue;
+            }
+
+            String field = line.substring( 0, colon );
+            String value = line.substring( colon + 1 ).trim();
+
+            if( field.equalsIgnoreCase( "Source" ) ){
+                entry.m_source = value;
+            }else if( field.equalsIgnoreCase( "Version" ) ){
+                entry.m_version = value;
+            }else if( field.equalsIgnoreCase( "Distribution" ) ){
+                entry.m_distribution = value;
+            }else if( field.equalsIgnoreCase( "Urgency" ) ){
+                entry.m_urgency = value;
+            }else if( field.equalsIgnoreCase( "Maintainer" ) ){
+                entry.m_maintainer = value;
+            }
+        }
+
+        if( !entry.isComplete() ){
+            return null;
+        }
+
+        return entry;
+    }
+
+    private static String getUrgency( String keyValues ){
+        for( String keyValue : keyValues.split( "," ) ){
+            int equals = keyValue.indexOf( '=' );
+            if( equals < 0 ){
+                continue;
+            }
+
+            if( keyValue.substring( 0, equals ).trim().equalsIgnoreCase( "urgency" ) ){
+                return keyValue.substring( equals + 1 ).trim();
+            }
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,140 @@
+package com.rm5248.debianpbuilder;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Logger;
+import jenkins.security.MasterToSlaveCallable;
+
+/**
+ * Shares the cores of a node between the builds that are running on it.
+ *
+ * Builds that are set to use all of the cores ask for a share of them when
+ * they start, and give it back once they are done.  Each build gets an equal
+ * share of the cores, counting itself and the builds already running(or the
+ * number of builds that Jenkins says are running on the node, if that is
+ * more), but never more than the cores that are not already given out(and
+ * always at least one).  The cores that a build had are handed out again to
+ * the builds that start after it finishes.
+ *
+ * The budget is kept in the agent process, so it covers every build done by
+ * this plugin on the node.
+ */
+final class CoreBudget {
+    private static final Logger LOGGER = Logger.getLogger( CoreBudget.class.getName() );
+
+    private static final Map<String,Integer> s_grants = new HashMap<>();
+    private static int s_granted;
+
+    private CoreBudget(){}
+
+    /**
+     * The cores given to one build.
+     */
+    static final class Grant implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String m_id;
+        private final int m_cores;
+        private final int m_totalCores;
+        private final int m_activeBuilds;
+
+        Grant( String id, int cores, int totalCores, int activeBuilds ){
+            m_id = id;
+            m_cores = cores;
+            m_totalCores = totalCores;
+            m_activeBuilds = activeBuilds;
+        }
+
+        String getId(){
+            return m_id;
+        }
+
+        /**
+         * How many cores the build may use
+         */
+        int getCores(){
+            return m_cores;
+        }
+
+        /**
+         * How many cores the node has
+         */
+        int getTotalCores(){
+            return m_totalCores;
+        }
+
+        /**
+         * How many builds have cores, including this one
+         */
+        int getActiveBuilds(){
+            return m_activeBuilds;
+        }
+    }
+
+    static synchronized Grant acquire( int totalCores, int expectedBuilds ){
+        int builds = Math.max( s_grants.size() + 1, expectedBuilds );
+        int fairShare = totalCores / builds;
+        int cores = Math.max( 1, Math.min( fairShare, totalCores - s_granted ) );
+        String id = UUID.randomUUID().toString();
+
+        s_grants.put( id, cores );
+        s_granted += cores;
+        LOGGER.fine( "Granted " + cores + " of " + totalCores + " cores to " + id );
+
+        return new Grant( id, cores, totalCores, builds );
+    }
+
+    static synchronized void release( String id ){
+        Integer cores = s_grants.remove( id );
+        if( cores != null ){
+            s_granted -= cores;
+            LOGGER.fine( "Released " + cores + " cores from " + id );
+        }
+    }
+
+    /**
+     * Get a share of the cores of the node that this is run on.
+     */
+    static final class Acquire extends MasterToSlaveCallable<Grant,RuntimeException> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int m_expectedBuilds;
+
+        /**
+         * @param expectedBuilds How many builds we think are running on the
+         * node, including this one
+         */
+        Acquire( int expectedBuilds ){
+            m_expectedBuilds = expectedBuilds;
+        }
+
+        @Override
+        public Grant call(){
+            return acquire( Runtime.getRuntime().availableProcessors(), m_expectedBuilds );
+        }
+    }
+
+    /**
+     * Give back the cores of a grant on the node that this is run on.
+     */
+    static final class Release extends MasterToSlaveCallable<Void,RuntimeException> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String m_id;
+
+        Release( String id ){
+            m_id = id;
+        }
+
+        @Override
+        public Void call(){
+            release( m_id );
+            return null;
+        }
+    }
+}
@@ -7,8 +7,12 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 /**
@@ -18,11 +22,98 @@ import java.util.logging.Logger;
 class CowbuilderHelper extends PbuilderInterface {
     private static final Logger LOGGER = Logger.getLogger( CowbuilderHelper.class.getName() );
 
+    /**
+     * Exit status of {@link #GENERATION_CHECK_SCRIPT} if the generation went away
+     */
+    static final int GENERATION_GONE_STATUS = 76;
+
+    /**
+     * Creates or updates a double-buffered base.  The base path is a symbolic
+     * link to one of two generations(base.a and base.b).  Updates are done
+     * on the generation that is not in use, and the link is then atomically
+     * switched over to it.  Builds hold a shared lock on the generation that
+     * they use, so a generation is only removed while no build is using it.
+     *
+     * Arguments: create, update or clean, base path, prefix of the generation
+     * lock files, lock timeout in seconds(0 waits forever), then the arguments
+     * for cowbuilder without --basepath.
+     *
+     * Creating and updating must be run while holding the exclusive lock on
+     * the base.  Cleaning removes the generation that is not in use, if no
+     * build is using it; it takes the exclusive lock on the base itself, and
+     * does nothing if it can't get it straight away.
+     *
+     * The commands run with sudo are given by their full path, as they are
+     * listed in the sudoers entries in the README.
+     */
+    private static final String DOUBLE_BUFFER_SCRIPT = String.join( "\n",
+            "action=\"$1\"; base=\"$2\"; genlock=\"$3\"; timeout=\"$4\"; shift 4",
+            "lockgen() {",
+            "    if [ \"$timeout\" -gt 0 ]; then flock -x -w \"$timeout\" \"$1\"; else flock -x \"$1\"; fi",
+            "}",
+            "switchto() {",
+            "    sudo /bin/ln -sfn \"$1\" \"$base.new\" && sudo /bin/mv -T \"$base.new\" \"$base\"",
+            "}",
+            "removeunused() {",
+            "    [ -e \"$1\" ] || return 0",
+            "    exec 7>>\"$2\" || return 0",
+            "    if flock -n -x 7; then",
+            "        echo \"Removing unused generation $1\"",
+            "        sudo /bin/rm -rf \"$1\"",
+            "    fi",
+            "    exec 7>&-",
+            "}",
+            "if [ \"$action\" = create ]; then",
+            "    sudo /bin/rm -rf \"$base.a\" && sudo cowbuilder --create --basepath \"$base.a\" \"$@\" && switchto \"$base.a\" || exit 1",
+            "    removeunused \"$base.b\" \"$genlock.b\"",
+            "    exit 0",
+            "fi",
+            "if [ \"$action\" = clean ]; then",
+            "    exec 6>>\"$genlock.update\" && flock -n -x 6 || exit 0",
+            "    [ -L \"$base\" ] || exit 0",
+            "fi",
+            "if [ ! -L \"$base\" ]; then",
+            "    echo \"Moving $base to $base.a\"",
+            "    sudo /bin/rm -rf \"$base.a\" && sudo /bin/mv -T \"$base\" \"$base.a\" && switchto \"$base.a\" || exit 1",
+            "fi",
+            "active=$(readlink \"$base\")",
+            "case \"$active\" in",
+            "    *.a) inactive=\"$base.b\"; activelock=\"$genlock.a\"; inactivelock=\"$genlock.b\" ;;",
+            "    *) inactive=\"$base.a\"; activelock=\"$genlock.b\"; inactivelock=\"$genlock.a\" ;;",
+            "esac",
+            "if [ \"$action\" = clean ]; then",
+            "    removeunused \"$inactive\" \"$inactivelock\"",
+            "    exit 0",
+            "fi",
+            "exec 8>>\"$inactivelock\" || exit 1",
+            "if ! flock -n -x 8; then",
+            "    echo \"Waiting for builds using $inactive to finish\"",
+            "    lockgen 8 || { echo \"Timed out waiting for lock $inactivelock\"; exit " + LOCK_TIMEOUT_STATUS + "; }",
+            "fi",
+            "echo \"Updating $inactive from $active\"",
+            "sudo /bin/rm -rf \"$inactive\" && sudo /bin/cp -a --reflink=auto \"$active\" \"$inactive\" || exit 1",
+            "sudo cowbuilder --update --basepath \"$inactive\" \"$@\" || { sudo /bin/rm -rf \"$inactive\"; exit 1; }",
+            "switchto \"$inactive\" || exit 1",
+            "flock -u 8",
+            "echo \"Switched $base to $inactive\"",
+            "removeunused \"$active\" \"$activelock\"",
+            "exit 0" );
+
+    /**
+     * Runs a command only if the generation of the base given as the first
+     * argument still exists.
+     */
+    private static final String GENERATION_CHECK_SCRIPT =
+            "[ -d \"$0\" ] || exit " + GENERATION_GONE_STATUS + "; exec \"$@\"";
+
     private Path m_cowbuilderBase;
-    private String m_updateLockfile;
+    private String m_generationLockPrefix;
+    private boolean m_doubleBuffered;
+    private int m_maxBuildDepsLayers;
 
     CowbuilderHelper( FilePath workspace, Launcher launcher, PrintStream logger,
-            String architecture, String distribution, String hookdir, PbuilderConfiguration pbuilderConfig ) throws IOException, InterruptedException {
+            String architecture, String distribution, String hookdir, PbuilderConfiguration pbuilderConfig,
+            HostFacts hostFacts ) throws IOException, InterruptedException {
         m_logger = logger;
         m_hostArch = architecture;
         m_distribution = distribution;
@@ -30,7 +121,7 @@ class CowbuilderHelper extends PbuilderInterface {
         m_hookdir = hookdir;
         m_workspace = workspace;
 
-        setBuildArch();
+        setBuildArch( hostFacts );
 
         if( m_hostArch == null ){
             m_hostArch = m_buildArch;
@@ -38,8 +129,8 @@ class CowbuilderHelper extends PbuilderInterface {
 
         m_cowbuilderBase = FileSystems.getDefault().getPath( "/var/cache/pbuilder/base-" + m_distribution + "-" + m_hostArch );
 
-        String baseLockfile = "/var/run/lock/" + m_distribution + "-" + getArch();
-        m_updateLockfile = baseLockfile + ".update";
+        m_generationLockPrefix = "/var/run/lock/" + m_distribution + "-" + getArch();
+        m_baseLockfile = m_generationLockPrefix + ".update";
 
         LOGGER.fine( "Pbuilder config: " + pbuilderConfig.toConfigFileString() );
 
@@ -54,24 +145,61 @@ class CowbuilderHelper extends PbuilderInterface {
         m_pbuilderrc.act( new PbuilderConfigWriter( pbuilderConfig.toConfigFileString() ) );
     }
 
+    /**
+     * Use two copies of the base, so that updating the base never has to
+     * wait for builds that are using it.  Once a base has been made
+     * double-buffered it stays that way, and every build on the node uses
+     * it as such whether or not this is set.
+     */
+    void setDoubleBuffered( boolean doubleBuffered ){
+        m_doubleBuffered = doubleBuffered;
+    }
+
+    /**
+     * Keep up to the given number of bases with the build dependencies of
+     * packages installed; 0 to always install the build dependencies from scratch.
+     */
+    void setMaxBuildDepsLayers( int maxLayers ){
+        m_maxBuildDepsLayers = maxLayers;
+    }
+
     @Override
     public boolean createOrUpdateBase() throws IOException, InterruptedException {
         boolean baseExists = m_workspace.act( new CheckIfAbsolutePathExists( m_cowbuilderBase.toFile().getAbsolutePath() ) );
 
-        // Note: because this is not by any means an atomic operation, this could fail
-        // in the event that:
-        // 1. No base exists and two jobs start at the same time, in which case
-        //    the first one will succeed and the second one will fail
-        // Since the above only has to happen once, this is unlikely to cause
-        // issues that we really care about.
-        // Multiple updates should be fine, as one must finish before another
-        // one can do the update, and the COW functionality means it shouldn't
-        // cause an issue(?)
-        if( !baseExists ){
-            return createCowbuilderBase();
+        // Creating and updating take an exclusive lock on the base, so if two
+        // jobs start at the same time the second one waits for the first.  If
+        // the first one created or updated the base, the second one does not
+        // do it again.
+        BaseFreshness.Result freshness = checkBaseFreshness( m_cowbuilderBase.toString() );
+        // The layout of the base is the same for every job on the node, so
+        // a base that is already double-buffered is never updated in place
+        boolean doubleBuffered = m_doubleBuffered
+                || ( baseExists && m_workspace.act( new ReadSymbolicLink( m_cowbuilderBase.toString() ) ) != null );
+        boolean mirrorsChanged = baseExists && checkMirrorsChanged( m_cowbuilderBase.toString() );
+        boolean success;
+
+        if( baseExists && !mirrorsChanged && freshness != null && freshness.isFresh() ){
+            m_logger.println( "Not updating " + m_cowbuilderBase + ": " + freshness.getFreshReason() );
+            recordBaseSkipped();
+            if( doubleBuffered ){
+                removeUnusedGeneration();
+            }
+            return true;
+        }else if( baseExists ){
+            return updateExistingBase( m_cowbuilderBase.toString(), freshness,
+                    doubleBuffered ? () -> updateDoubleBufferedBase( true ) : this::updateCowbuilderBase );
+        }else if( doubleBuffered ){
+            success = timeBaseOperation( "create", () -> updateDoubleBufferedBase( false ) == 0 );
         }else{
-            return updateCowbuilderBase();
+            success = timeBaseOperation( "create", this::createCowbuilderBase );
+        }
+
+        if( success ){
+            recordBaseUpdate( m_cowbuilderBase.toString(), freshness );
         }
+
+        return success;
     }
 
     private boolean createCowbuilderBase() throws IOException, InterruptedException {
@@ -79,10 +207,8 @@ class CowbuilderHelper extends PbuilderInterface {
             .launch()
                 .pwd(m_workspace)
                 .stdout( m_logger )
-            .envs( getDistArchEnv() )
-            .cmds("flock",
-                    "-n",
-                    m_updateLockfile,
+            .envs( getDistArchEnv() );
+        int status = runInPlaceWithBaseLock( procStarter,
                     "sudo",
                     "cowbuilder",
                     "--create",
@@ -104,7 +230,6 @@ class CowbuilderHelper extends PbuilderInterface {
                     m_pbuilderrc.getName(),
                     "--hookdir",
                     m_hookdir );
-        int status = procStarter.join();
 
         if( status != 0 ){
             m_logger.println( "Unable to create cowbuilder environment(is it installed and do you have sudo privliges?)" );
@@ -114,16 +239,13 @@ class CowbuilderHelper extends PbuilderInterface {
         return true;
     }
 
-    private boolean updateCowbuilderBase() throws IOException, InterruptedException {
+    private int updateCowbuilderBase() throws IOException, InterruptedException {
         ProcStarter procStarter = m_launcher
             .launch()
                 .stdout( m_logger )
                 .pwd(m_workspace)
-            .envs( getDistArchEnv() )
-            .cmds( "flock",
-                    "-n",
-                    m_updateLockfile,
-                    "sudo",
+            .envs( getDistArchEnv() );
+        List<String> cmds = new ArrayList<>( Arrays.asList( "sudo",
                     "cowbuilder",
                     "--update",
                     "--distribution",
@@ -131,15 +253,181 @@ class CowbuilderHelper extends PbuilderInterface {
                     "--basepath",
                     m_cowbuilderBase.toString(),
                     "--configfile",
-                    m_pbuilderrc.getName() );
-        int status = procStarter.join();
+                    m_pbuilderrc.getName() ) );
+        addOverrideConfig( cmds );
+        int status = runInPlaceWithBaseLock( procStarter, cmds.toArray( new String[ 0 ] ) );
 
-        if( status != 0 ){
+        if( status != 0 && status != LOCK_TIMEOUT_STATUS ){
             m_logger.println( "Unable to create cowbuilder environment(is it installed and do you have sudo privliges?)" );
-            return false;
         }
 
-        return true;
+        return status;
+    }
+
+    /**
+     * @return The exit status of the update
+     */
+    private int updateDoubleBufferedBase( boolean baseExists ) throws IOException, InterruptedException {
+        List<String> cmds = getDoubleBufferCommand( baseExists ? "update" : "create" );
+
+        cmds.add( "--distribution" );
+        cmds.add( m_distribution );
+        cmds.add( "--configfile" );
+        cmds.add( m_pbuilderrc.getName() );
+        if( baseExists ){
+            addOverrideConfig( cmds );
+        }else{
+            cmds.addAll( Arrays.asList( "--debootstrap",
+                    getDebootstrap(),
+                    "--architecture",
+                    m_hostArch,
+                    "--debootstrapopts",
+                    "--arch",
+                    "--debootstrapopts",
+                    getArch(),
+                    "--debootstrapopts",
+                    "--variant=buildd",
+                    "--hookdir",
+                    m_hookdir ) );
+        }
+
+        ProcStarter procStarter = m_launcher
+            .launch()
+                .stdout( m_logger )
+                .pwd(m_workspace)
+            .envs( getDistArchEnv() );
+        int status = runWithBaseLock( procStarter, true, cmds.toArray( new String[ 0 ] ) );
+
+        if( status != 0 && status != LOCK_TIMEOUT_STATUS ){
+            m_logger.println( "Unable to create cowbuilder environment(is it installed and do you have sudo privliges?)" );
+        }
+
+        return status;
+    }
+
+    /**
+     * Remove the generation of the base that is not in use, if a build was
+     * still using it when the base was last updated.  This does not wait for
+     * anything; if the base is being updated, the update removes it.
+     */
+    private void removeUnusedGeneration() throws IOException, InterruptedException {
+        int status = m_launcher
+            .launch()
+                .stdout( m_logger )
+                .pwd(m_workspace)
+            .cmds( getDoubleBufferCommand( "clean" ) )
+            .join();
+
+        if( status != 0 ){
+            m_logger.println( "Unable to remove the unused generation of " + m_cowbuilderBase );
+        }
+    }
+
+    private List<String> getDoubleBufferCommand( String action ){
+        List<String> cmds = new ArrayList<>();
+
+        cmds.add( "sh" );
+        cmds.add( "-c" );
+        cmds.add( DOUBLE_BUFFER_SCRIPT );
+        cmds.add( "debian-pbuilder-double-buffer" );
+        cmds.add( action );
+        cmds.add( m_cowbuilderBase.toString() );
+        cmds.add( m_generationLockPrefix );
+        cmds.add( Long.toString( TimeUnit.MINUTES.toSeconds( m_lockTimeoutMinutes ) ) );
+
+        return cmds;
+    }
+
+    /**
+     * Find or create the build dependency layer for the given .dsc, and remove
+     * the least recently used layers if there are too many.
+     *
+     * @return The path to the layer, or null if the build should use the base
+     */
+    private String prepareBuildDepsLayer( String sourceFile ) throws IOException, InterruptedException {
+        FilePath stamps = NodeDirectories.get( m_workspace, "layers" );
+        FilePath dsc = m_workspace.child( sourceFile );
+        String name = dsc.act( new BuildDepsLayer.Key( m_cowbuilderBase.toString(), m_distribution, getArch() ) );
+
+        if( stamps == null || name == null ){
+            return null;
+        }
+
+        String layer = BuildDepsLayer.LAYER_DIRECTORY + "/" + name;
+        FilePath installScript = m_workspace.createTempFile( "builddeps", ".sh" );
+        int status;
+        try{
+            installScript.write( BuildDepsLayer.INSTALL_SCRIPT, "UTF-8" );
+            installScript.chmod( 0755 );
+
+            ProcStarter procStarter = m_launcher
+                .launch()
+                    .stdout( m_logger )
+                    .pwd(m_workspace)
+                .envs( getDistArchEnv() );
+            status = runWithBaseLock( procStarter, false,
+                    "sh",
+                    "-c",
+                    BuildDepsLayer.CREATE_SCRIPT,
+                    "debian-pbuilder-layer",
+                    layer,
+                    BuildDepsLayer.getLockfile( layer ),
+                    m_cowbuilderBase.toString(),
+                    Long.toString( TimeUnit.MINUTES.toSeconds( m_lockTimeoutMinutes ) ),
+                    "--distribution",
+                    m_distribution,
+                    "--configfile",
+                    m_pbuilderrc.getName(),
+                    "--bindmounts",
+                    m_workspace.getRemote(),
+                    "--",
+                    installScript.getRemote(),
+                    dsc.getRemote() );
+        }finally{
+            installScript.delete();
+        }
+
+        if( status != 0 ){
+            m_logger.println( "Unable to create build dependency layer " + layer + ", building from the base" );
+            return null;
+        }
+
+        stamps.mkdirs();
+        stamps.child( name ).touch( System.currentTimeMillis() );
+        removeOldBuildDepsLayers( stamps );
+
+        return layer;
+    }
+
+    private void removeOldBuildDepsLayers( FilePath stamps ) throws IOException, InterruptedException {
+        List<FilePath> layers = stamps.list();
+        if( layers.size() <= m_maxBuildDepsLayers ){
+            return;
+        }
+
+        // Most recently used first
+        List<Long> lastUsed = new ArrayList<>();
+        for( FilePath stamp : layers ){
+            lastUsed.add( stamp.lastModified() );
+        }
+        List<Integer> order = new ArrayList<>();
+        for( int x = 0; x < layers.size(); x++ ){
+            order.add( x );
+        }
+        order.sort( ( a, b ) -> Long.compare( lastUsed.get( b ), lastUsed.get( a ) ) );
+
+        for( int x : order.subList( m_maxBuildDepsLayers, order.size() ) ){
+            FilePath stamp = layers.get( x );
+            String layer = BuildDepsLayer.LAYER_DIRECTORY + "/" + stamp.getName();
+            int status = m_launcher.launch()
+                    .stdout( m_logger )
+                    .cmds( "sh", "-c", BuildDepsLayer.REMOVE_SCRIPT, layer, BuildDepsLayer.getLockfile( layer ) )
+                    .join();
+            if( status == 0 ){
+                m_logger.println( "Removed least recently used build dependency layer " + layer );
+                stamp.delete();
+            }
+        }
     }
 
     /**
@@ -167,7 +455,9 @@ class CowbuilderHelper extends PbuilderInterface {
             return false;
         }
 
-        retValue = doBuild( outputDirectory.getName(),
+        // The per-architecture output directories are not directly in the
+        // workspace, so give pbuilder the full path
+        retValue = doBuild( outputDirectory.getRemote(),
                 sourceFile.getName(),
                 numCores );
 
@@ -175,7 +465,7 @@ class CowbuilderHelper extends PbuilderInterface {
     }
 
     private boolean doBuild( String outputDir, String sourceFile, int numCores ) throws IOException, InterruptedException {
-        String debBuildOpts = "-sa";
+        String debBuildOpts = getBuildTypeOption();
         String bindMounts;
         String jLevel;
 
@@ -188,12 +478,46 @@ class CowbuilderHelper extends PbuilderInterface {
             return false;
         }
 
-        ProcStarter procStarter = m_launcher
-            .launch()
-                .pwd(m_workspace)
-                .stdout( m_logger )
-            .envs( getDistArchEnv() )
-            .cmds( "sudo",
+        String layer = null;
+        if( m_maxBuildDepsLayers > 0 ){
+            layer = prepareBuildDepsLayer( sourceFile );
+        }
+
+        int status;
+        do{
+            String basePath = m_cowbuilderBase.toString();
+            String lockfile = m_baseLockfile;
+            List<String> cmds = new ArrayList<>();
+
+            if( layer != null ){
+                basePath = layer;
+                lockfile = BuildDepsLayer.getLockfile( layer );
+                m_logger.println( "Building with build dependency layer " + layer );
+
+                // The layer may have been removed since we created it
+                cmds.add( "sh" );
+                cmds.add( "-c" );
+                cmds.add( GENERATION_CHECK_SCRIPT );
+                cmds.add( layer );
+            }else{
+                // Whether the base is double-buffered is decided by whatever
+                // is on the node, not by this job
+                String generation = m_workspace.act( new ReadSymbolicLink( basePath ) );
+                if( generation != null ){
+                    basePath = generation;
+                    lockfile = m_generationLockPrefix + generation.substring( generation.lastIndexOf( '.' ) );
+                    m_logger.println( "Building with base generation " + generation );
+
+                    // The generation may be removed by an update between finding
+                    // it and locking it, so check that it is still there
+                    cmds.add( "sh" );
+                    cmds.add( "-c" );
+                    cmds.add( GENERATION_CHECK_SCRIPT );
+                    cmds.add( generation );
+                }
+            }
+
+            cmds.addAll( Arrays.asList( "sudo",
                     "cowbuilder",
                     "--distribution",
                     m_distribution,
@@ -202,7 +526,7 @@ class CowbuilderHelper extends PbuilderInterface {
                     "--build",
                     sourceFile,
                     "--basepath",
-                    m_cowbuilderBase.toString(),
+                    basePath,
                     "--debbuildopts",
                     debBuildOpts,
                     "--debbuildopts",
@@ -210,8 +534,24 @@ class CowbuilderHelper extends PbuilderInterface {
                     "--hookdir",
                     m_hookdir,
                     "--configfile",
-                    m_pbuilderrc.getName() );
-        int status = procStarter.join();
+                    m_pbuilderrc.getName() ) );
+
+            ProcStarter procStarter = m_launcher
+                .launch()
+                    .pwd(m_workspace)
+                    .stdout( m_logger )
+                .envs( getDistArchEnv() );
+            status = runBuildWithLock( lockfile, procStarter, cmds.toArray( new String[ 0 ] ) );
+            if( status == LAUNCHED_STATUS ){
+                // Whoever is waiting for the build builds again if the base goes away
+                return true;
+            }
+
+            if( status == GENERATION_GONE_STATUS && layer != null ){
+                m_logger.println( "Build dependency layer " + layer + " was removed, building from the base" );
+                layer = null;
+            }
+        }while( status == GENERATION_GONE_STATUS );
 
         if( status != 0 ){
             return false;
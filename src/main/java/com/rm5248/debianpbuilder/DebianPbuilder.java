@@ -7,14 +7,22 @@ import hudson.FilePath;
 import hudson.FilePath.FileCallable;
 import hudson.Proc;
 import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
+import hudson.util.Secret;
+import hudson.model.Item;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
+import hudson.model.Computer;
 import hudson.model.AbstractProject;
 import hudson.model.Run;
 import hudson.model.TaskListener;
 import hudson.remoting.VirtualChannel;
 import hudson.tasks.Builder;
 import hudson.tasks.BuildStepDescriptor;
+import hudson.security.ACL;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
+import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
 import java.io.File;
 import net.sf.json.JSONObject;
 import org.kohsuke.stapler.DataBoundConstructor;
@@ -22,24 +30,43 @@ import org.kohsuke.stapler.StaplerRequest2;
 import org.kohsuke.stapler.QueryParameter;
 
 import jakarta.servlet.ServletException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Serializable;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import jenkins.model.ArtifactManager;
+import jenkins.model.Jenkins;
+import jenkins.model.StandardArtifactManager;
 import jenkins.tasks.SimpleBuildStep;
 import jenkins.util.BuildListenerAdapter;
 import org.jenkinsci.Symbol;
 import org.jenkinsci.remoting.RoleChecker;
 import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.AncestorInPath;
 
 /**
  * Jenkins plugin that builds Debian packages in a pbuilder/cowbuilder environement.
@@ -50,7 +77,9 @@ import org.kohsuke.stapler.DataBoundSetter;
  * we can have builders on different machines that can all communicate back to the
  * master Jenkins instance.
  */
-public class DebianPbuilder extends Builder implements SimpleBuildStep {
+public class DebianPbuilder extends Builder implements SimpleBuildStep, Serializable {
+    private static final long serialVersionUID = 1L;
+
     private static final Logger LOGGER = Logger.getLogger( DebianPbuilder.class.getName() );
 
     private int numberCores;
@@ -71,6 +100,31 @@ public class DebianPbuilder extends Builder implements SimpleBuildStep {
     private PbuilderType m_pbuilderType;
     private String m_binariesDir;
     private String m_bindMounts;
+    private boolean m_useDpkgParsechangelog;
+    private int m_baseMaxAge;
+    private boolean m_skipUpdateIfMirrorUnchanged;
+    private boolean m_doubleBufferedBase;
+    private String m_architectures;
+    private int m_buildDepsLayers;
+    private IoProfile m_ioProfile;
+    private int m_tmpfsSize;
+    private Integer m_aptCacheSize;
+    private boolean m_useCcache;
+    private Integer m_ccacheSize;
+    private Integer m_lockTimeout;
+    private boolean m_deduplicateArtifacts;
+    private int m_transferStreams;
+    private ResultTransfer.Compression m_transferCompression;
+    private boolean m_publishToArtifactory;
+    private String m_artifactoryUrl;
+    private String m_artifactoryCredentialsId;
+    private Integer m_artifactoryConnections;
+    private boolean m_useBuildCache;
+    private boolean m_cacheOrigTarballs;
+    private boolean m_origTarballsFromArtifacts;
+    private Integer m_origCacheSize;
+    private boolean m_autoExcludeSources;
+    private String m_sourceExcludes;
 
     private static final String[] DEBIAN_DISTRIBUTIONS = {
         "buzz",
@@ -115,7 +169,7 @@ public class DebianPbuilder extends Builder implements SimpleBuildStep {
         "oracular"
     };
 
-    private enum PackageType{
+    enum PackageType{
         INVALID,
         NATIVE,
         QUILT
@@ -126,6 +180,34 @@ public class DebianPbuilder extends Builder implements SimpleBuildStep {
         PBuilder
     }
 
+    private enum IoProfile{
+        Disk,
+        EatMyData,
+        Tmpfs
+    }
+
+    /**
+     * Where the tmpfs for the Tmpfs I/O profile is mounted
+     */
+    private static final String TMPFS_BUILDPLACE = "/var/cache/pbuilder/build-tmpfs";
+
+    /**
+     * Mounts a tmpfs of the given size(in MB) on the given directory.  If it
+     * is already mounted but smaller, it is grown to that size; it is never
+     * shrunk, since another build may be using it.  The commands run with
+     * sudo are given by their full path, as they are listed in the sudoers
+     * entries in the README.
+     */
+    private static final String TMPFS_MOUNT_SCRIPT = String.join( "\n",
+            "exec 9>>/var/run/lock/debian-pbuilder-tmpfs && flock 9 || exit 1",
+            "if mountpoint -q \"$0\"; then",
+            "    current=$(( $(stat -f -c '%b * %S' \"$0\") / 1048576 ))",
+            "    [ \"$current\" -ge \"$1\" ] && exit 0",
+            "    echo \"Growing the tmpfs on $0 from $current MB to $1 MB\"",
+            "    exec sudo /bin/mount -o remount,size=\"$1\"M \"$0\"",
+            "fi",
+            "sudo /bin/mkdir -p \"$0\" && sudo /bin/mount -t tmpfs -o size=\"$1\"M,mode=0755 debian-pbuilder \"$0\"" );
+
     @DataBoundConstructor
     public DebianPbuilder(){
         numberCores = 1;
@@ -335,10 +417,273 @@ public class DebianPbuilder extends Builder implements SimpleBuildStep {
         return m_bindMounts;
     }
 
+    @DataBoundSetter
+    public void setUseDpkgParsechangelog(boolean useDpkgParsechangelog){
+        m_useDpkgParsechangelog = useDpkgParsechangelog;
+    }
+
+    public boolean getUseDpkgParsechangelog(){
+        return m_useDpkgParsechangelog;
+    }
+
+    @DataBoundSetter
+    public void setBaseMaxAge(int baseMaxAge){
+        m_baseMaxAge = baseMaxAge;
+    }
+
+    public int getBaseMaxAge(){
+        return m_baseMaxAge;
+    }
+
+    @DataBoundSetter
+    public void setSkipUpdateIfMirrorUnchanged(boolean skipUpdateIfMirrorUnchanged){
+        m_skipUpdateIfMirrorUnchanged = skipUpdateIfMirrorUnchanged;
+    }
+
+    public boolean getSkipUpdateIfMirrorUnchanged(){
+        return m_skipUpdateIfMirrorUnchanged;
+    }
+
+    @DataBoundSetter
+    public void setDoubleBufferedBase(boolean doubleBufferedBase){
+        m_doubleBufferedBase = doubleBufferedBase;
+    }
+
+    public boolean getDoubleBufferedBase(){
+        return m_doubleBufferedBase;
+    }
+
+    @DataBoundSetter
+    public void setIoProfile( String ioProfile ){
+        try{
+            m_ioProfile = IoProfile.valueOf( ioProfile );
+        }catch( Exception ex ){
+            m_ioProfile = IoProfile.Disk;
+        }
+    }
+
+    public String getIoProfile(){
+        if( m_ioProfile == null ){
+            return IoProfile.Disk.toString();
+        }
+        return m_ioProfile.toString();
+    }
+
+    @DataBoundSetter
+    public void setTmpfsSize(int tmpfsSize){
+        m_tmpfsSize = tmpfsSize;
+    }
+
+    public int getTmpfsSize(){
+        if( m_tmpfsSize <= 0 ){
+            return getDescriptor().defaultTmpfsSize();
+        }
+
+        return m_tmpfsSize;
+    }
+
+    @DataBoundSetter
+    public void setAptCacheSize(int aptCacheSize){
+        m_aptCacheSize = aptCacheSize;
+    }
+
+    public int getAptCacheSize(){
+        if( m_aptCacheSize == null || m_aptCacheSize < 0 ){
+            return getDescriptor().defaultAptCacheSize();
+        }
+
+        return m_aptCacheSize;
+    }
+
+    @DataBoundSetter
+    public void setUseCcache(boolean useCcache){
+        m_useCcache = useCcache;
+    }
+
+    public boolean getUseCcache(){
+        return m_useCcache;
+    }
+
+    @DataBoundSetter
+    public void setCcacheSize(int ccacheSize){
+        m_ccacheSize = ccacheSize;
+    }
+
+    public int getCcacheSize(){
+        if( m_ccacheSize == null || m_ccacheSize <= 0 ){
+            return getDescriptor().defaultCcacheSize();
+        }
+
+        return m_ccacheSize;
+    }
+
+    @DataBoundSetter
+    public void setArchitectures(String architectures){
+        m_architectures = architectures;
+    }
+
+    public String getArchitectures(){
+        return m_architectures;
+    }
+
+    @DataBoundSetter
+    public void setBuildDepsLayers(int buildDepsLayers){
+        m_buildDepsLayers = buildDepsLayers;
+    }
+
+    public int getBuildDepsLayers(){
+        return m_buildDepsLayers;
+    }
+
+    @DataBoundSetter
+    public void setLockTimeout(int lockTimeout){
+        m_lockTimeout = lockTimeout;
+    }
+
+    public int getLockTimeout(){
+        if( m_lockTimeout == null || m_lockTimeout < 0 ){
+            return getDescriptor().defaultLockTimeout();
+        }
+
+        return m_lockTimeout;
+    }
+
+    @DataBoundSetter
+    public void setDeduplicateArtifacts(boolean deduplicateArtifacts){
+        m_deduplicateArtifacts = deduplicateArtifacts;
+    }
+
+    public boolean getDeduplicateArtifacts(){
+        return m_deduplicateArtifacts;
+    }
+
+    @DataBoundSetter
+    public void setTransferStreams(int transferStreams){
+        m_transferStreams = transferStreams;
+    }
+
+    public int getTransferStreams(){
+        return m_transferStreams;
+    }
+
+    @DataBoundSetter
+    public void setTransferCompression( String transferCompression ){
+        try{
+            m_transferCompression = ResultTransfer.Compression.valueOf( transferCompression );
+        }catch( Exception ex ){
+            m_transferCompression = ResultTransfer.Compression.Auto;
+        }
+    }
+
+    public String getTransferCompression(){
+        if( m_transferCompression == null ){
+            return ResultTransfer.Compression.Auto.toString();
+        }
+        return m_transferCompression.toString();
+    }
+
+    @DataBoundSetter
+    public void setPublishToArtifactory(boolean publishToArtifactory){
+        m_publishToArtifactory = publishToArtifactory;
+    }
+
+    public boolean getPublishToArtifactory(){
+        return m_publishToArtifactory;
+    }
+
+    @DataBoundSetter
+    public void setArtifactoryUrl(String artifactoryUrl){
+        m_artifactoryUrl = artifactoryUrl;
+    }
+
+    public String getArtifactoryUrl(){
+        return m_artifactoryUrl;
+    }
+
+    @DataBoundSetter
+    public void setArtifactoryCredentialsId(String artifactoryCredentialsId){
+        m_artifactoryCredentialsId = artifactoryCredentialsId;
+    }
+
+    public String getArtifactoryCredentialsId(){
+        return m_artifactoryCredentialsId;
+    }
+
+    @DataBoundSetter
+    public void setArtifactoryConnections(int artifactoryConnections){
+        m_artifactoryConnections = artifactoryConnections;
+    }
+
+    public int getArtifactoryConnections(){
+        if( m_artifactoryConnections == null || m_artifactoryConnections <= 0 ){
+            return getDescriptor().defaultArtifactoryConnections();
+        }
+
+        return m_artifactoryConnections;
+    }
+
+    @DataBoundSetter
+    public void setUseBuildCache(boolean useBuildCache){
+        m_useBuildCache = useBuildCache;
+    }
+
+    public boolean getUseBuildCache(){
+        return m_useBuildCache;
+    }
+
+    @DataBoundSetter
+    public void setCacheOrigTarballs(boolean cacheOrigTarballs){
+        m_cacheOrigTarballs = cacheOrigTarballs;
+    }
+
+    public boolean getCacheOrigTarballs(){
+        return m_cacheOrigTarballs;
+    }
+
+    @DataBoundSetter
+    public void setOrigTarballsFromArtifacts(boolean origTarballsFromArtifacts){
+        m_origTarballsFromArtifacts = origTarballsFromArtifacts;
+    }
+
+    public boolean getOrigTarballsFromArtifacts(){
+        return m_origTarballsFromArtifacts;
+    }
+
+    @DataBoundSetter
+    public void setOrigCacheSize(int origCacheSize){
+        m_origCacheSize = origCacheSize;
+    }
+
+    public int getOrigCacheSize(){
+        if( m_origCacheSize == null || m_origCacheSize <= 0 ){
+            return getDescriptor().defaultOrigCacheSize();
+        }
+
+        return m_origCacheSize;
+    }
+
+    @DataBoundSetter
+    public void setAutoExcludeSources(boolean autoExcludeSources){
+        m_autoExcludeSources = autoExcludeSources;
+    }
+
+    public boolean getAutoExcludeSources(){
+        return m_autoExcludeSources;
+    }
+
+    @DataBoundSetter
+    public void setSourceExcludes(String sourceExcludes){
+        m_sourceExcludes = sourceExcludes;
+    }
+
+    public String getSourceExcludes(){
+        return m_sourceExcludes;
+    }
+
     @Override
     public void perform(Run<?,?> run, FilePath workspace, Launcher launcher, TaskListener listener )
             throws InterruptedException, IOException {
-        boolean success = doTheBuild( run, workspace, launcher, listener );
+        boolean success = doTheBuild( run, workspace, launcher, listener, null );
 
         if( !success ){
             throw new AbortException( "Unable to build properly" );
@@ -349,14 +694,61 @@ public class DebianPbuilder extends Builder implements SimpleBuildStep {
     public boolean perform(AbstractBuild build, Launcher launcher, BuildListener listener)
             throws InterruptedException, IOException {
 
-        return doTheBuild( build, build.getWorkspace(), launcher, listener );
+        return doTheBuild( build, build.getWorkspace(), launcher, listener, null );
     }
 
-    private boolean doTheBuild( Run<?,?> build, FilePath workspace, Launcher launcher, TaskListener listener )
-            throws InterruptedException, IOException {
+    /**
+     * Build from the Pipeline step, which runs pbuilder as a durable task so
+     * that the build can be finished after the controller restarts.  Once
+     * the source package is ready, this starts building it and returns
+     * without waiting; the step then finishes each architecture once it has
+     * been built, and calls {@link #finishDurableBuild}.
+     *
+     * @param resumable Where to record what is needed to finish the build
+     * @return False if the build failed.  If the build was started,
+     * resumable says it is building.
+     */
+    boolean build( Run<?,?> run, FilePath workspace, Launcher launcher, TaskListener listener,
+            ResumableBuild resumable ) throws IOException, InterruptedException {
+        return doTheBuild( run, workspace, launcher, listener, resumable );
+    }
+
+    /**
+     * Finish a build by the Pipeline step once every architecture has been
+     * built: archive and publish the results.
+     */
+    boolean finishDurableBuild( Run<?,?> run, FilePath workspace, Launcher launcher, TaskListener listener,
+            ResumableBuild resumable ) throws IOException, InterruptedException {
+        List<String> succeeded = resumable.getSucceeded();
+        List<String> architectures = resumable.getArchitectures();
+        PhaseTimingAction timings = PhaseTimingAction.forRun( run );
+
+        if( resumable.isPerArchitecture() ){
+            for( String arch : architectures ){
+                listener.getLogger().println( arch + ": " + (succeeded.contains( arch ) ? "SUCCESS" : "FAILURE") );
+            }
+        }
+
+        if( !succeeded.isEmpty() &&
+                !archiveAndPublish( run, workspace, launcher, listener, timings,
+                        resumable.getBinariesLocation( workspace ), resumable.getDscFile( workspace ),
+                        resumable.getPackageName(), resumable.getDistribution(), succeeded,
+                        resumable.isPerArchitecture(),
+                        succeeded.size() == architectures.size() ? resumable.getFingerprint() : null ) ){
+            return false;
+        }
+
+        return succeeded.size() == architectures.size();
+    }
+
+    /**
+     * @param resumable If not null, pbuilder is run as a durable task, and
+     * what is needed to finish the build after a restart is recorded here
+     */
+    private boolean doTheBuild( Run<?,?> build, FilePath workspace, Launcher launcher, TaskListener listener,
+            ResumableBuild resumable ) throws InterruptedException, IOException {
         String architecture = null;
         String snapshotVersion;
-        PbuilderInterface pbuildInterface;
         FilePath binariesLocation;
         FilePath dscFile = null;
         FilePath hookdir = null;
@@ -376,127 +768,53 @@ public class DebianPbuilder extends Builder implements SimpleBuildStep {
             return false;
         }
 
-        if( !ensureDpkgParseChangelogIsValid(launcher, listener) ){
-            return false;
-        }
+        HostFacts hostFacts = HostFactsCache.get( workspace, getDescriptor().getHostFactsCacheMinutes() );
+        PhaseTimingAction timings = PhaseTimingAction.forRun( build );
 
-        if( !isDebianPackage(workspace, launcher, listener) ){
+        ChangelogParser.ChangelogEntry changelogEntry = timings.time( "Parse changelog",
+                () -> parseChangelog(workspace, launcher, listener, hostFacts) );
+        if( changelogEntry == null ){
             listener.getLogger().println( "We do not appear to have an actual package" );
+            BuildMetrics.recordFailure( BuildMetrics.Labels.forWorkspace( workspace, null, null, getPbuilderType() ),
+                    "changelog" );
             return false;
         }
 
-        String packageName = getDpkgField(workspace, launcher, listener, "source" );
-        if( packageName == null ){
-            listener.getLogger().println( "Unable to get package name(source) from changelog" );
-            return false;
-        }
-
-        String version = getDpkgField(workspace, launcher, listener, "version" );
-        if( version == null ){
-            listener.getLogger().println( "Unable to get version from changelog" );
-            return false;
-        }
-
-        String distribution = getDpkgField(workspace, launcher, listener, "distribution" );
-        if( distribution == null ){
-            listener.getLogger().println( "Unable to get distribution from changelog" );
-            return false;
-        }
+        String packageName = changelogEntry.getSource();
+        String version = changelogEntry.getVersion();
+        String distribution = changelogEntry.getDistribution();
+        listener.getLogger().println( "Building " + packageName + " version " + version
+                + " for " + distribution + "(urgency " + changelogEntry.getUrgency()
+                + ", maintainer " + changelogEntry.getMaintainer() + ")" );
 
-        String ourArch = getStdoutOfProcess(workspace, launcher, listener,
-                            "dpkg-architecture",
-                            "--query",
-                            "DEB_TARGET_ARCH" );
-        architecture = getActualArchitecture( workspace, launcher, build, listener );
+        String ourArch = hostFacts.getTargetArch();
+        architecture = getActualArchitecture( build, listener, hostFacts );
         if( architecture != null && architecture.length() == 0 ){
             listener.getLogger().println( "Architecture is 0-length string: using dpkg default");
             architecture = ourArch;
         }
+        BuildMetrics.Labels sourceLabels = BuildMetrics.Labels.forWorkspace( workspace,
+                distribution, architecture, getPbuilderType() );
 
         if( getDebianDirLocation().equals( "." ) ){
             listener.getLogger().println( "FAILED: path to debian/ folder must not be current directory.  Check out to a sub-directory.");
             return false;
         }
 
-        switch( getPackageType( workspace ) ){
-            case INVALID:
-                listener.getLogger().println( "This does not appear to be a "
-                        + "debian package.  Possible reasons include: "
-                        + "no debian/source/format file; package is neither "
-                        + "native or quilt"
-                );
-                return false;
-            case NATIVE:
-                // Nothing to do, no source to get
-                break;
-            case QUILT:
-                if( m_pristineTarName != null && m_pristineTarName.length() > 1 ){
-                    if( !createPristineTar( workspace, launcher, listener ) ){
-                        return false;
-                    }
-                }
-        }
-
-        boolean isTag = checkIfBuildingTag( envVars );
-
-        if( !isTag ){
-            //we are not building a tag, update the version appropriately
-
-            if( distribution.equalsIgnoreCase( "unreleased" ) ){
-                //do not raise the version number if this is an unreleased version
-                snapshotVersion = version + "~";
-            }else{
-                snapshotVersion = version + "+0";
-            }
-            snapshotVersion += PackageVersionFormatter.formatPackageVersion(
-                    getDescriptor().getPackageVersionFormat(), envVars, build.getNumber() );
-
-            listener.getLogger().println( "Snapshot version: " + snapshotVersion );
-
-
-            updateChangelog(launcher, workspace.child( getDebianDirLocation() ).child( "debian" ).child( "changelog" ),
-                    packageName, snapshotVersion);
-        }else{
-            //we are building a tagged version, don't update the changelog or version
-            snapshotVersion = version;
-        }
-
-        if( !tarSources(workspace, launcher, listener) ){
+        type = getPackageType( workspace );
+        if( type == PackageType.INVALID ){
+            listener.getLogger().println( "This does not appear to be a "
+                    + "debian package.  Possible reasons include: "
+                    + "no debian/source/format file; package is neither "
+                    + "native or quilt"
+            );
             return false;
         }
 
-
-        generateChanges(workspace, launcher, listener, packageName, snapshotVersion);
-
-        if(m_binariesDir == null || m_binariesDir.isEmpty() ){
-            binariesLocation = workspace.createTempDir( "binaries", null );
-        }else{
-            FilePath fp = workspace.child(m_binariesDir);
-            fp.mkdirs();
-            binariesLocation = fp;
-        }
-        hookdir = workspace.child( "hookdir" );
-        if( !hookdir.exists() ){
-            hookdir.mkdirs();
-        }
-
-        //make sure any files in the hookdir are executable
-        for( FilePath path : hookdir.list() ){
-            path.chmod( 0755 );
-        }
-
-        for( FilePath path : workspace.list() ){
-            if( path.getName().endsWith( ".dsc" ) ){
-                if( dscFile != null ){
-                    listener.getLogger().println( "More than one dsc file found, aborting build" );
-                    return false;
-                }
-                dscFile = path;
-            }
-        }
+        boolean isTag = checkIfBuildingTag( envVars );
 
         if( distribution.equalsIgnoreCase( "UNRELEASED" ) ){
-            distribution = getStdoutOfProcess(workspace, launcher, listener, "lsb_release", "--short", "--codename" );
+            distribution = hostFacts.getCodename();
             if( distribution == null ){
                 distribution = "sid";
             }
@@ -523,7 +841,7 @@ public class DebianPbuilder extends Builder implements SimpleBuildStep {
                 listener.getLogger().println( "Unable to find keyring " + theKeyring.getAbsolutePath()
                         + ": build may fail" );
             }
-        }else if( isUbuntu( workspace, launcher, listener ) && isDebianDistribution() ){
+        }else if( isUbuntu( hostFacts ) && isDebianDistribution() ){
             ubuntuOnDebian = true;
             File debianKeyring = new File( getDebianArchiveKeyringPath() );
             if( debianKeyring.exists() ){
@@ -555,42 +873,280 @@ public class DebianPbuilder extends Builder implements SimpleBuildStep {
             m_pbuilderType = PbuilderType.Cowbuilder;
         }
 
-        //Now that we have our sources, run debootstrap
-        if( m_pbuilderType == PbuilderType.Cowbuilder ){
-            pbuildInterface = new CowbuilderHelper(workspace, launcher, listener.getLogger(),
-                    architecture, distribution,
-                    hookdir.getName(),
-                    pbuildConfig);
-        }else if (m_pbuilderType == PbuilderType.PBuilder ){
-            pbuildInterface = new PbuilderHelper(workspace, launcher, listener.getLogger(),
-                    architecture, distribution,
-                    hookdir.getName(),
-                    pbuildConfig);
+        applyIoProfile( workspace, launcher, listener, pbuildConfig );
+
+        useAptProxy( workspace, listener, pbuildConfig );
+
+        if(m_binariesDir == null || m_binariesDir.isEmpty() ){
+            binariesLocation = workspace.createTempDir( "binaries", null );
         }else{
-            listener.getLogger().println( "Pbuilder type invalid!" );
-            return false;
+            FilePath fp = workspace.child(m_binariesDir);
+            fp.mkdirs();
+            binariesLocation = fp;
+        }
+        hookdir = workspace.child( "hookdir" );
+        if( !hookdir.exists() ){
+            hookdir.mkdirs();
         }
 
-        listener.getLogger().println( "Using " + m_pbuilderType + " for our build" );
-
-        if( !pbuildInterface.createOrUpdateBase() ){
-            return false;
+        //make sure any files in the hookdir are executable
+        for( FilePath path : hookdir.list() ){
+            path.chmod( 0755 );
         }
 
-        if( !pbuildInterface.buildInEnvironment( binariesLocation, dscFile, numberCores ) ){
-            return false;
+        List<String> architectures = getArchitectureList();
+        if( architectures.size() == 1 ){
+            architecture = architectures.get( 0 );
         }
 
+        boolean perArchitecture = architectures.size() > 1;
+        List<String> builtArchitectures = perArchitecture ? architectures : Arrays.asList( architecture );
 
-        Map<String,String> files = new HashMap<String,String>();
-        for( FilePath path : binariesLocation.list() ){
-            files.put( path.getName(), path.getName() );
-        }
+        // Everything that the base needs is known now, so it can be created
+        // or updated while the source package is prepared
+        BackgroundBaseUpdates baseUpdates = new BackgroundBaseUpdates();
+        List<ArchitectureEnvironment> environments = new ArrayList<>();
+        try{
+            for( String arch : builtArchitectures ){
+                PrintStream logger = listener.getLogger();
+                if( perArchitecture ){
+                    logger = new PrintStream( new LinePrefixOutputStream( listener.getLogger(), "[" + arch + "] " ),
+                            true,
+                            "UTF-8" );
+                }
 
-        BuildListenerAdapter bl = new BuildListenerAdapter( listener );
-        build.pickArtifactManager().archive( binariesLocation, launcher, bl, files );
+                ArchitectureEnvironment environment = prepareArchitecture( workspace, launcher,
+                        baseUpdates.getLogger( arch, logger ), timings, pbuildConfig, hostFacts, hookdir,
+                        packageName, distribution, arch, perArchitecture && !arch.equals( architectures.get( 0 ) ) );
+                if( environment == null ){
+                    return false;
+                }
+                environments.add( environment );
+                baseUpdates.setUpdate( arch, environment::updateBase, environment.m_builder::canStopBaseUpdate );
+            }
 
-        if( m_generateArtifactorySpecFile &&
+            // With the build cache, the base is not updated until we know
+            // that the package has to be built
+            if( !m_useBuildCache ){
+                baseUpdates.start();
+            }
+
+            String fingerprint = null;
+            BuildCacheAction cached = null;
+            boolean prepared = false;
+            try{
+                if( type == PackageType.QUILT &&
+                        m_pristineTarName != null && m_pristineTarName.length() > 1 ){
+                    if( !timings.time( "pristine-tar",
+                            () -> getOrigTarball( build, workspace, launcher, listener, changelogEntry ) ) ){
+                        BuildMetrics.recordFailure( sourceLabels, "pristine-tar" );
+                        return false;
+                    }
+                }
+
+                // Hash the sources before the snapshot entry is added to the changelog,
+                // since that is different for every build
+                if( m_useBuildCache ){
+                    long cacheStart = System.currentTimeMillis();
+                    String sourceHash = BuildCache.hashSources( workspace, getDebianDirLocation(), packageName,
+                            changelogEntry.getUpstreamVersion() );
+                    fingerprint = BuildCache.getFingerprint( workspace, sourceHash, pbuildConfig, distribution,
+                            builtArchitectures, getBuildCacheSettings( isTag ), listener.getLogger() );
+                    cached = fingerprint == null ? null : BuildCache.find( build, fingerprint );
+                    timings.record( "Build cache", System.currentTimeMillis() - cacheStart );
+
+                    if( cached == null ){
+                        if( fingerprint != null ){
+                            listener.getLogger().println( "Build cache: no successful build of the same inputs found"
+                                    + "(fingerprint " + fingerprint + "), building" );
+                        }
+                        baseUpdates.start();
+                    }else if( restoreFromCache( cached, fingerprint, binariesLocation, timings, listener, isTag ) ){
+                        // Nothing of the source package is needed, so it is not prepared
+                        prepared = true;
+                        return archiveAndPublish( build, workspace, launcher, listener, timings, binariesLocation,
+                                null, packageName, distribution, builtArchitectures, perArchitecture, fingerprint );
+                    }else{
+                        baseUpdates.start();
+                    }
+                }
+
+                if( !isTag ){
+                    //we are not building a tag, update the version appropriately
+
+                    if( changelogEntry.getDistribution().equalsIgnoreCase( "unreleased" ) ){
+                        //do not raise the version number if this is an unreleased version
+                        snapshotVersion = version + "~";
+                    }else{
+                        snapshotVersion = version + "+0";
+                    }
+                    snapshotVersion += PackageVersionFormatter.formatPackageVersion(
+                            getDescriptor().getPackageVersionFormat(), envVars, build.getNumber() );
+
+                    listener.getLogger().println( "Snapshot version: " + snapshotVersion );
+
+
+                    updateChangelog(hostFacts, workspace.child( getDebianDirLocation() ).child( "debian" ).child( "changelog" ),
+                            packageName, snapshotVersion);
+                }else{
+                    //we are building a tagged version, don't update the changelog or version
+                    snapshotVersion = version;
+                }
+
+                if( !timings.time( "Build source package", () -> tarSources(workspace, launcher, listener) ) ){
+                    BuildMetrics.recordFailure( sourceLabels, "source" );
+                    return false;
+                }
+
+                final String changesVersion = snapshotVersion;
+                timings.time( "Generate changes", () -> generateChanges(workspace, launcher, listener, packageName, changesVersion) );
+
+                for( FilePath path : workspace.list() ){
+                    if( path.getName().endsWith( ".dsc" ) ){
+                        if( dscFile != null ){
+                            listener.getLogger().println( "More than one dsc file found, aborting build" );
+                            return false;
+                        }
+                        dscFile = path;
+                    }
+                }
+
+                prepared = true;
+            }catch( IOException | InterruptedException ex ){
+                if( !baseUpdates.wereSourcesCancelled() ){
+                    throw ex;
+                }
+            }finally{
+                baseUpdates.sourcesPrepared( prepared );
+            }
+
+            if( !prepared ){
+                listener.getLogger().println( "Unable to create or update the base, stopped preparing the source package" );
+                return false;
+            }
+
+            if( resumable != null ){
+                resumable.building( binariesLocation, dscFile, packageName, distribution, builtArchitectures,
+                        perArchitecture, fingerprint );
+                for( ArchitectureEnvironment environment : environments ){
+                    environment.m_builder.setBuildRunner( resumable.getRunner( environment.m_architecture,
+                            launcher, listener, getLockTimeout(), environment.m_metricLabels,
+                            environment.m_phaseSuffix ) );
+                    resumable.setHookdir( environment.m_architecture, environment.m_hooks.getTemporaryHookdir() );
+                }
+
+                launchArchitectures( workspace, listener, baseUpdates, resumable, environments,
+                        binariesLocation, dscFile );
+                return true;
+            }
+
+            if( !perArchitecture ){
+                if( !buildArchitecture( workspace, timings, baseUpdates, environments.get( 0 ),
+                        binariesLocation, dscFile ) ){
+                    return false;
+                }
+
+                return archiveAndPublish( build, workspace, launcher, listener, timings, binariesLocation,
+                        dscFile, packageName, distribution, builtArchitectures, false, fingerprint );
+            }
+
+            List<String> succeeded = buildArchitectures( workspace, listener, timings, baseUpdates, environments,
+                    binariesLocation, dscFile );
+
+            if( !succeeded.isEmpty() &&
+                    !archiveAndPublish( build, workspace, launcher, listener, timings, binariesLocation,
+                            dscFile, packageName, distribution, succeeded, true,
+                            succeeded.size() == architectures.size() ? fingerprint : null ) ){
+                return false;
+            }
+
+            return succeeded.size() == architectures.size();
+        }finally{
+            baseUpdates.close();
+            for( ArchitectureEnvironment environment : environments ){
+                // The ones that are building are cleaned up once they finish
+                if( !environment.m_launched ){
+                    environment.cleanup();
+                }
+            }
+        }
+    }
+
+    /**
+     * Archive the results of the build, through the artifact store if we are
+     * set to deduplicate artifacts and the artifacts are kept on the controller.
+     * If we are set to use transfer streams, the files are copied to the
+     * controller as tar streams.
+     */
+    private Void archiveResults( Run<?,?> build, Launcher launcher, TaskListener listener,
+            FilePath binariesLocation, Map<String,String> files ) throws IOException, InterruptedException {
+        ArtifactManager artifactManager = build.pickArtifactManager();
+        boolean onController = artifactManager instanceof StandardArtifactManager;
+        ResultTransfer transfer = null;
+        if( m_transferStreams > 0 ){
+            transfer = new ResultTransfer( m_transferStreams, m_transferCompression, listener.getLogger() );
+        }
+
+        if( m_deduplicateArtifacts && onController ){
+            ArtifactStore.get().archive( build.getArtifactsDir().toPath(),
+                    build.getRootDir().toPath().resolve( ArtifactStore.MANIFEST ),
+                    binariesLocation,
+                    new ArrayList<>( files.keySet() ),
+                    transfer,
+                    listener.getLogger() );
+            return null;
+        }
+
+        if( transfer != null && onController ){
+            transfer.transfer( binariesLocation,
+                    new FilePath( build.getArtifactsDir() ),
+                    new ArrayList<>( files.keySet() ) );
+            return null;
+        }
+
+        if( m_deduplicateArtifacts || transfer != null ){
+            listener.getLogger().println( "Artifacts are not stored on the controller, archiving them with "
+                    + artifactManager.getClass().getSimpleName() );
+        }
+
+        artifactManager.archive( binariesLocation, launcher, new BuildListenerAdapter( listener ), files );
+        return null;
+    }
+
+    /**
+     * Archive the results of the architectures that were built, then write
+     * the Artifactory spec file and publish them to Artifactory if we are set
+     * to.  If the inputs of the build have a fingerprint, it is recorded with
+     * the artifacts so that later builds with the same inputs can use them.
+     *
+     * @param architectures The architectures that were built
+     * @param perArchitecture True if the results of each architecture are in
+     * their own sub-directory of the binaries location
+     * @param fingerprint The fingerprint of the inputs, or null
+     * @return False if the results could not be published
+     */
+    private boolean archiveAndPublish( Run<?,?> build, FilePath workspace, Launcher launcher, TaskListener listener,
+            PhaseTimingAction timings, FilePath binariesLocation, FilePath dscFile, String packageName,
+            String distribution, List<String> architectures, boolean perArchitecture, String fingerprint )
+            throws IOException, InterruptedException {
+        Map<String,String> files = new HashMap<String,String>();
+        if( perArchitecture ){
+            for( String arch : architectures ){
+                for( FilePath path : binariesLocation.child( arch ).list() ){
+                    files.put( arch + "/" + path.getName(), arch + "/" + path.getName() );
+                }
+            }
+        }else{
+            for( FilePath path : binariesLocation.list() ){
+                files.put( path.getName(), path.getName() );
+            }
+        }
+
+        if( !files.isEmpty() ){
+            timings.time( "Archive", () -> archiveResults( build, launcher, listener, binariesLocation, files ) );
+        }
+
+        if( m_generateArtifactorySpecFile &&
                 m_artifactoryRepoName != null &&
                 m_artifactoryRepoName.length() > 1 ){
             writeArtifactorySpecFile(
@@ -599,14 +1155,516 @@ public class DebianPbuilder extends Builder implements SimpleBuildStep {
                     dscFile,
                     packageName,
                     distribution,
-                    architecture,
+                    architectures,
+                    perArchitecture,
                     m_artifactoryRepoName);
         }
 
+        if( m_publishToArtifactory &&
+                !publishToArtifactory( build, workspace, listener, timings, binariesLocation,
+                        packageName, distribution, architectures, perArchitecture ) ){
+            return false;
+        }
+
+        if( fingerprint != null && !files.isEmpty() ){
+            build.addAction( new BuildCacheAction( fingerprint, new ArrayList<>( files.keySet() ) ) );
+        }
+
+        return true;
+    }
+
+    /**
+     * Copy the artifacts of an earlier build with the same fingerprint to
+     * the binaries location.
+     *
+     * @return False if they could not be copied, in which case the package
+     * has to be built
+     */
+    private boolean restoreFromCache( BuildCacheAction cached, String fingerprint, FilePath binariesLocation,
+            PhaseTimingAction timings, TaskListener listener, boolean isTag ) throws IOException, InterruptedException {
+        long restoreStart = System.currentTimeMillis();
+        boolean restored = BuildCache.restore( cached, binariesLocation, listener.getLogger() );
+        timings.record( "Build cache", System.currentTimeMillis() - restoreStart );
+
+        if( !restored ){
+            return false;
+        }
+
+        listener.getLogger().println( "Build cache: " + cached.getRun().getFullDisplayName()
+                + " built this package from the same sources, pbuilder configuration, distribution,"
+                + " architectures and mirror indexes(fingerprint " + fingerprint + "); using its "
+                + cached.getArtifacts().size() + " artifacts instead of building again" );
+
+        if( !isTag ){
+            // The snapshot version of this build is never made, since the
+            // source package is not prepared
+            String cachedVersion = BuildCache.getVersion( cached );
+            listener.getLogger().println( "Build cache: the packages have the snapshot version of "
+                    + cached.getRun().getFullDisplayName()
+                    + ( cachedVersion == null ? "" : "(" + cachedVersion + ")" )
+                    + ", not one of this build" );
+        }
+
+        return true;
+    }
+
+    /**
+     * The settings that change the result of a build, but are not in the
+     * pbuilder configuration.
+     */
+    private String getBuildCacheSettings( boolean isTag ){
+        return "type=" + getPbuilderType()
+                + " tag=" + isTag
+                + " debianDir=" + getDebianDirLocation()
+                + " autoExcludeSources=" + m_autoExcludeSources
+                + " sourceExcludes=" + m_sourceExcludes;
+    }
+
+    /**
+     * Deploy the results of the build to the Artifactory repository.
+     *
+     * @param architectures The architectures that were built
+     * @param perArchitecture True if the results of each architecture are in
+     * their own sub-directory of the binaries location
+     * @return False if the results could not be deployed
+     */
+    private boolean publishToArtifactory( Run<?,?> build, FilePath workspace, TaskListener listener,
+            PhaseTimingAction timings, FilePath binariesLocation, String sourceName, String distribution,
+            List<String> architectures, boolean perArchitecture ) throws IOException, InterruptedException {
+        if( m_artifactoryUrl == null || m_artifactoryUrl.isEmpty() ||
+                m_artifactoryRepoName == null || m_artifactoryRepoName.isEmpty() ){
+            listener.getLogger().println( "The Artifactory URL and repo name must be set in order to publish to Artifactory" );
+            return false;
+        }
+
+        String username = null;
+        Secret password = null;
+        if( m_artifactoryCredentialsId != null && !m_artifactoryCredentialsId.isEmpty() ){
+            StandardUsernamePasswordCredentials credentials = CredentialsProvider.findCredentialById(
+                    m_artifactoryCredentialsId, StandardUsernamePasswordCredentials.class, build );
+            if( credentials == null ){
+                listener.getLogger().println( "Unable to find the Artifactory credentials " + m_artifactoryCredentialsId );
+                return false;
+            }
+            CredentialsProvider.track( build, credentials );
+            username = credentials.getUsername();
+            password = credentials.getPassword();
+        }
+
+        ArtifactoryPublisher publisher = new ArtifactoryPublisher( m_artifactoryUrl, m_artifactoryRepoName,
+                username, password, getArtifactoryConnections() );
+        try{
+            timings.time( "Publish", () -> {
+                publisher.publish( binariesLocation,
+                        ArtifactoryPublisher.plan( binariesLocation, sourceName, distribution, architectures, perArchitecture ),
+                        listener );
+                return null;
+            } );
+        }catch( IOException ex ){
+            listener.getLogger().println( "Unable to publish to Artifactory: " + ex.getMessage() );
+            BuildMetrics.recordFailure( BuildMetrics.Labels.forWorkspace( workspace, distribution, null, getPbuilderType() ),
+                    "publish" );
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Get the architectures from the architectures setting.  Returns an empty
+     * list if it is not set, in which case the architecture setting is used.
+     */
+    private List<String> getArchitectureList(){
+        List<String> architectures = new ArrayList<>();
+
+        if( m_architectures == null ){
+            return architectures;
+        }
+
+        for( String arch : m_architectures.split( "[,\\s]+" ) ){
+            if( arch.length() > 0 && !architectures.contains( arch ) ){
+                architectures.add( arch );
+            }
+        }
+
+        return architectures;
+    }
+
+    /**
+     * Build for all of the given architectures at the same time.  Each
+     * architecture puts its results into its own sub-directory of the
+     * binaries location, and the log of each one is prefixed with its name.
+     *
+     * The source package and architecture independent packages are only
+     * built for the first architecture.
+     *
+     * @return The architectures that built successfully
+     */
+    private List<String> buildArchitectures( FilePath workspace, TaskListener listener,
+            PhaseTimingAction timings, BackgroundBaseUpdates baseUpdates, List<ArchitectureEnvironment> environments,
+            FilePath binariesLocation, FilePath dscFile ) throws IOException, InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool( environments.size() );
+        Map<String,Future<Boolean>> results = new LinkedHashMap<>();
+        List<String> architectures = new ArrayList<>();
+
+        for( ArchitectureEnvironment environment : environments ){
+            architectures.add( environment.m_architecture );
+        }
+
+        listener.getLogger().println( "Building for " + String.join( ", ", architectures ) );
+
+        try{
+            for( ArchitectureEnvironment environment : environments ){
+                FilePath archBinaries = binariesLocation.child( environment.m_architecture );
+                archBinaries.mkdirs();
+
+                results.put( environment.m_architecture, executor.submit( () -> {
+                    try{
+                        return buildArchitecture( workspace, timings, baseUpdates, environment,
+                                archBinaries, dscFile );
+                    }catch( IOException ex ){
+                        ex.printStackTrace( environment.m_logger );
+                        return false;
+                    }finally{
+                        environment.m_logger.flush();
+                    }
+                } ) );
+            }
+
+            List<String> succeeded = new ArrayList<>();
+            for( Map.Entry<String,Future<Boolean>> result : results.entrySet() ){
+                boolean success;
+                try{
+                    success = result.getValue().get();
+                }catch( ExecutionException ex ){
+                    listener.getLogger().println( "Build for " + result.getKey() + " failed: " + ex.getCause() );
+                    success = false;
+                }
+
+                if( success ){
+                    succeeded.add( result.getKey() );
+                }
+            }
+
+            for( String arch : architectures ){
+                listener.getLogger().println( arch + ": " + (succeeded.contains( arch ) ? "SUCCESS" : "FAILURE") );
+            }
+
+            return succeeded;
+        }finally{
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Set up the pbuilder environment for one architecture.  This does not
+     * need the source package, so it is done before the source package is
+     * prepared.
+     *
+     * @param logger Where to log to
+     * @param timings Where to record how long the base update and build took
+     * @param pbuildConfig The configuration shared by all architectures; this
+     * is not modified
+     * @param binaryArchOnly True to only build the architecture dependent packages
+     * @return The environment, or null if it could not be set up
+     */
+    private ArchitectureEnvironment prepareArchitecture( FilePath workspace, Launcher launcher, PrintStream logger,
+            PhaseTimingAction timings, PbuilderConfiguration pbuildConfig, HostFacts hostFacts, FilePath hookdir,
+            String packageName, String distribution, String architecture, boolean binaryArchOnly )
+            throws IOException, InterruptedException {
+        PbuilderInterface pbuildInterface;
+        PbuilderConfiguration archConfig = new PbuilderConfiguration( pbuildConfig );
+        HookDirectory hooks = new HookDirectory( workspace, hookdir );
+        String cacheArch = architecture.equals( "all" ) ? hostFacts.getBuildArch() : architecture;
+        AptCache aptCache = null;
+        if( getAptCacheSize() > 0 ){
+            aptCache = AptCache.forNode( workspace, distribution, cacheArch, getAptCacheSize() );
+        }
+        if( aptCache != null ){
+            logger.println( "Using apt cache " + aptCache.getPath() );
+            aptCache.apply( archConfig, hooks );
+        }
+
+        if( m_useCcache ){
+            Ccache ccache = Ccache.forNode( workspace, packageName, cacheArch, getCcacheSize() );
+            if( ccache != null ){
+                logger.println( "Using ccache directory " + ccache.getPath() );
+                ccache.apply( archConfig, hooks );
+            }else{
+                logger.println( "Unable to find the root directory of this node, not using ccache" );
+            }
+        }
+        String hookdirName = hooks.getHookdir().getName();
+
+        if( m_pbuilderType == PbuilderType.Cowbuilder ){
+            CowbuilderHelper cowbuilder = new CowbuilderHelper(workspace, launcher, logger,
+                    architecture, distribution,
+                    hookdirName,
+                    archConfig,
+                    hostFacts);
+            cowbuilder.setDoubleBuffered( m_doubleBufferedBase );
+            cowbuilder.setMaxBuildDepsLayers( m_buildDepsLayers );
+            pbuildInterface = cowbuilder;
+        }else if (m_pbuilderType == PbuilderType.PBuilder ){
+            pbuildInterface = new PbuilderHelper(workspace, launcher, logger,
+                    architecture, distribution,
+                    hookdirName,
+                    archConfig,
+                    hostFacts);
+        }else{
+            logger.println( "Pbuilder type invalid!" );
+            hooks.cleanup();
+            return null;
+        }
+
+        logger.println( "Using " + m_pbuilderType + " for our build" );
+
+        pbuildInterface.setLockTimeout( getLockTimeout() );
+        pbuildInterface.setBinaryArchOnly( binaryArchOnly );
+        pbuildInterface.setFreshness( BaseFreshness.forConfiguration( m_baseMaxAge,
+                m_skipUpdateIfMirrorUnchanged,
+                archConfig,
+                distribution ) );
+        pbuildInterface.setMirrors( archConfig );
+
+        // Architectures are built at the same time, so time them separately
+        String phaseSuffix = getArchitectureList().size() > 1 ? " [" + architecture + "]" : "";
+        BuildMetrics.Labels metricLabels = BuildMetrics.Labels.forWorkspace( workspace,
+                distribution, architecture, m_pbuilderType );
+        pbuildInterface.setMetricLabels( metricLabels );
+
+        return new ArchitectureEnvironment( architecture, logger, timings, pbuildInterface, hooks, aptCache,
+                metricLabels, phaseSuffix );
+    }
+
+    /**
+     * Build for one architecture, from the source package that has already
+     * been prepared, once its base has been created or updated.
+     *
+     * @return True if the build succeeded
+     */
+    private boolean buildArchitecture( FilePath workspace, PhaseTimingAction timings,
+            BackgroundBaseUpdates baseUpdates, ArchitectureEnvironment environment,
+            FilePath binariesLocation, FilePath dscFile ) throws IOException, InterruptedException {
+        BuildMetrics.Labels metricLabels = environment.m_metricLabels;
+
+        try{
+            if( !baseUpdates.join( environment.m_architecture ) ){
+                return false;
+            }
+
+            long buildStart = System.currentTimeMillis();
+            boolean built = timings.time( "Build" + environment.m_phaseSuffix,
+                    () -> buildWithCoreBudget( workspace, environment, binariesLocation, dscFile ) );
+            BuildMetrics.recordBuild( metricLabels, built, System.currentTimeMillis() - buildStart );
+            if( !built ){
+                BuildMetrics.recordFailure( metricLabels, "build" );
+                return false;
+            }
+        }finally{
+            environment.cleanup();
+        }
+
         return true;
     }
 
-    private PackageType getPackageType( FilePath workspace ) throws IOException, InterruptedException {
+    /**
+     * Start building each architecture as a durable task, once its base has
+     * been created or updated, without waiting for the builds to finish.
+     */
+    private void launchArchitectures( FilePath workspace, TaskListener listener,
+            BackgroundBaseUpdates baseUpdates, ResumableBuild resumable, List<ArchitectureEnvironment> environments,
+            FilePath binariesLocation, FilePath dscFile ) throws IOException, InterruptedException {
+        if( !resumable.isPerArchitecture() ){
+            launchArchitecture( workspace, baseUpdates, resumable, environments.get( 0 ), binariesLocation, dscFile );
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool( environments.size() );
+        Map<String,Future<Void>> launches = new LinkedHashMap<>();
+
+        listener.getLogger().println( "Building for " + String.join( ", ", resumable.getArchitectures() ) );
+
+        try{
+            for( ArchitectureEnvironment environment : environments ){
+                FilePath archBinaries = binariesLocation.child( environment.m_architecture );
+                archBinaries.mkdirs();
+
+                launches.put( environment.m_architecture, executor.submit( () -> {
+                    try{
+                        launchArchitecture( workspace, baseUpdates, resumable, environment, archBinaries, dscFile );
+                    }catch( IOException ex ){
+                        ex.printStackTrace( environment.m_logger );
+                    }finally{
+                        environment.m_logger.flush();
+                    }
+                    return null;
+                } ) );
+            }
+
+            for( Map.Entry<String,Future<Void>> launch : launches.entrySet() ){
+                try{
+                    launch.getValue().get();
+                }catch( ExecutionException ex ){
+                    listener.getLogger().println( "Build for " + launch.getKey() + " failed: " + ex.getCause() );
+                }
+            }
+        }finally{
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Start building one architecture as a durable task, once its base has
+     * been created or updated.  If it can't be started, it is recorded as
+     * failed.
+     */
+    private void launchArchitecture( FilePath workspace, BackgroundBaseUpdates baseUpdates,
+            ResumableBuild resumable, ArchitectureEnvironment environment,
+            FilePath binariesLocation, FilePath dscFile ) throws IOException, InterruptedException {
+        String architecture = environment.m_architecture;
+        PbuilderInterface builder = environment.m_builder;
+        boolean launched = false;
+
+        try{
+            if( !baseUpdates.join( architecture ) ){
+                return;
+            }
+
+            CoreBudget.Grant grant = acquireCores( workspace, environment.m_logger );
+            int cores = grant == null ? numberCores : grant.getCores();
+            if( grant != null ){
+                resumable.setCoreGrant( architecture, grant.getId() );
+            }
+
+            resumable.setLive( architecture, new ResumableBuild.Live(){
+                @Override
+                public boolean rebuild() throws IOException, InterruptedException {
+                    // Only cowbuilder builds with a base that can go away
+                    if( !(builder instanceof CowbuilderHelper) ){
+                        return false;
+                    }
+
+                    environment.m_logger.println( "The base that the build was using was removed, building again" );
+                    return builder.buildInEnvironment( binariesLocation, dscFile, cores );
+                }
+
+                @Override
+                public void cleanup() throws IOException, InterruptedException {
+                    environment.cleanup();
+                }
+            } );
+
+            launched = builder.buildInEnvironment( binariesLocation, dscFile, cores );
+            if( !launched ){
+                BuildMetrics.recordFailure( environment.m_metricLabels, "build" );
+            }
+        }finally{
+            environment.m_launched = launched;
+            if( !launched ){
+                resumable.failed( architecture, workspace );
+                environment.cleanup();
+            }
+        }
+    }
+
+    /**
+     * The pbuilder environment of one architecture: the builder, the hooks
+     * and the apt cache that it uses, and where it logs to.
+     */
+    private static final class ArchitectureEnvironment {
+        private final String m_architecture;
+        private final PrintStream m_logger;
+        private final PhaseTimingAction m_timings;
+        private final PbuilderInterface m_builder;
+        private final HookDirectory m_hooks;
+        private final AptCache m_aptCache;
+        private final BuildMetrics.Labels m_metricLabels;
+        private final String m_phaseSuffix;
+        private volatile boolean m_launched;
+        private boolean m_cleanedUp;
+
+        ArchitectureEnvironment( String architecture, PrintStream logger, PhaseTimingAction timings,
+                PbuilderInterface builder, HookDirectory hooks, AptCache aptCache,
+                BuildMetrics.Labels metricLabels, String phaseSuffix ){
+            m_architecture = architecture;
+            m_logger = logger;
+            m_timings = timings;
+            m_builder = builder;
+            m_hooks = hooks;
+            m_aptCache = aptCache;
+            m_metricLabels = metricLabels;
+            m_phaseSuffix = phaseSuffix;
+        }
+
+        boolean updateBase() throws IOException, InterruptedException {
+            if( !m_timings.time( "Create/update base" + m_phaseSuffix, m_builder::createOrUpdateBase ) ){
+                BuildMetrics.recordFailure( m_metricLabels, "base" );
+                return false;
+            }
+
+            return true;
+        }
+
+        synchronized void cleanup() throws IOException, InterruptedException {
+            if( m_cleanedUp ){
+                return;
+            }
+
+            m_cleanedUp = true;
+            m_hooks.cleanup();
+            if( m_aptCache != null ){
+                m_aptCache.evict( m_logger );
+            }
+        }
+    }
+
+    /**
+     * Do the build.  If we are set to use all of the cores, only use our share
+     * of the cores of the node, so that builds running at the same time
+     * don't slow each other down.
+     */
+    private boolean buildWithCoreBudget( FilePath workspace, ArchitectureEnvironment environment,
+            FilePath binariesLocation, FilePath dscFile ) throws IOException, InterruptedException {
+        PbuilderInterface pbuildInterface = environment.m_builder;
+        CoreBudget.Grant grant = acquireCores( workspace, environment.m_logger );
+        if( grant == null ){
+            return pbuildInterface.buildInEnvironment( binariesLocation, dscFile, numberCores );
+        }
+
+        try{
+            return pbuildInterface.buildInEnvironment( binariesLocation, dscFile, grant.getCores() );
+        }finally{
+            workspace.act( new CoreBudget.Release( grant.getId() ) );
+        }
+    }
+
+    /**
+     * Get our share of the cores of the node, if we are set to use all of
+     * the cores.
+     *
+     * @return The cores that were given to us, which must be given back once
+     * the build is done, or null if we are set to use a number of cores
+     */
+    private CoreBudget.Grant acquireCores( FilePath workspace, PrintStream logger )
+            throws IOException, InterruptedException {
+        if( numberCores != -1 ){
+            return null;
+        }
+
+        // Other jobs on this node may be about to ask for their share too
+        Computer computer = workspace.toComputer();
+        int expectedBuilds = Math.max( 1, computer == null ? 1 : computer.countBusy() )
+                + Math.max( 0, getArchitectureList().size() - 1 );
+
+        CoreBudget.Grant grant = workspace.act( new CoreBudget.Acquire( expectedBuilds ) );
+        logger.println( "Using " + grant.getCores() + " of " + grant.getTotalCores()
+                + " cores(" + grant.getActiveBuilds() + " builds running on this node)" );
+
+        return grant;
+    }
+
+    PackageType getPackageType( FilePath workspace ) throws IOException, InterruptedException {
         FilePath formatFile = workspace.child( getDebianDirLocation() )
                 .child( "debian" )
                 .child( "source" )
@@ -656,11 +1714,54 @@ public class DebianPbuilder extends Builder implements SimpleBuildStep {
         return true;
     }
 
+    /**
+     * Get the upstream tarball of a quilt package into the workspace, from
+     * the orig tarball cache of the node or the artifacts of an earlier
+     * build if we are set to, or else with pristine-tar.
+     */
+    private boolean getOrigTarball( Run<?,?> build, FilePath workspace, Launcher launcher, TaskListener listener,
+            ChangelogParser.ChangelogEntry changelogEntry ) throws IOException, InterruptedException {
+        OrigTarballCache cache = null;
+        if( m_cacheOrigTarballs ){
+            cache = OrigTarballCache.forNode( workspace, getOrigCacheSize() );
+        }
+        if( cache == null ){
+            return createPristineTar( workspace, launcher, listener );
+        }
+
+        String source = changelogEntry.getSource();
+        String upstreamVersion = changelogEntry.getUpstreamVersion();
+        FilePath tarball = workspace.child( m_pristineTarName );
+
+        if( cache.restore( source, upstreamVersion, tarball ) ){
+            listener.getLogger().println( "Using " + tarball.getName() + " from the orig tarball cache " + cache.getPath() );
+            return true;
+        }
+
+        boolean fetched = m_origTarballsFromArtifacts &&
+                OrigTarballCache.fetchArchived( build, tarball, listener.getLogger() );
+        if( !fetched && !createPristineTar( workspace, launcher, listener ) ){
+            return false;
+        }
+
+        if( tarball.exists() ){
+            try{
+                cache.store( source, upstreamVersion, tarball, listener.getLogger() );
+            }catch( IOException ex ){
+                // The build can still go on without the cache
+                listener.getLogger().println( "Unable to add " + tarball.getName()
+                        + " to the orig tarball cache: " + ex.getMessage() );
+            }
+        }
+
+        return true;
+    }
+
     private String getDebianArchiveKeyringPath(){
         return "/usr/share/keyrings/debian-archive-keyring.gpg";
     }
 
-    private String getActualArchitecture( FilePath workspace, Launcher launcher, Run<?,?> build, TaskListener listener )
+    private String getActualArchitecture( Run<?,?> build, TaskListener listener, HostFacts hostFacts )
             throws InterruptedException, IOException {
         if( build instanceof AbstractBuild ){
             EnvVars env = build.getEnvironment( listener );
@@ -673,10 +1774,7 @@ public class DebianPbuilder extends Builder implements SimpleBuildStep {
                 }else{
                     listener.getLogger().println( "No architecture found, using " +
                             "dpkg default" );
-                    return getStdoutOfProcess(workspace, launcher, listener,
-                            "dpkg-architecture",
-                            "--query",
-                            "DEB_TARGET_ARCH" );
+                    return hostFacts.getTargetArch();
                 }
             }
 
@@ -684,10 +1782,7 @@ public class DebianPbuilder extends Builder implements SimpleBuildStep {
         }else{
             if( architecture == null ||
                     architecture.length() == 0 ){
-                architecture = getStdoutOfProcess(workspace, launcher, listener,
-                            "dpkg-architecture",
-                            "--query",
-                            "DEB_TARGET_ARCH" );
+                architecture = hostFacts.getTargetArch();
             }
 
             return architecture;
@@ -698,96 +1793,255 @@ public class DebianPbuilder extends Builder implements SimpleBuildStep {
      * Ensure that dpkg-parsechangelog is installed and >= 1.17
      * @return
      */
-    private boolean ensureDpkgParseChangelogIsValid(Launcher launcher, TaskListener listener) throws IOException, InterruptedException {
+    private boolean ensureDpkgParseChangelogIsValid(HostFacts hostFacts, TaskListener listener) {
+        String line = hostFacts.getDpkgParsechangelogVersion();
+        if( line == null ){
+            listener.getLogger().println( "Can't continue: unable to run dpkg-parsechangelog" );
+            return false;
+        }
+
+        String pattern = ".*version (\\d+)\\.(\\d+)\\.(\\d+)";
+        Matcher m = Pattern.compile( pattern ).matcher( line );
+
+        if( m.find() ){
+            int major = Integer.parseInt( m.group( 1 ) );
+            int minor = Integer.parseInt( m.group( 2 ) );
+            //int patch = Integer.parseInt( m.group( 3 ) );
+
+            return ( major >= 1 && minor >= 17 );
+        }
+
+        listener.getLogger().println( "Can't continue: dpkg-parsechangelog is "
+                + "not new enough(needs to be at least 1.17.0)" );
+
+        return false;
+    }
+
+    /**
+     * Get the top entry of debian/changelog.  By default this is parsed on the
+     * node without starting any processes; if the user has asked for it,
+     * dpkg-parsechangelog is used instead.
+     *
+     * @return The changelog entry, or null if this doesn't look like a Debian package
+     */
+    private ChangelogParser.ChangelogEntry parseChangelog( FilePath workspace, Launcher launcher, TaskListener listener, HostFacts hostFacts ) throws IOException, InterruptedException {
+        if( workspace == null ){
+            return null;
+        }
+
+        if( m_useDpkgParsechangelog ){
+            if( !ensureDpkgParseChangelogIsValid(hostFacts, listener) ){
+                return null;
+            }
+
+            return parseChangelogWithDpkg( workspace, launcher, listener );
+        }
+
+        ChangelogParser.ChangelogEntry entry = workspace.child( getDebianDirLocation() )
+                .child( "debian" )
+                .child( "changelog" )
+                .act( new ChangelogParser() );
+        if( entry == null ){
+            listener.getLogger().println( "Unable to parse the first entry of debian/changelog.  "
+                    + "If the changelog is valid, enable 'Use dpkg-parsechangelog' to parse it with dpkg instead" );
+        }
+
+        return entry;
+    }
+
+    private ChangelogParser.ChangelogEntry parseChangelogWithDpkg( FilePath workspace, Launcher launcher, TaskListener listener ) throws IOException, InterruptedException {
         Launcher.ProcStarter procStarter = launcher
             .launch()
-            .cmdAsSingleString( "dpkg-parsechangelog --version" )
+            .pwd( workspace.child( getDebianDirLocation() ) )
+            .cmds( "dpkg-parsechangelog", "--count", "1" )
             .readStdout();
         Proc proc = procStarter.start();
-        proc.join();
+
+        int status = proc.join();
+
+        if( status != 0 ){
+            return null;
+        }
 
         InputStream is = proc.getStdout();
         if( is == null ){
             listener.getLogger().println( "Internal error: Can't read from subprocess" );
-            return false;
+            return null;
         }
 
-        Scanner scan = new Scanner( is, "UTF-8" );
+        ChangelogParser.ChangelogEntry entry = ChangelogParser.parseDpkgOutput( is );
+        if( entry == null ){
+            listener.getLogger().println( "Unable to get source, version, distribution and maintainer from changelog" );
+        }
 
-        String line = scan.nextLine();
+        return entry;
+    }
 
-        String pattern = ".*version (\\d+)\\.(\\d+)\\.(\\d+)";
-        Matcher m = Pattern.compile( pattern ).matcher( line );
+    /**
+     * Set up the build place and eatmydata for the I/O profile that we are
+     * configured to use.  If the build place can't go on a tmpfs, we fall back
+     * to building on disk with eatmydata.
+     */
+    private void applyIoProfile( FilePath workspace, Launcher launcher, TaskListener listener,
+            PbuilderConfiguration pbuildConfig ) throws IOException, InterruptedException {
+        IoProfile profile = IoProfile.valueOf( getIoProfile() );
+        int tmpfsSize = getTmpfsSize();
+
+        if( profile == IoProfile.Tmpfs ){
+            String reason;
+            if( m_pbuilderType == PbuilderType.Cowbuilder ){
+                // cowbuilder hard links the base into the build place, which
+                // only works if they are on the same filesystem
+                reason = "cowbuilder requires the build place to be on the same filesystem as the base";
+            }else{
+                reason = workspace.act( new TmpfsCheck( TMPFS_BUILDPLACE, tmpfsSize ) );
+            }
 
-        if( m.find() ){
-            int major = Integer.parseInt( m.group( 1 ) );
-            int minor = Integer.parseInt( m.group( 2 ) );
-            //int patch = Integer.parseInt( m.group( 3 ) );
+            if( reason == null ){
+                int status = launcher.launch()
+                        .stdout( listener )
+                        .cmds( "sh", "-c", TMPFS_MOUNT_SCRIPT, TMPFS_BUILDPLACE, Integer.toString( tmpfsSize ) )
+                        .join();
+                if( status != 0 ){
+                    reason = "unable to mount tmpfs on " + TMPFS_BUILDPLACE;
+                }
+            }
+
+            if( reason != null ){
+                listener.getLogger().println( "Not building on tmpfs: " + reason );
+                profile = IoProfile.EatMyData;
+            }
+        }
+
+        switch( profile ){
+            case Tmpfs:
+                pbuildConfig.setUseEatMyData( true );
+                pbuildConfig.setBuildPlace( TMPFS_BUILDPLACE );
+                // The apt cache is still on disk, so we can't hard link from it
+                pbuildConfig.setAptCacheHardlink( false );
+                listener.getLogger().println( "Using I/O profile " + profile + "(build place "
+                        + TMPFS_BUILDPLACE + ", " + tmpfsSize + " MB, eatmydata)" );
+                break;
+            case EatMyData:
+                pbuildConfig.setUseEatMyData( true );
+                listener.getLogger().println( "Using I/O profile " + profile );
+                break;
+            default:
+                listener.getLogger().println( "Using I/O profile " + profile );
+                break;
+        }
+    }
 
-            return ( major >= 1 && minor >= 17 );
+    /**
+     * If the apt proxy is enabled, make sure that it is running on the node and
+     * point the mirrors at it.
+     */
+    private void useAptProxy( FilePath workspace, TaskListener listener, PbuilderConfiguration pbuildConfig )
+            throws IOException, InterruptedException {
+        int port = getDescriptor().getAptProxyPort();
+        if( port <= 0 ){
+            return;
         }
 
-        listener.getLogger().println( "Can't continue: dpkg-parsechangelog is "
-                + "not new enough(needs to be at least 1.17.0)" );
+        FilePath cacheDir = NodeDirectories.get( workspace, "aptproxy" );
+        if( cacheDir == null ){
+            listener.getLogger().println( "Unable to find the root directory of this node, not using the apt proxy" );
+            return;
+        }
 
-        return false;
+        try{
+            workspace.act( new AptProxy.Start( port,
+                    cacheDir.getRemote(),
+                    getDescriptor().getAptProxyCacheSize() * 1024L * 1024L ) );
+        }catch( IOException ex ){
+            // Bases that were set up for the proxy are pointed back at the
+            // mirrors when they are updated
+            listener.getLogger().println( "Unable to start apt proxy on port " + port + ", using the mirrors directly: "
+                    + ex.getMessage() );
+            return;
+        }
+
+        listener.getLogger().println( "Using apt proxy on port " + port );
+        pbuildConfig.setMirrorSite( AptProxy.rewrite( pbuildConfig.getMirrorSite(), port ) );
+        pbuildConfig.setOtherMirror( AptProxy.rewrite( pbuildConfig.getOtherMirror(), port ) );
     }
 
     /**
-     * Basic check to see if we are actually trying to build a debian package.
+     * Checks if a tmpfs of the given size can be used on a node.
      *
-     * @param build
-     * @param launcher
-     * @param listener
-     * @return
+     * Returns null if it can, otherwise the reason why not.
      */
-    private boolean isDebianPackage( FilePath workspace, Launcher launcher, TaskListener listener ) throws IOException, InterruptedException{
-        if( workspace == null ){
-            return false;
-        }
-        Launcher.ProcStarter procStarter = launcher
-            .launch()
-            .pwd( workspace.child( getDebianDirLocation() ) )
-            .cmdAsSingleString( "dpkg-parsechangelog --count 1" )
-            .readStdout();
-        int status = procStarter.join();
+    private static final class TmpfsCheck implements FileCallable<String>{
 
-        if( status != 0 ){
-            return false;
-        }
+        private static final long serialVersionUID = 1L;
 
-        return true;
-    }
+        private final String m_mountPoint;
+        private final long m_sizeMb;
 
-    private String getDpkgField( FilePath workspace, Launcher launcher, TaskListener listener, String fieldName ) throws IOException, InterruptedException {
-        if( workspace == null ){
-            return null;
+        TmpfsCheck( String mountPoint, long sizeMb ){
+            m_mountPoint = mountPoint;
+            m_sizeMb = sizeMb;
         }
-        Launcher.ProcStarter procStarter = launcher
-            .launch()
-            .pwd( workspace.child( getDebianDirLocation() ) )
-            .cmds( "dpkg-parsechangelog", "--show-field", fieldName )
-            .readStdout();
-        Proc proc = procStarter.start();
 
-        int status = proc.join();
+        @Override
+        public String invoke( File f, VirtualChannel channel ) throws IOException, InterruptedException {
+            long availableMb = -1;
+            for( String line : Files.readAllLines( Path.of( "/proc/meminfo" ) ) ){
+                if( line.startsWith( "MemAvailable:" ) ){
+                    availableMb = Long.parseLong( line.replaceAll( "[^0-9]", "" ) ) / 1024;
+                    break;
+                }
+            }
 
-        if( status != 0 ){
-            return null;
-        }
+            if( availableMb < 0 ){
+                return "unable to find the available memory";
+            }
+
+            if( availableMb < m_sizeMb ){
+                return "only " + availableMb + " MB of memory available, need " + m_sizeMb + " MB";
+            }
+
+            if( isTmpfsMounted() ){
+                // A smaller tmpfs is grown to the configured size when it is mounted
+                File mountPoint = new File( m_mountPoint );
+                long totalMb = mountPoint.getTotalSpace() / ( 1024 * 1024 );
+                long usedMb = totalMb - mountPoint.getUsableSpace() / ( 1024 * 1024 );
+                long freeMb = Math.max( totalMb, m_sizeMb ) - usedMb;
+                if( freeMb < m_sizeMb ){
+                    return "only " + freeMb + " MB free on " + m_mountPoint + ", need " + m_sizeMb
+                            + " MB(" + usedMb + " MB is used by other builds)";
+                }
+            }
 
-        InputStream is = proc.getStdout();
-        if( is == null ){
-            listener.getLogger().println( "Internal error: Can't read from subprocess" );
             return null;
         }
 
-        Scanner scan = new Scanner( is, "UTF-8" );
+        private boolean isTmpfsMounted() throws IOException {
+            for( String line : Files.readAllLines( Path.of( "/proc/mounts" ) ) ){
+                String[] fields = line.split( " " );
+                if( fields.length > 2 &&
+                        fields[ 1 ].equals( m_mountPoint ) &&
+                        fields[ 2 ].equals( "tmpfs" ) ){
+                    return true;
+                }
+            }
+
+            return false;
+        }
 
-        return scan.nextLine();
+        @Override
+        public void checkRoles( RoleChecker checker ) throws SecurityException {}
     }
 
-    private static final class ChangelogUpdater implements FileCallable<Void>{
+    /**
+     * Prepends the snapshot entry to the changelog.
+     *
+     * The new entry is written to a temporary file next to the changelog, the
+     * old contents are then copied after it and the temporary file is moved
+     * over the original.  This means that memory usage does not depend on the
+     * size of the changelog, and the changelog is never left half-written.
+     */
+    static final class ChangelogUpdater implements FileCallable<Void>{
 
         private static final long serialVersionUID = 20260205;
         private final String m_packageName;
@@ -802,46 +2056,70 @@ public class DebianPbuilder extends Builder implements SimpleBuildStep {
 
         @Override
         public Void invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
-            StringBuilder strBuild = new StringBuilder();
+            Path changelog = f.toPath();
+            Path tmpChangelog = Files.createTempFile( changelog.getParent(), ".changelog", ".tmp" );
+
+            try{
+                try( FileChannel out = FileChannel.open( tmpChangelog, StandardOpenOption.WRITE );
+                        FileChannel in = FileChannel.open( changelog, StandardOpenOption.READ ) ){
+                    ByteBuffer header = ByteBuffer.wrap( getHeader().getBytes( StandardCharsets.UTF_8 ) );
+                    while( header.hasRemaining() ){
+                        out.write( header );
+                    }
+
+                    long position = 0;
+                    long size = in.size();
+                    while( position < size ){
+                        position += in.transferTo( position, size - position, out );
+                    }
 
-            try(Scanner scan = new Scanner( f, "UTF-8" )){
-                String debEmail = "Debian Pbuilder Autobuilder <" +
-                        m_email + ">";
-                java.time.ZonedDateTime now = java.time.ZonedDateTime.now();
-                DateTimeFormatter dtFormat = DateTimeFormatter.ofPattern( "ccc, dd MMM YYYY HH:mm:ss Z");
-
-                strBuild.append( m_packageName );
-                strBuild.append( " (" );
-                strBuild.append( m_snapshotVersion );
-                strBuild.append( ") UNRELEASED; urgency=low" );
-                strBuild.append( System.lineSeparator() );
-                strBuild.append( System.lineSeparator() );
-
-                strBuild.append( "  ** SNAPSHOT Build **" );
-                strBuild.append( System.lineSeparator() );
-                strBuild.append( System.lineSeparator() );
-
-                strBuild.append( " -- " );
-                strBuild.append( debEmail );
-                strBuild.append( "  " );
-                strBuild.append( now.format( dtFormat ) );
-                strBuild.append( System.lineSeparator() );
-                strBuild.append( System.lineSeparator() );
-
-                while( scan.hasNextLine() ){
-                    strBuild.append( scan.nextLine() );
-                    strBuild.append( System.lineSeparator() );
+                    out.force( true );
+                }
+
+                try{
+                    Files.setPosixFilePermissions( tmpChangelog, Files.getPosixFilePermissions( changelog ) );
+                }catch( UnsupportedOperationException ex ){
+                    // Not a POSIX filesystem, nothing to keep
                 }
-            }
 
-            FileOutputStream fos = new FileOutputStream(f);
-            try(Writer w = new OutputStreamWriter( fos, "UTF-8" )){
-                w.write( strBuild.toString() );
+                Files.move( tmpChangelog, changelog,
+                        StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING );
+            }finally{
+                Files.deleteIfExists( tmpChangelog );
             }
 
             return null;
         }
 
+        private String getHeader(){
+            StringBuilder strBuild = new StringBuilder();
+            String debEmail = "Debian Pbuilder Autobuilder <" +
+                    m_email + ">";
+            java.time.ZonedDateTime now = java.time.ZonedDateTime.now();
+            DateTimeFormatter dtFormat = DateTimeFormatter.ofPattern( "ccc, dd MMM yyyy HH:mm:ss Z", java.util.Locale.ENGLISH );
+
+            strBuild.append( m_packageName );
+            strBuild.append( " (" );
+            strBuild.append( m_snapshotVersion );
+            strBuild.append( ") UNRELEASED; urgency=low" );
+            strBuild.append( System.lineSeparator() );
+            strBuild.append( System.lineSeparator() );
+
+            strBuild.append( "  ** SNAPSHOT Build **" );
+            strBuild.append( System.lineSeparator() );
+            strBuild.append( System.lineSeparator() );
+
+            strBuild.append( " -- " );
+            strBuild.append( debEmail );
+            strBuild.append( "  " );
+            strBuild.append( now.format( dtFormat ) );
+            strBuild.append( System.lineSeparator() );
+            strBuild.append( System.lineSeparator() );
+
+            return strBuild.toString();
+        }
+
         @Override
         public void checkRoles(RoleChecker checker) throws SecurityException {}
 
@@ -852,30 +2130,21 @@ public class DebianPbuilder extends Builder implements SimpleBuildStep {
      * since we just want new stuff + old.  This is what jenkins-debian-glue does with SVN snapshots.
      *
      */
-    private void updateChangelog( Launcher launcher, FilePath changelog, String packageName, String snapshotVersion ) throws IOException, InterruptedException {
-        String email = getEmail(launcher);
+    private void updateChangelog( HostFacts hostFacts, FilePath changelog, String packageName, String snapshotVersion ) throws IOException, InterruptedException {
+        String email = getEmail(hostFacts);
 
         changelog.act(new ChangelogUpdater(packageName, snapshotVersion, email));
     }
 
-    private String getEmail( Launcher launcher ) throws IOException, InterruptedException{
+    private String getEmail( HostFacts hostFacts ){
         String email = getDescriptor().getJenkinsEmail();
 
         if( email == null || email.length() == 0 ){
-            Launcher.ProcStarter procStarter = launcher
-                .launch()
-                .cmds( "hostname" )
-                .readStdout();
-            Proc proc = procStarter.start();
-            proc.join();
-            InputStream is = proc.getStdout();
-            if( is == null ){
-                launcher.getListener().getLogger().println( "Internal error: Can't read from subprocess" );
+            if( hostFacts.getHostname() == null ){
                 return email;
             }
-            Scanner scan = new Scanner( is, "UTF-8" );
 
-            return "jenkins@" + scan.nextLine();
+            return "jenkins@" + hostFacts.getHostname();
         }
 
         return email;
@@ -883,10 +2152,28 @@ public class DebianPbuilder extends Builder implements SimpleBuildStep {
 
     private boolean tarSources( FilePath workspace, Launcher launcher, TaskListener listener )
         throws IOException, InterruptedException{
+        FilePath sourceDir = workspace.child( getDebianDirLocation() );
+        SourceExclusions exclusions = SourceExclusions.create( m_autoExcludeSources, m_sourceExcludes,
+                sourceDir, launcher, listener.getLogger() );
+        long treeSize = -1;
+
+        List<String> cmds = new ArrayList<>();
+        cmds.add( "dpkg-source" );
+        if( !exclusions.isEmpty() ){
+            cmds.addAll( exclusions.getDpkgSourceOptions( sourceDir.getName() ) );
+            if( exclusions.getIgnoredCount() > 0 ){
+                listener.getLogger().println( "Excluding " + exclusions.getIgnoredCount()
+                        + " files or directories that git ignores from the source package" );
+            }
+            treeSize = sourceDir.act( SourceExclusions.getTreeSize() );
+        }
+        cmds.add( "-b" );
+        cmds.add( getDebianDirLocation() );
+
         Launcher.ProcStarter procStarter = launcher
             .launch()
             .pwd( workspace )
-            .cmds( "dpkg-source", "-b", getDebianDirLocation() )
+            .cmds( cmds )
             .stderr( listener.getLogger() )
             .stdout( listener.getLogger() );
         int status = procStarter.join();
@@ -895,6 +2182,20 @@ public class DebianPbuilder extends Builder implements SimpleBuildStep {
             return false;
         }
 
+        if( treeSize >= 0 ){
+            FilePath dsc = null;
+            for( FilePath path : workspace.list( "*.dsc" ) ){
+                if( dsc == null || path.lastModified() > dsc.lastModified() ){
+                    dsc = path;
+                }
+            }
+
+            if( dsc != null ){
+                listener.getLogger().println( String.format( "Source tree is %.1f MB, source package is %.1f MB",
+                        treeSize / 1048576.0, SourceExclusions.getSourcePackageSize( dsc ) / 1048576.0 ) );
+            }
+        }
+
         return true;
     }
 
@@ -938,41 +2239,10 @@ public class DebianPbuilder extends Builder implements SimpleBuildStep {
         return true;
     }
 
-    private String getStdoutOfProcess( FilePath workspace, Launcher launcher, TaskListener listener, String ... args )
-        throws IOException, InterruptedException {
-        StringBuilder toRet = new StringBuilder();
-        Launcher.ProcStarter procStarter = launcher
-            .launch()
-            .pwd( workspace )
-            .cmds( args )
-            .readStdout();
-        int status;
-        Proc proc = null;
-        proc = procStarter.start();
-        status = proc.join();
-
-        if( status != 0 ){
-            return null;
-        }
-
-        InputStream is = proc.getStdout();
-        if( is == null ){
-            listener.getLogger().println( "Internal error: Can't read from subprocess" );
-            return null;
-        }
-
-        Scanner scan = new Scanner( is, "UTF-8" );
-        while( scan.hasNextLine() ){
-            toRet.append( scan.nextLine() );
-        }
-
-        return toRet.toString();
-    }
-
-    private boolean isUbuntu( FilePath workspace, Launcher launcher, TaskListener listener ) throws IOException, InterruptedException {
-        String output = getStdoutOfProcess( workspace, launcher, listener, "lsb_release", "--id" );
+    private boolean isUbuntu( HostFacts hostFacts ){
+        String output = hostFacts.getDistributorId();
 
-        if( output.indexOf( "Ubuntu" ) >= 0 ){
+        if( output != null && output.indexOf( "Ubuntu" ) >= 0 ){
             return true;
         }else{
             return false;
@@ -1003,26 +2273,45 @@ public class DebianPbuilder extends Builder implements SimpleBuildStep {
         return false;
     }
 
+    /**
+     * @param architectures The architectures that were built
+     * @param perArchitecture True if the results of each architecture are in
+     * their own sub-directory of the binaries location
+     */
     private void writeArtifactorySpecFile(FilePath workspace,
             FilePath binariesLocation,
             FilePath dscFile,
             String sourceName,
             String distribution,
-            String architecture,
+            List<String> architectures,
+            boolean perArchitecture,
             String repoName) throws IOException, InterruptedException{
-        String specFileContents = "{\"files\":["
-                + "{"
-                + "\"pattern\":\"" + binariesLocation.getName() + "/*.deb\","
+        String specFileContents = "{\"files\":[";
+        for( String architecture : architectures ){
+            String resultDir = binariesLocation.getName();
+            if( perArchitecture ){
+                resultDir += "/" + architecture;
+            }
+
+            specFileContents += "{"
+                + "\"pattern\":\"" + resultDir + "/*.deb\","
                 + "\"target\":\"" + repoName + "/pool/" + sourceName + "/\","
                 + "\"props\":\"deb.distribution=" + distribution + ";deb.component=main;deb.architecture=" + architecture + "\""
-                + "},"
-                + "{"
-                + "\"pattern\":\"" + binariesLocation.getName() + "/*.tar*\","
+                + "},";
+        }
+
+        // The source package is only built once
+        String sourceDir = binariesLocation.getName();
+        if( perArchitecture ){
+            sourceDir += "/" + architectures.get( 0 );
+        }
+        specFileContents += "{"
+                + "\"pattern\":\"" + sourceDir + "/*.tar*\","
                 + "\"target\":\"" + repoName + "/pool/" + sourceName + "/\","
                 + "\"props\":\"deb.distribution=" + distribution + ";deb.component=main;\""
                 + "},"
                 + "{"
-                + "\"pattern\":\"" + binariesLocation.getName() + "/*.dsc\","
+                + "\"pattern\":\"" + sourceDir + "/*.dsc\","
                 + "\"target\":\"" + repoName + "/pool/" + sourceName + "/\","
                 + "\"props\":\"deb.distribution=" + distribution + ";deb.component=main;\""
                 + "}"
@@ -1066,6 +2355,9 @@ public class DebianPbuilder extends Builder implements SimpleBuildStep {
         private String packageVersionFormat;
         private String defaultDebianDirLocation;
         private String dependsResolver;
+        private Integer hostFactsCacheMinutes;
+        private int aptProxyPort;
+        private Integer aptProxyCacheSize;
 
         public DescriptorImpl(){
             load();
@@ -1129,6 +2421,9 @@ public class DebianPbuilder extends Builder implements SimpleBuildStep {
             }catch( IllegalArgumentException ex ){
                 dependsResolver = PbuilderConfiguration.SatisfyDependsResolver.DEFAULT.name();
             }
+            hostFactsCacheMinutes = formData.optInt( "hostFactsCacheMinutes", defaultHostFactsCacheMinutes() );
+            aptProxyPort = formData.optInt( "aptProxyPort", 0 );
+            aptProxyCacheSize = formData.optInt( "aptProxyCacheSize", defaultAptProxyCacheSize() );
 
             save();
             return super.configure(req,formData);
@@ -1169,6 +2464,232 @@ public class DebianPbuilder extends Builder implements SimpleBuildStep {
             return dependsResolver;
         }
 
+        public int getHostFactsCacheMinutes(){
+            if( hostFactsCacheMinutes == null || hostFactsCacheMinutes < 0 ){
+                return defaultHostFactsCacheMinutes();
+            }
+
+            return hostFactsCacheMinutes;
+        }
+
+        public int defaultHostFactsCacheMinutes(){
+            return 60;
+        }
+
+        public int getAptProxyPort(){
+            return aptProxyPort;
+        }
+
+        public int getAptProxyCacheSize(){
+            if( aptProxyCacheSize == null || aptProxyCacheSize <= 0 ){
+                return defaultAptProxyCacheSize();
+            }
+
+            return aptProxyCacheSize;
+        }
+
+        public int defaultAptProxyCacheSize(){
+            return 10240;
+        }
+
+        public FormValidation doCheckAptProxyPort(@QueryParameter String value ){
+            try{
+                int port = Integer.parseInt( value );
+                if( port < 0 || port > 65535 ){
+                    return FormValidation.error( "Port must be between 0 and 65535" );
+                }
+            }catch( NumberFormatException ex ){
+                return FormValidation.error( "That is not a valid number" );
+            }
+
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckAptProxyCacheSize(@QueryParameter String value ){
+            try{
+                if( Integer.parseInt( value ) <= 0 ){
+                    return FormValidation.error( "Size must be positive" );
+                }
+            }catch( NumberFormatException ex ){
+                return FormValidation.error( "That is not a valid number" );
+            }
+
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckTransferStreams(@QueryParameter String value ){
+            try{
+                int streams = Integer.parseInt( value );
+                if( streams < 0 ){
+                    return FormValidation.error( "Number of streams cannot be negative" );
+                }
+                if( streams > 16 ){
+                    return FormValidation.warning( "More than 16 streams is unlikely to be any faster" );
+                }
+            }catch( NumberFormatException ex ){
+                return FormValidation.error( "That is not a valid number" );
+            }
+
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckBuildDepsLayers(@QueryParameter String value ){
+            try{
+                if( Integer.parseInt( value ) < 0 ){
+                    return FormValidation.error( "Number of layers cannot be negative" );
+                }
+            }catch( NumberFormatException ex ){
+                return FormValidation.error( "That is not a valid number" );
+            }
+
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckBaseMaxAge(@QueryParameter String value ){
+            try{
+                if( Integer.parseInt( value ) < 0 ){
+                    return FormValidation.error( "Age cannot be negative" );
+                }
+            }catch( NumberFormatException ex ){
+                return FormValidation.error( "That is not a valid number" );
+            }
+
+            return FormValidation.ok();
+        }
+
+        public int defaultLockTimeout(){
+            return 60;
+        }
+
+        public int defaultArtifactoryConnections(){
+            return 4;
+        }
+
+        public FormValidation doCheckArtifactoryUrl(@QueryParameter String value ){
+            if( value == null || value.isEmpty() ){
+                return FormValidation.ok();
+            }
+
+            if( !value.startsWith( "http://" ) && !value.startsWith( "https://" ) ){
+                return FormValidation.error( "The URL must start with http:// or https://" );
+            }
+
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckArtifactoryConnections(@QueryParameter String value ){
+            try{
+                if( Integer.parseInt( value ) <= 0 ){
+                    return FormValidation.error( "Number of connections must be positive" );
+                }
+            }catch( NumberFormatException ex ){
+                return FormValidation.error( "That is not a valid number" );
+            }
+
+            return FormValidation.ok();
+        }
+
+        public ListBoxModel doFillArtifactoryCredentialsIdItems(@AncestorInPath Item item,
+                @QueryParameter String artifactoryCredentialsId ){
+            StandardListBoxModel result = new StandardListBoxModel();
+            if( item == null ? !Jenkins.get().hasPermission( Jenkins.ADMINISTER ) :
+                    !item.hasPermission( Item.EXTENDED_READ ) ){
+                return result.includeCurrentValue( artifactoryCredentialsId );
+            }
+
+            return result.includeEmptyValue()
+                    .includeAs( ACL.SYSTEM2, item, StandardUsernamePasswordCredentials.class )
+                    .includeCurrentValue( artifactoryCredentialsId );
+        }
+
+        public int defaultOrigCacheSize(){
+            return 4096;
+        }
+
+        public FormValidation doCheckOrigCacheSize(@QueryParameter String value ){
+            try{
+                if( Integer.parseInt( value ) <= 0 ){
+                    return FormValidation.error( "Size must be positive" );
+                }
+            }catch( NumberFormatException ex ){
+                return FormValidation.error( "That is not a valid number" );
+            }
+
+            return FormValidation.ok();
+        }
+
+        public int defaultAptCacheSize(){
+            return 2048;
+        }
+
+        public FormValidation doCheckAptCacheSize(@QueryParameter String value ){
+            try{
+                if( Integer.parseInt( value ) < 0 ){
+                    return FormValidation.error( "Size cannot be negative" );
+                }
+            }catch( NumberFormatException ex ){
+                return FormValidation.error( "That is not a valid number" );
+            }
+
+            return FormValidation.ok();
+        }
+
+        public int defaultCcacheSize(){
+            return 5120;
+        }
+
+        public FormValidation doCheckCcacheSize(@QueryParameter String value ){
+            try{
+                if( Integer.parseInt( value ) <= 0 ){
+                    return FormValidation.error( "Size must be positive" );
+                }
+            }catch( NumberFormatException ex ){
+                return FormValidation.error( "That is not a valid number" );
+            }
+
+            return FormValidation.ok();
+        }
+
+        public int defaultTmpfsSize(){
+            return 4096;
+        }
+
+        public FormValidation doCheckTmpfsSize(@QueryParameter String value ){
+            try{
+                if( Integer.parseInt( value ) <= 0 ){
+                    return FormValidation.error( "Size must be positive" );
+                }
+            }catch( NumberFormatException ex ){
+                return FormValidation.error( "That is not a valid number" );
+            }
+
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckLockTimeout(@QueryParameter String value ){
+            try{
+                if( Integer.parseInt( value ) < 0 ){
+                    return FormValidation.error( "Timeout cannot be negative" );
+                }
+            }catch( NumberFormatException ex ){
+                return FormValidation.error( "That is not a valid number" );
+            }
+
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckHostFactsCacheMinutes(@QueryParameter String value ){
+            try{
+                if( Integer.parseInt( value ) < 0 ){
+                    return FormValidation.error( "Cache time cannot be negative" );
+                }
+            }catch( NumberFormatException ex ){
+                return FormValidation.error( "That is not a valid number" );
+            }
+
+            return FormValidation.ok();
+        }
+
         PbuilderConfiguration.SatisfyDependsResolver getDependsResolverEnum(){
             PbuilderConfiguration.SatisfyDependsResolver resolver;
 
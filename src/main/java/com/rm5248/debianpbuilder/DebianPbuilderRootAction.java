@@ -0,0 +1,43 @@
+package com.rm5248.debianpbuilder;
+
+import hudson.Extension;
+import hudson.model.RootAction;
+import java.io.IOException;
+import java.io.PrintWriter;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.StaplerRequest2;
+import org.kohsuke.stapler.StaplerResponse2;
+
+/**
+ * Serves the metrics of the plugin at /debian-pbuilder/metrics, in the
+ * Prometheus text exposition format.
+ */
+@Extension
+public class DebianPbuilderRootAction implements RootAction {
+
+    public void doMetrics( StaplerRequest2 req, StaplerResponse2 rsp ) throws IOException {
+        Jenkins.get().checkPermission( Jenkins.READ );
+
+        rsp.setContentType( "text/plain; version=0.0.4; charset=UTF-8" );
+        rsp.setHeader( "Cache-Control", "no-cache" );
+        PrintWriter w = rsp.getWriter();
+        BuildMetrics.write( w );
+        w.flush();
+    }
+
+    @Override
+    public String getIconFileName(){
+        // Not shown in the side panel
+        return null;
+    }
+
+    @Override
+    public String getDisplayName(){
+        return "Debian Pbuilder";
+    }
+
+    @Override
+    public String getUrlName(){
+        return "debian-pbuilder";
+    }
+}
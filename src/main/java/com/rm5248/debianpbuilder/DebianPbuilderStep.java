@@ -0,0 +1,326 @@
+package com.rm5248.debianpbuilder;
+
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.Computer;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.Timer;
+import org.jenkinsci.plugins.structs.describable.DescribableModel;
+import org.jenkinsci.plugins.structs.describable.UninstantiatedDescribable;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepExecutionImpl;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * The debianPbuilder Pipeline step.
+ *
+ * This takes the same arguments as the build step, but pbuilder is run as a
+ * durable task on the agent, and no thread waits for it while it builds.  If the controller restarts while the package
+ * is building, the build keeps going, and once the controller is back the
+ * step reconnects to it and archives the results as usual.
+ */
+public class DebianPbuilderStep extends Step {
+
+    private final DebianPbuilder m_builder;
+
+    @DataBoundConstructor
+    public DebianPbuilderStep( DebianPbuilder builder ){
+        m_builder = builder;
+    }
+
+    public DebianPbuilder getBuilder(){
+        return m_builder;
+    }
+
+    @Override
+    public StepExecution start( StepContext context ) throws Exception {
+        return new Execution( context, m_builder );
+    }
+
+    /**
+     * Prepares the source package and starts building it on a pooled
+     * thread, then polls the build from the timer, so that no thread waits
+     * for it while it runs.  Once every architecture has been built, the
+     * results are archived on a pooled thread again.
+     */
+    private static final class Execution extends AbstractStepExecutionImpl {
+
+        private static final long serialVersionUID = 1L;
+
+        private static final Logger LOGGER = Logger.getLogger( Execution.class.getName() );
+
+        // How long to wait for the agent to come back after a restart
+        private static final long RECONNECT_MILLIS = TimeUnit.MINUTES.toMillis( 5 );
+
+        // How long to wait between checks of whether the build has finished
+        private static final long MIN_POLL_MILLIS = 250;
+        private static final long MAX_POLL_MILLIS = 5000;
+
+        private final DebianPbuilder m_builder;
+        private final ResumableBuild m_resumable = new ResumableBuild();
+        private transient volatile Future<?> m_task;
+        private transient volatile long m_giveUp;
+        private transient volatile boolean m_resumed;
+        private transient boolean m_completed;
+
+        Execution( StepContext context, DebianPbuilder builder ){
+            super( context );
+            m_builder = builder;
+        }
+
+        @Override
+        public boolean start() throws Exception {
+            m_resumable.setOnChange( () -> getContext().saveState() );
+            m_resumable.setEnvironment( getContext().get( EnvVars.class ) );
+            m_task = Computer.threadPoolForRemoting.submit( this::build );
+            return false;
+        }
+
+        private void build(){
+            StepContext context = getContext();
+            try{
+                boolean success = m_builder.build( context.get( Run.class ),
+                        context.get( FilePath.class ),
+                        context.get( Launcher.class ),
+                        context.get( TaskListener.class ),
+                        m_resumable );
+                if( m_resumable.isBuilding() ){
+                    m_giveUp = System.currentTimeMillis() + RECONNECT_MILLIS;
+                    schedulePoll( MIN_POLL_MILLIS );
+                }else{
+                    finish( success );
+                }
+            }catch( Throwable t ){
+                fail( t );
+            }
+        }
+
+        @Override
+        public void onResume(){
+            if( !m_resumable.isBuilding() ){
+                // Only the build itself is durable, preparing the source package is not
+                fail( new AbortException(
+                        "Jenkins restarted before the source package was ready, unable to resume the build" ) );
+                return;
+            }
+
+            m_resumable.setOnChange( () -> getContext().saveState() );
+            m_giveUp = System.currentTimeMillis() + RECONNECT_MILLIS;
+            m_resumed = true;
+            schedulePoll( MIN_POLL_MILLIS );
+        }
+
+        private void schedulePoll( long delay ){
+            m_task = Timer.get().schedule( () -> poll( delay ), delay, TimeUnit.MILLISECONDS );
+        }
+
+        /**
+         * Copy the new output of the build to the log, and check if any of
+         * the architectures have finished.
+         *
+         * @param delay How long we waited since the last check
+         */
+        private void poll( long delay ){
+            if( isCompleted() ){
+                return;
+            }
+
+            StepContext context = getContext();
+            try{
+                FilePath workspace = getWorkspace();
+                List<String> exited = null;
+                if( workspace != null ){
+                    try{
+                        TaskListener listener = context.get( TaskListener.class );
+                        if( m_resumed ){
+                            m_resumable.resumed( workspace, listener );
+                            m_resumed = false;
+                        }
+                        exited = m_resumable.poll( workspace, context.get( Launcher.class ), listener );
+                        m_giveUp = System.currentTimeMillis() + RECONNECT_MILLIS;
+                    }catch( IOException ex ){
+                        // The agent may have gone away, give it some time to come back
+                        LOGGER.log( Level.FINE, "Unable to check on the build", ex );
+                    }
+                }
+
+                if( exited == null ){
+                    if( System.currentTimeMillis() > m_giveUp ){
+                        fail( new AbortException( "Lost the connection to the agent that was building the package,"
+                                + " unable to finish the build" ) );
+                        return;
+                    }
+                    schedulePoll( MAX_POLL_MILLIS );
+                    return;
+                }
+
+                if( exited.isEmpty() && !m_resumable.isFinished() ){
+                    schedulePoll( Math.min( delay * 2, MAX_POLL_MILLIS ) );
+                    return;
+                }
+
+                // Finishing copies the results around, so it is not done on the timer
+                List<String> finished = exited;
+                m_task = Computer.threadPoolForRemoting.submit( () -> finishArchitectures( workspace, finished ) );
+            }catch( Throwable t ){
+                fail( t );
+            }
+        }
+
+        private void finishArchitectures( FilePath workspace, List<String> exited ){
+            if( isCompleted() ){
+                return;
+            }
+
+            StepContext context = getContext();
+            try{
+                Run<?,?> run = context.get( Run.class );
+                TaskListener listener = context.get( TaskListener.class );
+                for( String architecture : exited ){
+                    m_resumable.finish( architecture, run, workspace, listener );
+                }
+
+                if( !m_resumable.isFinished() ){
+                    schedulePoll( MIN_POLL_MILLIS );
+                    return;
+                }
+
+                finish( m_builder.finishDurableBuild( run, workspace, context.get( Launcher.class ), listener,
+                        m_resumable ) );
+            }catch( Throwable t ){
+                fail( t );
+            }
+        }
+
+        /**
+         * @return The workspace, or null if the agent is not connected
+         */
+        private FilePath getWorkspace() throws IOException, InterruptedException {
+            FilePath workspace = getContext().get( FilePath.class );
+            if( workspace == null || workspace.toComputer() == null ){
+                return null;
+            }
+
+            return workspace;
+        }
+
+        /**
+         * Only one of finishing, failing and being stopped completes the
+         * step.
+         *
+         * @return True if the caller is the one to complete it
+         */
+        private synchronized boolean complete(){
+            if( m_completed ){
+                return false;
+            }
+
+            m_completed = true;
+            return true;
+        }
+
+        private synchronized boolean isCompleted(){
+            return m_completed;
+        }
+
+        private void finish( boolean success ){
+            if( !complete() ){
+                return;
+            }
+
+            if( success ){
+                getContext().onSuccess( null );
+            }else{
+                getContext().onFailure( new AbortException( "Unable to build properly" ) );
+            }
+        }
+
+        private void fail( Throwable t ){
+            if( !complete() ){
+                return;
+            }
+
+            stopBuild();
+            getContext().onFailure( t );
+        }
+
+        @Override
+        public void stop( Throwable cause ) throws Exception {
+            if( !complete() ){
+                return;
+            }
+
+            Future<?> task = m_task;
+            if( task != null ){
+                task.cancel( true );
+            }
+            stopBuild();
+            getContext().onFailure( cause );
+        }
+
+        private void stopBuild(){
+            try{
+                m_resumable.stop( getWorkspace(), getContext().get( Launcher.class ) );
+            }catch( Exception ex ){
+                LOGGER.log( Level.WARNING, "Unable to stop pbuilder", ex );
+            }
+        }
+
+        @Override
+        public String getStatus(){
+            return m_resumable.isBuilding() ? "building the package" : "preparing the source package";
+        }
+    }
+
+    @Extension( optional = true )
+    public static final class DescriptorImpl extends StepDescriptor {
+
+        @Override
+        public Set<? extends Class<?>> getRequiredContext(){
+            return new HashSet<>( Arrays.asList( Run.class, FilePath.class, Launcher.class,
+                    TaskListener.class, EnvVars.class ) );
+        }
+
+        @Override
+        public String getFunctionName(){
+            return "debianPbuilder";
+        }
+
+        @Override
+        public String getDisplayName(){
+            return "Build a Debian package in pbuilder";
+        }
+
+        /**
+         * Take the arguments of the build step directly, so that
+         * debianPbuilder(...) is written the same way as before this step
+         * existed.
+         */
+        @Override
+        public Step newInstance( Map<String,Object> arguments ) throws Exception {
+            return new DebianPbuilderStep( DescribableModel.of( DebianPbuilder.class ).instantiate( arguments ) );
+        }
+
+        @Override
+        public UninstantiatedDescribable uninstantiate( Step step ) throws UnsupportedOperationException {
+            return DescribableModel.uninstantiate2_( ((DebianPbuilderStep)step).getBuilder() );
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.rm5248.debianpbuilder;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.TaskListener;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.List;
+import org.jenkinsci.plugins.durabletask.BourneShellScript;
+import org.jenkinsci.plugins.durabletask.Controller;
+
+/**
+ * A process on a node that keeps running if the controller restarts.  The
+ * durable-task plugin keeps the output and the exit status of the process
+ * in files next to the workspace, so after a restart we can reconnect to it
+ * and carry on copying its output to the build log from where we stopped.
+ *
+ * Nothing waits for the process to finish; it is polled instead, so that no
+ * thread is tied up while it runs.
+ */
+final class DurableProcess implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Controller m_controller;
+
+    private DurableProcess( Controller controller ){
+        m_controller = controller;
+    }
+
+    /**
+     * Start a command as a durable task.
+     *
+     * @param workspace The directory to run the command in
+     * @param env The environment of the command
+     */
+    static DurableProcess launch( FilePath workspace, Launcher launcher, TaskListener listener, EnvVars env,
+            List<String> cmds ) throws IOException, InterruptedException {
+        StringBuilder script = new StringBuilder( "#!/bin/sh\nexec" );
+        for( String cmd : cmds ){
+            script.append( ' ' ).append( quote( cmd ) );
+        }
+        script.append( '\n' );
+
+        return new DurableProcess( new BourneShellScript( script.toString() )
+                .launch( env, workspace, launcher, listener ) );
+    }
+
+    private static String quote( String arg ){
+        return "'" + arg.replace( "'", "'\\''" ) + "'";
+    }
+
+    /**
+     * Copy any new output of the process, and check if it has finished.
+     *
+     * @return The exit status, or null if the process is still running
+     */
+    Integer poll( FilePath workspace, Launcher launcher, TaskListener listener, OutputStream output )
+            throws IOException, InterruptedException {
+        m_controller.writeLog( workspace, output );
+        Integer status = m_controller.exitStatus( workspace, launcher, listener );
+        if( status == null ){
+            return null;
+        }
+
+        // Anything written between the last copy and the process exiting
+        m_controller.writeLog( workspace, output );
+        output.flush();
+        m_controller.cleanup( workspace );
+
+        return status;
+    }
+
+    void stop( FilePath workspace, Launcher launcher ) throws IOException, InterruptedException {
+        m_controller.stop( workspace, launcher );
+    }
+}
@@ -0,0 +1,49 @@
+package com.rm5248.debianpbuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Hashing of files for the caches, which all store and look up files by
+ * their SHA-256.
+ */
+final class FileHashes {
+
+    private FileHashes(){}
+
+    static MessageDigest newSha256() throws IOException {
+        try{
+            return MessageDigest.getInstance( "SHA-256" );
+        }catch( NoSuchAlgorithmException ex ){
+            throw new IOException( ex );
+        }
+    }
+
+    /**
+     * Add the contents of a file to a digest, without reading all of it
+     * into memory.
+     */
+    static void update( MessageDigest digest, Path file ) throws IOException {
+        byte[] buffer = new byte[ 64 * 1024 ];
+        try( InputStream is = Files.newInputStream( file ) ){
+            int read;
+            while( (read = is.read( buffer )) >= 0 ){
+                digest.update( buffer, 0, read );
+            }
+        }
+    }
+
+    /**
+     * @return The SHA-256 of a file, in hex
+     */
+    static String sha256( Path file ) throws IOException {
+        MessageDigest digest = newSha256();
+        update( digest, file );
+        return HexFormat.of().formatHex( digest.digest() );
+    }
+}
@@ -0,0 +1,81 @@
+package com.rm5248.debianpbuilder;
+
+import hudson.FilePath;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The hook directory that is given to pbuilder.
+ *
+ * Hooks that the plugin generates itself can't be written into the hookdir
+ * of the package, since that is part of the checkout.  If there are any
+ * generated hooks, the hooks of the package are copied into a temporary
+ * directory in the workspace together with the generated hooks, and that
+ * directory is used instead.
+ */
+final class HookDirectory {
+
+    private final FilePath m_workspace;
+    private final FilePath m_packageHookdir;
+    private final Map<String,String> m_generatedHooks;
+    private FilePath m_tempHookdir;
+
+    HookDirectory( FilePath workspace, FilePath packageHookdir ){
+        m_workspace = workspace;
+        m_packageHookdir = packageHookdir;
+        m_generatedHooks = new TreeMap<>();
+    }
+
+    /**
+     * Add a generated hook.
+     *
+     * @param name The name of the hook; the first letter says when pbuilder
+     * runs it(see the HOOKDIR section of pbuilder(8))
+     * @param script The contents of the hook
+     */
+    void addHook( String name, String script ){
+        m_generatedHooks.put( name, script );
+    }
+
+    /**
+     * Get the hook directory to give to pbuilder, creating it if needed.
+     */
+    FilePath getHookdir() throws IOException, InterruptedException {
+        if( m_generatedHooks.isEmpty() ){
+            return m_packageHookdir;
+        }
+
+        if( m_tempHookdir != null ){
+            return m_tempHookdir;
+        }
+
+        m_tempHookdir = m_workspace.createTempDir( "hookdir", null );
+        m_packageHookdir.copyRecursiveTo( m_tempHookdir );
+
+        for( Map.Entry<String,String> hook : m_generatedHooks.entrySet() ){
+            FilePath hookFile = m_tempHookdir.child( hook.getKey() );
+            hookFile.write( hook.getValue(), "UTF-8" );
+            hookFile.chmod( 0755 );
+        }
+
+        return m_tempHookdir;
+    }
+
+    /**
+     * @return The temporary hook directory, or null if we have not created one
+     */
+    FilePath getTemporaryHookdir(){
+        return m_tempHookdir;
+    }
+
+    /**
+     * Remove the temporary hook directory, if we created one.
+     */
+    void cleanup() throws IOException, InterruptedException {
+        if( m_tempHookdir != null ){
+            m_tempHookdir.deleteRecursive();
+            m_tempHookdir = null;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.rm5248.debianpbuilder;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jenkinsci.remoting.RoleChecker;
+
+/**
+ * Information about the node that we are building on that does not change
+ * from build to build(architecture, distribution, tool versions).
+ *
+ * All of the values are collected on the node in one call; any value that
+ * could not be determined is null.
+ */
+final class HostFacts implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private String m_buildArch;
+    private String m_targetArch;
+    private String m_distributorId;
+    private String m_codename;
+    private String m_hostname;
+    private String m_dpkgParsechangelogVersion;
+    private long m_collectedAt;
+
+    private HostFacts(){}
+
+    /**
+     * Output of 'dpkg --print-architecture'
+     */
+    String getBuildArch(){
+        return m_buildArch;
+    }
+
+    /**
+     * Output of 'dpkg-architecture --query DEB_TARGET_ARCH'
+     */
+    String getTargetArch(){
+        return m_targetArch;
+    }
+
+    /**
+     * Output of 'lsb_release --id'
+     */
+    String getDistributorId(){
+        return m_distributorId;
+    }
+
+    /**
+     * Output of 'lsb_release --short --codename'
+     */
+    String getCodename(){
+        return m_codename;
+    }
+
+    /**
+     * Output of 'hostname'
+     */
+    String getHostname(){
+        return m_hostname;
+    }
+
+    /**
+     * First line of 'dpkg-parsechangelog --version'
+     */
+    String getDpkgParsechangelogVersion(){
+        return m_dpkgParsechangelogVersion;
+    }
+
+    /**
+     * When these facts were collected, in milliseconds since the epoch.
+     */
+    long getCollectedAt(){
+        return m_collectedAt;
+    }
+
+    /**
+     * Runs all of the probes on the node that it is invoked on.
+     */
+    static final class Collector implements FilePath.FileCallable<HostFacts> {
+
+        private static final long serialVersionUID = 1L;
+        private static final Logger LOGGER = Logger.getLogger( Collector.class.getName() );
+
+        @Override
+        public HostFacts invoke( File f, VirtualChannel channel ) throws IOException, InterruptedException {
+            HostFacts facts = new HostFacts();
+
+            facts.m_buildArch = firstLine( run( "dpkg", "--print-architecture" ) );
+            facts.m_targetArch = firstLine( run( "dpkg-architecture", "--query", "DEB_TARGET_ARCH" ) );
+            facts.m_distributorId = run( "lsb_release", "--id" );
+            facts.m_codename = firstLine( run( "lsb_release", "--short", "--codename" ) );
+            facts.m_hostname = firstLine( run( "hostname" ) );
+            facts.m_dpkgParsechangelogVersion = firstLine( run( "dpkg-parsechangelog", "--version" ) );
+            facts.m_collectedAt = System.currentTimeMillis();
+
+            return facts;
+        }
+
+        @Override
+        public void checkRoles( RoleChecker checker ) throws SecurityException {}
+
+        /**
+         * Run the given command, returning its stdout or null if it could not be run.
+         */
+        private static String run( String ... command ) throws InterruptedException {
+            ProcessBuilder pb = new ProcessBuilder( command )
+                    .redirectError( ProcessBuilder.Redirect.DISCARD );
+            Process proc;
+
+            try{
+                proc = pb.start();
+            }catch( IOException ex ){
+                LOGGER.log( Level.FINE, "Unable to run " + command[ 0 ], ex );
+                return null;
+            }
+
+            ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+            try( InputStream is = proc.getInputStream() ){
+                is.transferTo( stdout );
+            }catch( IOException ex ){
+                LOGGER.log( Level.FINE, "Unable to read output of " + command[ 0 ], ex );
+            }
+
+            if( proc.waitFor() != 0 ){
+                return null;
+            }
+
+            return stdout.toString( StandardCharsets.UTF_8 );
+        }
+
+        private static String firstLine( String output ){
+            if( output == null ){
+                return null;
+            }
+
+            String line = output.split( "\\R", 2 )[ 0 ].trim();
+            if( line.isEmpty() ){
+                return null;
+            }
+
+            return line;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.rm5248.debianpbuilder;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import hudson.slaves.ComputerListener;
+import hudson.slaves.OfflineCause;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Caches the {@link HostFacts} of each node, so that we don't have to probe
+ * the node for the same information on every build.
+ *
+ * Entries are dropped when the node connects or disconnects, or once they are
+ * older than the time set in the global configuration.
+ */
+final class HostFactsCache {
+    private static final Logger LOGGER = Logger.getLogger( HostFactsCache.class.getName() );
+
+    private static final Map<String,HostFacts> CACHE = new ConcurrentHashMap<>();
+
+    private HostFactsCache(){}
+
+    /**
+     * Get the facts for the node that the workspace is on, collecting them
+     * if we don't have them yet.
+     *
+     * @param workspace A path on the node to get the facts of
+     * @param cacheMinutes How long the facts may be cached for; 0 disables the cache
+     * @return The facts for the node
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    static HostFacts get( FilePath workspace, int cacheMinutes ) throws IOException, InterruptedException {
+        Computer computer = workspace.toComputer();
+        if( computer == null || cacheMinutes <= 0 ){
+            return workspace.act( new HostFacts.Collector() );
+        }
+
+        String key = computer.getName();
+        HostFacts facts = CACHE.get( key );
+        long maxAge = TimeUnit.MINUTES.toMillis( cacheMinutes );
+
+        if( facts != null &&
+                System.currentTimeMillis() - facts.getCollectedAt() < maxAge ){
+            LOGGER.fine( "Using cached host facts for node '" + key + "'" );
+            return facts;
+        }
+
+        facts = workspace.act( new HostFacts.Collector() );
+        CACHE.put( key, facts );
+
+        return facts;
+    }
+
+    static void invalidate( Computer computer ){
+        LOGGER.fine( "Dropping cached host facts for node '" + computer.getName() + "'" );
+        CACHE.remove( computer.getName() );
+    }
+
+    /**
+     * Forget about a node whenever it reconnects, as it may have been
+     * upgraded or replaced.
+     */
+    @Extension
+    public static final class InvalidateOnReconnect extends ComputerListener {
+
+        @Override
+        public void onOnline( Computer c, TaskListener listener ) throws IOException, InterruptedException {
+            invalidate( c );
+        }
+
+        @Override
+        public void onOffline( Computer c, OfflineCause cause ){
+            invalidate( c );
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.rm5248.debianpbuilder;
+
+import hudson.console.LineTransformationOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Puts a prefix in front of every line written to another stream.  Each line
+ * is written to the other stream in one go, so the lines of several of these
+ * writing to the same stream don't get mixed up.
+ */
+class LinePrefixOutputStream extends LineTransformationOutputStream {
+
+    private final OutputStream m_out;
+    private final byte[] m_prefix;
+
+    LinePrefixOutputStream( OutputStream out, String prefix ){
+        m_out = out;
+        m_prefix = prefix.getBytes( StandardCharsets.UTF_8 );
+    }
+
+    @Override
+    protected void eol( byte[] b, int len ) throws IOException {
+        byte[] line = new byte[ m_prefix.length + len ];
+        System.arraycopy( m_prefix, 0, line, 0, m_prefix.length );
+        System.arraycopy( b, 0, line, m_prefix.length, len );
+
+        synchronized( m_out ){
+            m_out.write( line );
+            m_out.flush();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        m_out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        // The other stream is shared, so it is not closed
+    }
+}
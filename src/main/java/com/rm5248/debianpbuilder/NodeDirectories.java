@@ -0,0 +1,32 @@
+package com.rm5248.debianpbuilder;
+
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.Node;
+
+/**
+ * Directories that the plugin keeps on each node between builds(caches and
+ * the like).  They all live under debian-pbuilder in the root directory of
+ * the node.
+ */
+final class NodeDirectories {
+
+    private NodeDirectories(){}
+
+    /**
+     * Get the directory with the given name on the node that the workspace is on.
+     *
+     * @return The directory, or null if the node has no root directory
+     */
+    static FilePath get( FilePath workspace, String name ){
+        Computer computer = workspace.toComputer();
+        Node node = computer == null ? null : computer.getNode();
+        FilePath root = node == null ? null : node.getRootPath();
+
+        if( root == null ){
+            return null;
+        }
+
+        return root.child( "debian-pbuilder" ).child( name );
+    }
+}
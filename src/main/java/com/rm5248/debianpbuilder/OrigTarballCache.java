@@ -0,0 +1,288 @@
+package com.rm5248.debianpbuilder;
+
+import hudson.FilePath;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.remoting.VirtualChannel;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import jenkins.util.VirtualFile;
+import org.jenkinsci.remoting.RoleChecker;
+
+/**
+ * A cache of upstream tarballs on a node, so that quilt packages don't need
+ * to run pristine-tar for every build.
+ *
+ * The tarballs are stored by their SHA-256 in the objects directory of the
+ * cache, and the index directory maps the source package, upstream version
+ * and name of a tarball to its hash(e.g. index/foo/1.2/foo_1.2.orig.tar.xz
+ * holds the hash of that tarball).  A tarball is copied into the workspace,
+ * never linked, so that nothing done to it in the workspace changes the
+ * cache.  Once the cache is bigger than its maximum size, the least recently
+ * used tarballs are removed.
+ */
+final class OrigTarballCache {
+
+    // How many builds back to look for an archived tarball
+    private static final int MAX_BUILDS = 20;
+
+    private final FilePath m_directory;
+    private final long m_maxSizeMb;
+
+    private OrigTarballCache( FilePath directory, long maxSizeMb ){
+        m_directory = directory;
+        m_maxSizeMb = maxSizeMb;
+    }
+
+    /**
+     * Get the cache for the node that the workspace is on.
+     *
+     * @return The cache, or null if the node has no root directory
+     */
+    static OrigTarballCache forNode( FilePath workspace, int maxSizeMb ){
+        FilePath directory = NodeDirectories.get( workspace, "orig-cache" );
+
+        if( directory == null ){
+            return null;
+        }
+
+        return new OrigTarballCache( directory, maxSizeMb );
+    }
+
+    String getPath(){
+        return m_directory.getRemote();
+    }
+
+    /**
+     * Copy a tarball from the cache into the workspace.
+     *
+     * @param target Where to put the tarball; must be on the same node
+     * @return True if the tarball was in the cache
+     */
+    boolean restore( String source, String upstreamVersion, FilePath target ) throws IOException, InterruptedException {
+        return m_directory.act( new Restore( getIndexPath( source, upstreamVersion, target.getName() ), target.getRemote() ) );
+    }
+
+    /**
+     * Add a tarball in the workspace to the cache, then remove the least
+     * recently used tarballs until the cache is no bigger than its maximum
+     * size.
+     */
+    void store( String source, String upstreamVersion, FilePath tarball, PrintStream logger )
+            throws IOException, InterruptedException {
+        int removed = m_directory.act( new Store( getIndexPath( source, upstreamVersion, tarball.getName() ),
+                tarball.getRemote(), m_maxSizeMb * 1024 * 1024 ) );
+
+        logger.println( "Added " + tarball.getName() + " to the orig tarball cache " + getPath() );
+        if( removed > 0 ){
+            logger.println( "Removed " + removed + " least recently used tarballs from the orig tarball cache" );
+        }
+    }
+
+    private static String getIndexPath( String source, String upstreamVersion, String name ){
+        return "index/" + source + "/" + upstreamVersion + "/" + name;
+    }
+
+    /**
+     * Copy a tarball that an earlier successful build of the job archived
+     * into the workspace.
+     *
+     * @param target Where to put the tarball
+     * @return True if one of the builds had the tarball
+     */
+    static boolean fetchArchived( Run<?,?> build, FilePath target, PrintStream logger )
+            throws IOException, InterruptedException {
+        Run<?,?> previous = build.getPreviousBuild();
+        for( int x = 0; x < MAX_BUILDS && previous != null; x++, previous = previous.getPreviousBuild() ){
+            if( previous.isBuilding() || previous.getResult() != Result.SUCCESS || !previous.getHasArtifacts() ){
+                continue;
+            }
+
+            VirtualFile archived = findArtifact( previous.getArtifactManager().root(), target.getName() );
+            if( archived == null ){
+                continue;
+            }
+
+            logger.println( "Copying " + target.getName() + " from the artifacts of " + previous.getFullDisplayName() );
+            try( InputStream is = archived.open() ){
+                target.copyFrom( is );
+            }
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Find a file in the artifacts, or in the directory of one of the
+     * architectures of a build with several architectures.
+     */
+    private static VirtualFile findArtifact( VirtualFile root, String name ) throws IOException {
+        VirtualFile file = root.child( name );
+        if( file.isFile() ){
+            return file;
+        }
+
+        for( VirtualFile dir : root.list() ){
+            if( dir.isDirectory() && dir.child( name ).isFile() ){
+                return dir.child( name );
+            }
+        }
+
+        return null;
+    }
+
+    private static Path getObjectPath( Path cache, String hash ){
+        return cache.resolve( "objects" ).resolve( hash );
+    }
+
+    private static final class Restore implements FilePath.FileCallable<Boolean> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String m_indexPath;
+        private final String m_target;
+
+        Restore( String indexPath, String target ){
+            m_indexPath = indexPath;
+            m_target = target;
+        }
+
+        @Override
+        public Boolean invoke( File f, VirtualChannel channel ) throws IOException, InterruptedException {
+            Path cache = f.toPath();
+            Path index = cache.resolve( m_indexPath );
+            if( !Files.isRegularFile( index ) ){
+                return false;
+            }
+
+            Path target = new File( m_target ).toPath();
+
+            // The object may be removed by another build that is evicting at
+            // any point until it has been copied, which is the same as it
+            // not being in the cache
+            Path tmp = Files.createTempFile( target.getParent(), ".orig", ".tmp" );
+            try{
+                String hash = new String( Files.readAllBytes( index ), StandardCharsets.UTF_8 ).trim();
+                Path object = getObjectPath( cache, hash );
+                // Mark the tarball as used
+                Files.setLastModifiedTime( object, FileTime.fromMillis( System.currentTimeMillis() ) );
+                Files.copy( object, tmp, StandardCopyOption.REPLACE_EXISTING );
+                Files.move( tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+            }catch( NoSuchFileException ex ){
+                // Removed because the cache was too big
+                Files.deleteIfExists( index );
+                return false;
+            }finally{
+                Files.deleteIfExists( tmp );
+            }
+
+            return true;
+        }
+
+        @Override
+        public void checkRoles( RoleChecker checker ) throws SecurityException {}
+    }
+
+    /**
+     * Adds a tarball to the cache, then evicts the least recently used
+     * tarballs.  Returns how many tarballs were removed.
+     */
+    private static final class Store implements FilePath.FileCallable<Integer> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String m_indexPath;
+        private final String m_tarball;
+        private final long m_maxBytes;
+
+        Store( String indexPath, String tarball, long maxBytes ){
+            m_indexPath = indexPath;
+            m_tarball = tarball;
+            m_maxBytes = maxBytes;
+        }
+
+        @Override
+        public Integer invoke( File f, VirtualChannel channel ) throws IOException, InterruptedException {
+            Path cache = f.toPath();
+            Path objects = cache.resolve( "objects" );
+            Files.createDirectories( objects );
+
+            // Copy the tarball, since the one in the workspace may be changed
+            Path tmp = Files.createTempFile( objects, ".store", ".tmp" );
+            try{
+                Files.copy( new File( m_tarball ).toPath(), tmp, StandardCopyOption.REPLACE_EXISTING );
+                String hash = FileHashes.sha256( tmp );
+                Path object = getObjectPath( cache, hash );
+                try{
+                    Files.move( tmp, object, StandardCopyOption.ATOMIC_MOVE );
+                }catch( FileAlreadyExistsException ex ){
+                    // Another build stored the same tarball
+                }
+
+                Path index = cache.resolve( m_indexPath );
+                Files.createDirectories( index.getParent() );
+                Path tmpIndex = Files.createTempFile( index.getParent(), ".index", ".tmp" );
+                Files.write( tmpIndex, (hash + "\n").getBytes( StandardCharsets.UTF_8 ) );
+                Files.move( tmpIndex, index, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+            }finally{
+                Files.deleteIfExists( tmp );
+            }
+
+            return evict( objects );
+        }
+
+        private int evict( Path objects ) throws IOException {
+            List<Path> tarballs = new ArrayList<>();
+            List<BasicFileAttributes> attributes = new ArrayList<>();
+            long totalBytes = 0;
+
+            try( DirectoryStream<Path> stream = Files.newDirectoryStream( objects, "[0-9a-f]*" ) ){
+                for( Path tarball : stream ){
+                    BasicFileAttributes attrs = Files.readAttributes( tarball, BasicFileAttributes.class );
+                    tarballs.add( tarball );
+                    attributes.add( attrs );
+                    totalBytes += attrs.size();
+                }
+            }
+
+            List<Integer> order = new ArrayList<>();
+            for( int x = 0; x < tarballs.size(); x++ ){
+                order.add( x );
+            }
+            order.sort( Comparator.comparing( x -> attributes.get( x ).lastModifiedTime() ) );
+
+            int removed = 0;
+            for( int x : order ){
+                // Always keep the newest tarball, even if it is bigger than the cache
+                if( totalBytes <= m_maxBytes || removed == tarballs.size() - 1 ){
+                    break;
+                }
+
+                if( Files.deleteIfExists( tarballs.get( x ) ) ){
+                    removed++;
+                }
+                totalBytes -= attributes.get( x ).size();
+            }
+
+            return removed;
+        }
+
+        @Override
+        public void checkRoles( RoleChecker checker ) throws SecurityException {}
+    }
+}
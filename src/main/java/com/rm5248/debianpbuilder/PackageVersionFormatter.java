@@ -1,58 +1,353 @@
 package com.rm5248.debianpbuilder;
 
 import hudson.EnvVars;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Formats the name of a package depending on user-supplied input.
+ *
+ * The format is made of the following tokens, with everything else copied
+ * as-is.  Text in single quotes is always copied as-is, so that it is not
+ * taken as a token.
+ *
+ * <ul>
+ * <li>YYYY, MM, dd, HH, mm, ss - the year, month, day, hour, minute and second, in local time</li>
+ * <li>%rev% - the git or SVN revision, e.g. git1a2b3c4 or svn1234</li>
+ * <li>%commit% - the full git commit, or the SVN revision</li>
+ * <li>%shortcommit% - the first 7 characters of the git commit, or the SVN revision</li>
+ * <li>%branch% - the git branch, without the remote name</li>
+ * <li>%build% - the build number</li>
+ * <li>%utc% - the date and time in UTC, as YYYYMMddHHmmss</li>
+ * <li>%epoch% - the number of seconds since the epoch</li>
+ * </ul>
+ *
+ * Each format is parsed once and then cached, and formatting only allocates
+ * the resulting string.
  */
 public class PackageVersionFormatter {
-    
+
+    private static final int MAX_CACHED_FORMATS = 64;
+    private static final Map<String,Template> CACHE = new ConcurrentHashMap<>();
+    private static final ThreadLocal<StringBuilder> BUFFER = ThreadLocal.withInitial( () -> new StringBuilder( 64 ) );
+    // The timezone of the controller; looked up once since getDefault() makes a copy
+    private static final TimeZone LOCAL_TIMEZONE = TimeZone.getDefault();
+
+    private static final int SECONDS_PER_DAY = 86400;
+
+    private enum TokenType {
+        LITERAL( null ),
+        YEAR( "YYYY" ),
+        MONTH( "MM" ),
+        DAY( "dd" ),
+        HOUR( "HH" ),
+        MINUTE( "mm" ),
+        SECOND( "ss" ),
+        REVISION( "%rev%" ),
+        COMMIT( "%commit%" ),
+        SHORT_COMMIT( "%shortcommit%" ),
+        BRANCH( "%branch%" ),
+        BUILD( "%build%" ),
+        UTC( "%utc%" ),
+        EPOCH( "%epoch%" );
+
+        private final String m_text;
+
+        TokenType( String text ){
+            m_text = text;
+        }
+    }
+
+    private static final class Token {
+        private final TokenType m_type;
+        private final String m_literal;
+
+        Token( TokenType type, String literal ){
+            m_type = type;
+            m_literal = literal;
+        }
+    }
+
+    /**
+     * A parsed format.
+     */
+    private static final class Template {
+        private final Token[] m_tokens;
+        private final int m_literalLength;
+
+        Template( List<Token> tokens ){
+            int literalLength = 0;
+            for( Token token : tokens ){
+                if( token.m_type == TokenType.LITERAL ){
+                    literalLength += token.m_literal.length();
+                }
+            }
+
+            m_tokens = tokens.toArray( new Token[ 0 ] );
+            m_literalLength = literalLength;
+        }
+    }
+
     private PackageVersionFormatter(){}
-    
+
     /**
      * Format the package version based on the format.
-     * 
+     *
      * @param format The format to use
      * @param envVars The environment variables, used to get the SVN/GIT version
      * @param buildNumber The number of the build
      */
-    public static String formatPackageVersion( String format, 
+    public static String formatPackageVersion( String format,
             EnvVars envVars,
             int buildNumber ){
-        LocalDateTime localdt = LocalDateTime.now();
-        
-        //very stupid here, we'll basically just have a whitelist of patterns
-        //that we can replace for time.
-        format = format.replace( "YYYY", DateTimeFormatter.ofPattern( "YYYY").format( localdt ) );
-        format = format.replace( "MM", DateTimeFormatter.ofPattern( "MM").format( localdt ) );
-        format = format.replace( "dd", DateTimeFormatter.ofPattern( "dd").format( localdt ) );
-        format = format.replace( "HH", DateTimeFormatter.ofPattern( "HH").format( localdt ) );
-        format = format.replace( "mm", DateTimeFormatter.ofPattern( "mm").format( localdt ) );
-        format = format.replace( "ss", DateTimeFormatter.ofPattern( "ss").format( localdt ) );
-        
-        //Replace the git/svn commit
-        format = format.replace( "%rev%", getRevision( envVars ) );
-        
-        //Replace build number
-        format = format.replace( "%build%", String.format( "%d", buildNumber ) );
-        
-        return format;
-    }
-    
-    private static String getRevision( EnvVars envVars ){
-        String toRet = "NOREV";
-        
-        if( envVars.containsKey( "GIT_COMMIT" ) ){
-            toRet = "git" + envVars.get( "GIT_COMMIT" ).substring( 0, 7 );
-        }
-
-        if( envVars.containsKey( "SVN_REVISION" ) ){
-            toRet = "svn" + envVars.get( "SVN_REVISION" );
-        }
-        
-        return toRet;
-    }
-    
+        return formatPackageVersion( format, envVars, buildNumber, System.currentTimeMillis() );
+    }
+
+    /**
+     * Format the package version based on the format, at the given time.
+     *
+     * @param nowMillis The time to use, in milliseconds since the epoch
+     */
+    static String formatPackageVersion( String format,
+            Map<String,String> envVars,
+            int buildNumber,
+            long nowMillis ){
+        Template template = getTemplate( format );
+        long utcSeconds = Math.floorDiv( nowMillis, 1000L );
+        long localSeconds = Math.floorDiv( nowMillis + LOCAL_TIMEZONE.getOffset( nowMillis ), 1000L );
+
+        StringBuilder sb = BUFFER.get();
+        sb.setLength( 0 );
+        sb.ensureCapacity( template.m_literalLength + 32 );
+
+        for( Token token : template.m_tokens ){
+            switch( token.m_type ){
+                case LITERAL:
+                    sb.append( token.m_literal );
+                    break;
+                case YEAR:
+                case MONTH:
+                case DAY:
+                case HOUR:
+                case MINUTE:
+                case SECOND:
+                    appendDateField( sb, token.m_type, localSeconds );
+                    break;
+                case REVISION:
+                    appendRevision( sb, envVars );
+                    break;
+                case COMMIT:
+                    appendCommit( sb, envVars, Integer.MAX_VALUE );
+                    break;
+                case SHORT_COMMIT:
+                    appendCommit( sb, envVars, 7 );
+                    break;
+                case BRANCH:
+                    appendBranch( sb, envVars );
+                    break;
+                case BUILD:
+                    sb.append( buildNumber );
+                    break;
+                case UTC:
+                    appendDateField( sb, TokenType.YEAR, utcSeconds );
+                    appendDateField( sb, TokenType.MONTH, utcSeconds );
+                    appendDateField( sb, TokenType.DAY, utcSeconds );
+                    appendDateField( sb, TokenType.HOUR, utcSeconds );
+                    appendDateField( sb, TokenType.MINUTE, utcSeconds );
+                    appendDateField( sb, TokenType.SECOND, utcSeconds );
+                    break;
+                case EPOCH:
+                    sb.append( utcSeconds );
+                    break;
+            }
+        }
+
+        String formatted = sb.toString();
+        if( sb.capacity() > 1024 ){
+            // Don't hold on to the memory of an unusually long format
+            BUFFER.remove();
+        }
+
+        return formatted;
+    }
+
+    private static Template getTemplate( String format ){
+        Template template = CACHE.get( format );
+        if( template != null ){
+            return template;
+        }
+
+        template = parse( format );
+        if( CACHE.size() >= MAX_CACHED_FORMATS ){
+            CACHE.clear();
+        }
+        CACHE.put( format, template );
+
+        return template;
+    }
+
+    private static Template parse( String format ){
+        List<Token> tokens = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        int pos = 0;
+
+        while( pos < format.length() ){
+            char c = format.charAt( pos );
+
+            if( c == '\'' ){
+                int end = format.indexOf( '\'', pos + 1 );
+                if( end < 0 ){
+                    end = format.length();
+                }
+                literal.append( format, pos + 1, end );
+                pos = end + 1;
+                continue;
+            }
+
+            TokenType found = null;
+            for( TokenType type : TokenType.values() ){
+                if( type.m_text != null && format.startsWith( type.m_text, pos ) ){
+                    found = type;
+                    break;
+                }
+            }
+
+            if( found == null ){
+                literal.append( c );
+                pos++;
+                continue;
+            }
+
+            if( literal.length() > 0 ){
+                tokens.add( new Token( TokenType.LITERAL, literal.toString() ) );
+                literal.setLength( 0 );
+            }
+            tokens.add( new Token( found, null ) );
+            pos += found.m_text.length();
+        }
+
+        if( literal.length() > 0 ){
+            tokens.add( new Token( TokenType.LITERAL, literal.toString() ) );
+        }
+
+        return new Template( tokens );
+    }
+
+    /**
+     * Append one field of the date, zero-padded.
+     *
+     * The date is worked out from the number of days since the epoch, see
+     * http://howardhinnant.github.io/date_algorithms.html#civil_from_days
+     */
+    private static void appendDateField( StringBuilder sb, TokenType field, long seconds ){
+        long days = Math.floorDiv( seconds, (long)SECONDS_PER_DAY );
+        int secondOfDay = (int)Math.floorMod( seconds, (long)SECONDS_PER_DAY );
+
+        switch( field ){
+            case HOUR:
+                appendTwoDigits( sb, secondOfDay / 3600 );
+                return;
+            case MINUTE:
+                appendTwoDigits( sb, (secondOfDay / 60) % 60 );
+                return;
+            case SECOND:
+                appendTwoDigits( sb, secondOfDay % 60 );
+                return;
+            default:
+                break;
+        }
+
+        long z = days + 719468;
+        long era = Math.floorDiv( z, 146097L );
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        int day = (int)(dayOfYear - (153 * mp + 2) / 5 + 1);
+        int month = (int)(mp < 10 ? mp + 3 : mp - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        switch( field ){
+            case YEAR:
+                sb.append( year );
+                break;
+            case MONTH:
+                appendTwoDigits( sb, month );
+                break;
+            case DAY:
+                appendTwoDigits( sb, day );
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static void appendTwoDigits( StringBuilder sb, int value ){
+        sb.append( (char)('0' + value / 10) );
+        sb.append( (char)('0' + value % 10) );
+    }
+
+    private static void appendRevision( StringBuilder sb, Map<String,String> envVars ){
+        String svnRevision = envVars.get( "SVN_REVISION" );
+        String gitCommit = envVars.get( "GIT_COMMIT" );
+
+        if( svnRevision != null ){
+            sb.append( "svn" ).append( svnRevision );
+        }else if( gitCommit != null ){
+            sb.append( "git" ).append( gitCommit, 0, Math.min( 7, gitCommit.length() ) );
+        }else{
+            sb.append( "NOREV" );
+        }
+    }
+
+    private static void appendCommit( StringBuilder sb, Map<String,String> envVars, int maxLength ){
+        String svnRevision = envVars.get( "SVN_REVISION" );
+        String gitCommit = envVars.get( "GIT_COMMIT" );
+
+        if( svnRevision != null ){
+            sb.append( svnRevision );
+        }else if( gitCommit != null ){
+            sb.append( gitCommit, 0, Math.min( maxLength, gitCommit.length() ) );
+        }else{
+            sb.append( "NOREV" );
+        }
+    }
+
+    /**
+     * Append the branch, with the remote name removed and any characters
+     * that can't be in a Debian version replaced with a '.'
+     */
+    private static void appendBranch( StringBuilder sb, Map<String,String> envVars ){
+        String branch = envVars.get( "GIT_BRANCH" );
+        if( branch == null || branch.isEmpty() ){
+            sb.append( "NOBRANCH" );
+            return;
+        }
+
+        int start = 0;
+        String remote = envVars.get( "GIT_REMOTE" );
+        if( remote == null ){
+            remote = "origin";
+        }
+        if( branch.startsWith( remote ) && branch.length() > remote.length() &&
+                branch.charAt( remote.length() ) == '/' ){
+            start = remote.length() + 1;
+        }
+
+        for( int x = start; x < branch.length(); x++ ){
+            char c = branch.charAt( x );
+            if( (c >= 'a' && c <= 'z') ||
+                    (c >= 'A' && c <= 'Z') ||
+                    (c >= '0' && c <= '9') ||
+                    c == '.' || c == '+' || c == '~' ){
+                sb.append( c );
+            }else{
+                sb.append( '.' );
+            }
+        }
+    }
+
 }
@@ -1,5 +1,8 @@
 package com.rm5248.debianpbuilder;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 /**
  * Represents the pbuilder configuration.
  *
@@ -39,11 +42,38 @@ class PbuilderConfiguration {
     private String m_otherMirror;
     private String m_buildArch;
     private String m_bindMounts;
+    private String m_buildPlace;
+    private Boolean m_aptCacheHardlink;
+    private String m_aptCache;
+    private Map<String,String> m_exports;
 
     PbuilderConfiguration(){
         m_useNetwork = false;
         m_useEatMyData = false;
         m_satisfyDependsCommand = SatisfyDependsResolver.DEFAULT;
+        m_exports = new LinkedHashMap<>();
+    }
+
+    /**
+     * Make a copy of another configuration.
+     */
+    PbuilderConfiguration( PbuilderConfiguration other ){
+        m_useNetwork = other.m_useNetwork;
+        m_debootstrap = other.m_debootstrap;
+        m_mirrorSite = other.m_mirrorSite;
+        m_debootstrapOpts = other.m_debootstrapOpts;
+        m_useEatMyData = other.m_useEatMyData;
+        m_extraPackages = other.m_extraPackages;
+        m_additionalBuild = other.m_additionalBuild;
+        m_components = other.m_components;
+        m_satisfyDependsCommand = other.m_satisfyDependsCommand;
+        m_otherMirror = other.m_otherMirror;
+        m_buildArch = other.m_buildArch;
+        m_bindMounts = other.m_bindMounts;
+        m_buildPlace = other.m_buildPlace;
+        m_aptCacheHardlink = other.m_aptCacheHardlink;
+        m_aptCache = other.m_aptCache;
+        m_exports = new LinkedHashMap<>( other.m_exports );
     }
 
     void setNetwork( boolean network ){
@@ -70,6 +100,26 @@ class PbuilderConfiguration {
         m_extraPackages = extra;
     }
 
+    /**
+     * Add packages to install in addition to the ones that have already been set.
+     */
+    void addExtraPackages( String extra ){
+        if( m_extraPackages == null || m_extraPackages.trim().isEmpty() ){
+            m_extraPackages = extra;
+        }else{
+            m_extraPackages = m_extraPackages.trim() + " " + extra;
+        }
+    }
+
+    /**
+     * Export an environment variable from the pbuilderrc.  pbuilder passes
+     * these through to the build.  The value is put in double quotes, so it
+     * may refer to other variables.
+     */
+    void addExport( String name, String value ){
+        m_exports.put( name, value );
+    }
+
     void setAdditionalBuildResults( String ... buildResults ){
         m_additionalBuild = buildResults;
     }
@@ -94,6 +144,42 @@ class PbuilderConfiguration {
         m_bindMounts = bindMounts;
     }
 
+    void setBuildPlace( String buildPlace ){
+        m_buildPlace = buildPlace;
+    }
+
+    void setAptCacheHardlink( boolean aptCacheHardlink ){
+        m_aptCacheHardlink = aptCacheHardlink;
+    }
+
+    void setAptCache( String aptCache ){
+        m_aptCache = aptCache;
+    }
+
+    /**
+     * Add a directory to bind mount into the chroot, in addition to the
+     * ones that have already been set.
+     */
+    void addBindMount( String bindMount ){
+        if( m_bindMounts == null || m_bindMounts.trim().isEmpty() ){
+            m_bindMounts = bindMount;
+        }else{
+            m_bindMounts = m_bindMounts.trim() + " " + bindMount;
+        }
+    }
+
+    String getBuildPlace(){
+        return m_buildPlace;
+    }
+
+    String getMirrorSite(){
+        return m_mirrorSite;
+    }
+
+    String getOtherMirror(){
+        return m_otherMirror;
+    }
+
     String toConfigFileString(){
         StringBuilder sb = new StringBuilder();
 
@@ -128,20 +214,21 @@ class PbuilderConfiguration {
             sb.append( ")\n" );
         }
 
+        String extraPackages = m_extraPackages;
         if( m_useEatMyData ){
-            if( m_extraPackages != null ){
-                m_extraPackages += " eatmydata";
+            if( extraPackages != null && extraPackages.length() > 0 ){
+                extraPackages += " eatmydata";
             }else{
-                m_extraPackages = "eatmydata";
+                extraPackages = "eatmydata";
             }
             sb.append( "EATMYDATA=yes\n" );
             sb.append( "export LD_PRELOAD=libeatmydata.so\n" );
         }
 
-        if( m_extraPackages != null && m_extraPackages.length() > 0 ){
-            sb.append( "EXTRAPACKAGES=" );
-            sb.append( m_extraPackages );
-            sb.append( "\n" );
+        if( extraPackages != null && extraPackages.length() > 0 ){
+            sb.append( "EXTRAPACKAGES=\"" );
+            sb.append( extraPackages );
+            sb.append( "\"\n" );
         }
 
         if( m_additionalBuild != null && m_additionalBuild.length > 0 ){
@@ -180,11 +267,37 @@ class PbuilderConfiguration {
         }
         
         if( m_bindMounts != null && m_bindMounts.length() > 0 ){
-            sb.append( "BINDMOUNTS=" );
+            sb.append( "BINDMOUNTS=\"" );
             sb.append( m_bindMounts );
+            sb.append( "\"\n" );
+        }
+
+        if( m_buildPlace != null && m_buildPlace.length() > 0 ){
+            sb.append( "BUILDPLACE=" );
+            sb.append( m_buildPlace );
             sb.append( "\n" );
         }
 
+        if( m_aptCache != null && m_aptCache.length() > 0 ){
+            sb.append( "APTCACHE=" );
+            sb.append( m_aptCache );
+            sb.append( "\n" );
+        }
+
+        if( m_aptCacheHardlink != null ){
+            sb.append( "APTCACHEHARDLINK=" );
+            sb.append( m_aptCacheHardlink ? "yes" : "no" );
+            sb.append( "\n" );
+        }
+
+        for( Map.Entry<String,String> export : m_exports.entrySet() ){
+            sb.append( "export " );
+            sb.append( export.getKey() );
+            sb.append( "=\"" );
+            sb.append( export.getValue() );
+            sb.append( "\"\n" );
+        }
+
         return sb.toString();
     }
 }
@@ -6,6 +6,9 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.logging.Logger;
 
 /**
@@ -16,7 +19,6 @@ public class PbuilderHelper extends PbuilderInterface {
     private static final Logger LOGGER = Logger.getLogger( PbuilderHelper.class.getName() );
 
     private Path m_pbuilderBaseTgz;
-    private String m_updateLockfile;
 
     PbuilderHelper( FilePath workspace,
             Launcher launcher,
@@ -24,7 +26,8 @@ public class PbuilderHelper extends PbuilderInterface {
             String architecture,
             String distribution,
             String hookdir,
-            PbuilderConfiguration pbuilderConfig ) throws IOException, InterruptedException {
+            PbuilderConfiguration pbuilderConfig,
+            HostFacts hostFacts ) throws IOException, InterruptedException {
         m_logger = logger;
         m_hostArch = architecture;
         m_distribution = distribution;
@@ -32,7 +35,7 @@ public class PbuilderHelper extends PbuilderInterface {
         m_hookdir = hookdir;
         m_workspace = workspace;
 
-        setBuildArch();
+        setBuildArch( hostFacts );
 
         if( m_hostArch == null ){
             m_hostArch = m_buildArch;
@@ -40,8 +43,7 @@ public class PbuilderHelper extends PbuilderInterface {
 
         m_pbuilderBaseTgz = FileSystems.getDefault().getPath( "/var/cache/pbuilder/base-" + m_distribution + "-" + m_buildArch + ".tgz" );
 
-        String baseLockfile = "/var/run/lock/" + m_distribution + "-" + getArch();
-        m_updateLockfile = baseLockfile + ".update";
+        m_baseLockfile = "/var/run/lock/" + m_distribution + "-" + getArch() + ".update";
 
         LOGGER.fine( "Pbuilder config: " + pbuilderConfig.toConfigFileString() );
 
@@ -66,7 +68,9 @@ public class PbuilderHelper extends PbuilderInterface {
             return false;
         }
 
-        retValue = doBuild( outputDirectory.getName(),
+        // The per-architecture output directories are not directly in the
+        // workspace, so give pbuilder the full path
+        retValue = doBuild( outputDirectory.getRemote(),
                 sourceFile.getName(),
                 numCores );
 
@@ -74,7 +78,7 @@ public class PbuilderHelper extends PbuilderInterface {
     }
 
     private boolean doBuild( String outputDir, String sourceFile, int numCores ) throws IOException, InterruptedException {
-        String debBuildOpts = "-sa";
+        String debBuildOpts = getBuildTypeOption();
         String jLevel;
 
         if( numCores == -1 ){
@@ -89,8 +93,9 @@ public class PbuilderHelper extends PbuilderInterface {
         Launcher.ProcStarter procStarter = m_launcher
             .launch()
             .pwd(m_workspace)
-            .stdout( m_logger )
-            .cmds( "sudo",
+            .stdout( m_logger );
+        int status = runBuildWithLock( m_baseLockfile, procStarter,
+                    "sudo",
                     "pbuilder",
                     "build",
                     "--architecture",
@@ -114,9 +119,8 @@ public class PbuilderHelper extends PbuilderInterface {
                     "--buildresult",
                     outputDir,
                     sourceFile );
-        int status = procStarter.join();
 
-        if( status != 0 ){
+        if( status != 0 && status != LAUNCHED_STATUS ){
             return false;
         }
 
@@ -127,30 +131,36 @@ public class PbuilderHelper extends PbuilderInterface {
     boolean createOrUpdateBase() throws IOException, InterruptedException {
         boolean baseExists = m_workspace.act( new CheckIfAbsolutePathExists( m_pbuilderBaseTgz.toFile().getAbsolutePath() ) );
 
-        // Note: because this is not by any means an atomic operation, this could fail
-        // in the event that:
-        // 1. No base exists and two jobs start at the same time, in which case
-        //    the first one will succeed and the second one will fail
-        // Since the above only has to happen once, this is unlikely to cause
-        // issues that we really care about.
-        // Multiple updates should be fine, as one must finish before another
-        // one can do the update, and the COW functionality means it shouldn't
-        // cause an issue(?)
+        // Creating and updating take an exclusive lock on the base, so if two
+        // jobs start at the same time the second one waits for the first.  If
+        // the first one created or updated the base, the second one does not
+        // do it again.
+        BaseFreshness.Result freshness = checkBaseFreshness( m_pbuilderBaseTgz.toString() );
+        boolean success;
+
         if( !baseExists ){
-            return createPbuilderBase();
+            success = timeBaseOperation( "create", this::createPbuilderBase );
+        }else if( !checkMirrorsChanged( m_pbuilderBaseTgz.toString() ) && freshness != null && freshness.isFresh() ){
+            m_logger.println( "Not updating " + m_pbuilderBaseTgz + ": " + freshness.getFreshReason() );
+            recordBaseSkipped();
+            return true;
         }else{
-            return updatePbuidlerBase();
+            return updateExistingBase( m_pbuilderBaseTgz.toString(), freshness, this::updatePbuidlerBase );
+        }
+
+        if( success ){
+            recordBaseUpdate( m_pbuilderBaseTgz.toString(), freshness );
         }
+
+        return success;
     }
 
     private boolean createPbuilderBase() throws IOException, InterruptedException {
         Launcher.ProcStarter procStarter = m_launcher
             .launch()
             .pwd(m_workspace)
-            .stdout( m_logger )
-            .cmds("flock",
-                    "-n",
-                    m_updateLockfile,
+            .stdout( m_logger );
+        int status = runInPlaceWithBaseLock( procStarter,
                     "sudo",
                     "pbuilder",
                     "create",
@@ -162,7 +172,6 @@ public class PbuilderHelper extends PbuilderInterface {
                     m_pbuilderBaseTgz.toString(),
                     "--distribution",
                     m_distribution );
-        int status = procStarter.join();
 
         if( status != 0 ){
             m_logger.println( "Unable to create cowbuilder environment(is it installed and do you have sudo privliges?)" );
@@ -172,15 +181,12 @@ public class PbuilderHelper extends PbuilderInterface {
         return true;
     }
 
-    private boolean updatePbuidlerBase() throws IOException, InterruptedException {
+    private int updatePbuidlerBase() throws IOException, InterruptedException {
         Launcher.ProcStarter procStarter = m_launcher
             .launch()
             .pwd(m_workspace)
-            .stdout( m_logger )
-            .cmds( "flock",
-                    "-n",
-                    m_updateLockfile,
-                    "sudo",
+            .stdout( m_logger );
+        List<String> cmds = new ArrayList<>( Arrays.asList( "sudo",
                     "pbuilder",
                     "update",
                     "--distribution",
@@ -188,15 +194,15 @@ public class PbuilderHelper extends PbuilderInterface {
                     "--basetgz",
                     m_pbuilderBaseTgz.toString(),
                     "--configfile",
-                    m_pbuilderrc.getName() );
-        int status = procStarter.join();
+                    m_pbuilderrc.getName() ) );
+        addOverrideConfig( cmds );
+        int status = runInPlaceWithBaseLock( procStarter, cmds.toArray( new String[ 0 ] ) );
 
-        if( status != 0 ){
+        if( status != 0 && status != LOCK_TIMEOUT_STATUS ){
             m_logger.println( "Unable to create cowbuilder environment(is it installed and do you have sudo privliges?)" );
-            return false;
         }
 
-        return true;
+        return status;
     }
 
 }
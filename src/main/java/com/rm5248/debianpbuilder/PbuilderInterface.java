@@ -2,19 +2,24 @@ package com.rm5248.debianpbuilder;
 
 import hudson.FilePath;
 import hudson.Launcher;
-import hudson.Proc;
 import hudson.remoting.VirtualChannel;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintStream;
 import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Scanner;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.jenkinsci.remoting.RoleChecker;
 
@@ -32,6 +37,57 @@ import org.jenkinsci.remoting.RoleChecker;
 public abstract class PbuilderInterface {
     private static final Logger LOGGER = Logger.getLogger( PbuilderInterface.class.getName() );
 
+    /**
+     * Exit status of {@link #LOCK_SCRIPT} if the lock could not be acquired in time
+     */
+    protected static final int LOCK_TIMEOUT_STATUS = 75;
+
+    /**
+     * Returned by a {@link BuildRunner} that started the build without
+     * waiting for it to finish
+     */
+    static final int LAUNCHED_STATUS = -1;
+
+    /**
+     * Runs a command while holding a lock on the base.  Builds take a shared
+     * lock and updates take an exclusive lock, so an update never changes
+     * the base while a build is using it.
+     *
+     * Arguments: lock file, flock mode(-s or -x), timeout in seconds(0 waits
+     * forever), file to write the number of seconds waited to, 'yes' if this
+     * is an update, then the command to run.
+     *
+     * If this is an update and another update finished while we were waiting
+     * for the lock, the command is not run since the base is already up to date.
+     */
+    private static final String LOCK_SCRIPT = String.join( "\n",
+            "lock=\"$1\"; mode=\"$2\"; timeout=\"$3\"; waitfile=\"$4\"; update=\"$5\"; shift 5",
+            "marker=$(mktemp) || exit 1",
+            "start=$(date +%s)",
+            "exec 9>>\"$lock\" || exit 1",
+            "if ! flock -n \"$mode\" 9; then",
+            "    echo \"Waiting for lock $lock\"",
+            "    if [ \"$timeout\" -gt 0 ]; then",
+            "        flock \"$mode\" -w \"$timeout\" 9",
+            "    else",
+            "        flock \"$mode\" 9",
+            "    fi || { rm -f \"$marker\"; echo \"Timed out waiting for lock $lock\"; exit " + LOCK_TIMEOUT_STATUS + "; }",
+            "fi",
+            "echo $(( $(date +%s) - start )) > \"$waitfile\"",
+            "if [ \"$update\" = yes ] && [ \"$lock.updated\" -nt \"$marker\" ]; then",
+            "    rm -f \"$marker\"",
+            "    echo \"Base was updated by another build while waiting for the lock, not updating\"",
+            "    exit 0",
+            "fi",
+            "rm -f \"$marker\"",
+            "\"$@\"",
+            "status=$?",
+            "if [ \"$update\" = yes ] && [ $status -eq 0 ]; then touch \"$lock.updated\"; fi",
+            "exit $status" );
+
+    private static final BuildRunner RUN_PROCESS = ( procStarter, cmds, lockfile, waitFile ) ->
+            procStarter.cmds( cmds ).join();
+
     protected String m_hostArch;
     protected String m_distribution;
     protected Launcher m_launcher;
@@ -40,6 +96,36 @@ public abstract class PbuilderInterface {
     protected PrintStream m_logger;
     protected FilePath m_pbuilderrc;
     protected FilePath m_workspace;
+    protected BaseFreshness m_freshness;
+    protected String m_baseLockfile;
+    protected int m_lockTimeoutMinutes;
+    protected boolean m_binaryArchOnly;
+    protected BuildMetrics.Labels m_metricLabels;
+    protected BuildRunner m_buildRunner = RUN_PROCESS;
+    protected String m_mirrors = "";
+    protected boolean m_mirrorsChanged;
+    // The file that the lock script of the in-place create or update that is
+    // running writes its wait to once it has the lock; null if there is none
+    private volatile FilePath m_inPlaceWaitFile;
+
+    /**
+     * Runs the process that builds the package.
+     */
+    interface BuildRunner {
+        /**
+         * @param procStarter The process to start, with everything but the
+         * command set
+         * @param cmds The command to run
+         * @param lockfile The lock that the command takes
+         * @param waitFile Where the command writes how long it waited for
+         * the lock; if the runner does not wait for the command, it must
+         * give this to {@link #reportLock} once the command has finished
+         * @return The exit status of the command, or {@link #LAUNCHED_STATUS}
+         * if the command was started and not waited for
+         */
+        int run( Launcher.ProcStarter procStarter, List<String> cmds, String lockfile, FilePath waitFile )
+                throws IOException, InterruptedException;
+    }
 
     /**
      * Do the build of the specified package.
@@ -47,7 +133,9 @@ public abstract class PbuilderInterface {
      * @param outputDirectory Where to place the binaries
      * @param sourceFile The .dsc to use to build
      * @param numCores How many cores to use to build.
-     * @return True if the build succeeded, false otherwise
+     * @return True if the build succeeded, false otherwise.  With a
+     * {@link BuildRunner} that does not wait for the build, true if the
+     * build was started.
      * @throws IOException
      * @throws InterruptedException
      */
@@ -58,34 +146,376 @@ public abstract class PbuilderInterface {
 
     abstract boolean createOrUpdateBase() throws IOException, InterruptedException;
 
-    protected final String getDebootstrap(){
-        if( m_buildArch.equals(m_hostArch ) ){
-            return "debootstrap";
-        }else{
-            return "qemu-debootstrap";
+    /**
+     * Set how long to wait for the lock on the base.
+     *
+     * @param minutes How many minutes to wait; 0 to wait forever
+     */
+    void setLockTimeout( int minutes ){
+        m_lockTimeoutMinutes = minutes;
+    }
+
+    /**
+     * Run a command while holding the lock on the base.
+     *
+     * @param procStarter The process to start, with everything but the command set
+     * @param isUpdate True to take an exclusive lock in order to create or
+     * update the base, false to take a shared lock in order to build
+     * @param cmds The command to run
+     * @return The exit status of the command, or {@link #LOCK_TIMEOUT_STATUS}
+     * if the lock could not be acquired
+     */
+    protected final int runWithBaseLock( Launcher.ProcStarter procStarter, boolean isUpdate, String ... cmds )
+            throws IOException, InterruptedException {
+        return runWithLock( m_baseLockfile, procStarter, isUpdate, RUN_PROCESS, false, cmds );
+    }
+
+    /**
+     * Create or update the base itself while holding the exclusive lock on
+     * it.  Once the lock has been acquired, stopping the command would leave
+     * the base broken, see {@link #canStopBaseUpdate}.
+     *
+     * @param procStarter The process to start, with everything but the command set
+     * @param cmds The command to run
+     * @return The exit status of the command, or {@link #LOCK_TIMEOUT_STATUS}
+     * if the lock could not be acquired
+     */
+    protected final int runInPlaceWithBaseLock( Launcher.ProcStarter procStarter, String ... cmds )
+            throws IOException, InterruptedException {
+        return runWithLock( m_baseLockfile, procStarter, true, RUN_PROCESS, true, cmds );
+    }
+
+    /**
+     * Check if the create or update of the base that is running can be
+     * stopped without breaking the base for every other job on the node.
+     * It can, unless it is changing the base in place and has already
+     * acquired the lock on it.  The lock can still be acquired between this
+     * returning and the update being stopped, but that window is much
+     * smaller than the update itself.
+     */
+    boolean canStopBaseUpdate() throws IOException, InterruptedException {
+        FilePath waitFile = m_inPlaceWaitFile;
+        if( waitFile == null ){
+            return true;
         }
+
+        return !waitFile.exists() || waitFile.length() == 0;
+    }
+
+    /**
+     * Run the command that builds the package while holding a shared lock
+     * on the given base, with the {@link BuildRunner} that was set.
+     *
+     * @param lockfile The file to lock
+     * @param procStarter The process to start, with everything but the command set
+     * @param cmds The command to run
+     * @return The exit status of the command, {@link #LOCK_TIMEOUT_STATUS}
+     * if the lock could not be acquired, or {@link #LAUNCHED_STATUS} if the
+     * runner did not wait for the command
+     */
+    protected final int runBuildWithLock( String lockfile, Launcher.ProcStarter procStarter, String ... cmds )
+            throws IOException, InterruptedException {
+        return runWithLock( lockfile, procStarter, false, m_buildRunner, false, cmds );
     }
 
-    protected final void setBuildArch() throws IOException, InterruptedException {
-         Launcher.ProcStarter procStarter = m_launcher
-            .launch()
-            .cmds( "dpkg", "--print-architecture" )
-            .readStdout();
-        Proc proc = procStarter.start();
+    /**
+     * Run a command while holding the given lock.
+     *
+     * @param lockfile The file to lock
+     * @param procStarter The process to start, with everything but the command set
+     * @param isUpdate True to take an exclusive lock in order to create or
+     * update, false to take a shared lock in order to build
+     * @param cmds The command to run
+     * @return The exit status of the command, or {@link #LOCK_TIMEOUT_STATUS}
+     * if the lock could not be acquired
+     */
+    protected final int runWithLock( String lockfile, Launcher.ProcStarter procStarter, boolean isUpdate, String ... cmds )
+            throws IOException, InterruptedException {
+        return runWithLock( lockfile, procStarter, isUpdate, RUN_PROCESS, false, cmds );
+    }
+
+    private int runWithLock( String lockfile, Launcher.ProcStarter procStarter, boolean isUpdate, BuildRunner runner,
+            boolean inPlace, String ... cmds ) throws IOException, InterruptedException {
+        FilePath waitFile = m_workspace.createTempFile( "lockwait", null );
+        List<String> lockedCmds = new ArrayList<>();
+
+        lockedCmds.add( "sh" );
+        lockedCmds.add( "-c" );
+        lockedCmds.add( LOCK_SCRIPT );
+        lockedCmds.add( "debian-pbuilder-lock" );
+        lockedCmds.add( lockfile );
+        lockedCmds.add( isUpdate ? "-x" : "-s" );
+        lockedCmds.add( Long.toString( TimeUnit.MINUTES.toSeconds( m_lockTimeoutMinutes ) ) );
+        lockedCmds.add( waitFile.getRemote() );
+        lockedCmds.add( isUpdate ? "yes" : "no" );
+        lockedCmds.addAll( Arrays.asList( cmds ) );
+
         int status;
-        status = proc.join();
+        if( inPlace ){
+            m_inPlaceWaitFile = waitFile;
+        }
+        try{
+            status = runner.run( procStarter, lockedCmds, lockfile, waitFile );
+        }catch( IOException | InterruptedException | RuntimeException ex ){
+            waitFile.delete();
+            throw ex;
+        }finally{
+            if( inPlace ){
+                m_inPlaceWaitFile = null;
+            }
+        }
+
+        if( status != LAUNCHED_STATUS ){
+            reportLock( m_logger, m_metricLabels, lockfile, isUpdate, m_lockTimeoutMinutes, waitFile, status );
+        }
+
+        return status;
+    }
+
+    /**
+     * Log how long a command that has finished waited for its lock, or that
+     * it could not get the lock, and remove the file that it wrote the wait
+     * to.
+     *
+     * @param metricLabels The labels to record the wait with, or null
+     * @param timeoutMinutes How long the command waited at most
+     * @param waitFile The file that the command wrote how long it waited to
+     * @param status The exit status of the command
+     */
+    static void reportLock( PrintStream logger, BuildMetrics.Labels metricLabels, String lockfile, boolean isUpdate,
+            int timeoutMinutes, FilePath waitFile, int status ) throws IOException, InterruptedException {
+        String lockType = isUpdate ? "exclusive" : "shared";
+
+        try{
+            String waited = waitFile.exists() ? waitFile.readToString().trim() : "";
+            if( waited.length() > 0 ){
+                logger.println( "Waited " + waited + " seconds for " + lockType + " lock on " + lockfile );
+                if( metricLabels != null ){
+                    BuildMetrics.recordLockWait( metricLabels, lockType, Long.parseLong( waited ) );
+                }
+            }
+        }finally{
+            waitFile.delete();
+        }
+
+        if( status == LOCK_TIMEOUT_STATUS ){
+            logger.println( "Unable to get " + lockType + " lock on " + lockfile
+                    + " within " + timeoutMinutes + " minutes" );
+        }
+    }
+
+    /**
+     * Set how to run the process that builds the package.  By default it is
+     * run like any other process.
+     */
+    void setBuildRunner( BuildRunner runner ){
+        m_buildRunner = runner;
+    }
+
+    /**
+     * Set the labels to record metrics with.
+     */
+    void setMetricLabels( BuildMetrics.Labels labels ){
+        m_metricLabels = labels;
+    }
+
+    /**
+     * Create or update the base, recording how long it took.
+     *
+     * @param operation create or update
+     * @param toRun Creates or updates the base
+     * @return The result of toRun
+     */
+    protected final boolean timeBaseOperation( String operation, PhaseTimingAction.Phase<Boolean> toRun )
+            throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        boolean success = false;
+        try{
+            success = toRun.run();
+        }finally{
+            if( m_metricLabels != null ){
+                BuildMetrics.recordBaseOperation( m_metricLabels, operation, success,
+                        TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start ) );
+            }
+        }
+
+        return success;
+    }
+
+    /**
+     * Update a base that exists, recording how long it took.  If the lock on
+     * the base could not be acquired in time, the base is left as it is and
+     * the package is built with it.
+     *
+     * @param basePath The base to update
+     * @param checkResult The result of the freshness check, or null
+     * @param update Updates the base, returning the exit status of the update
+     * @return True if the package can be built with the base
+     */
+    protected final boolean updateExistingBase( String basePath, BaseFreshness.Result checkResult,
+            PhaseTimingAction.Phase<Integer> update ) throws IOException, InterruptedException {
+        int[] status = new int[ 1 ];
+        boolean success = timeBaseOperation( "update", () -> {
+            status[ 0 ] = update.run();
+            return status[ 0 ] == 0;
+        } );
+
+        if( success ){
+            recordBaseUpdate( basePath, checkResult );
+            return true;
+        }
+
+        if( status[ 0 ] == LOCK_TIMEOUT_STATUS && m_mirrorsChanged ){
+            m_logger.println( "Unable to lock " + basePath + " in time to point it at the new mirrors" );
+            return false;
+        }
+
+        if( status[ 0 ] == LOCK_TIMEOUT_STATUS ){
+            m_logger.println( "Not updating " + basePath + ": unable to lock it in time, building with the existing base" );
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Record that the base was not updated because it is fresh enough.
+     */
+    protected final void recordBaseSkipped(){
+        if( m_metricLabels != null ){
+            BuildMetrics.recordBaseSkipped( m_metricLabels );
+        }
+    }
+
+    /**
+     * Only build the architecture dependent binary packages, not the source
+     * package or architecture independent packages.  Used when building for
+     * more than one architecture, so that these are only built once.
+     */
+    void setBinaryArchOnly( boolean binaryArchOnly ){
+        m_binaryArchOnly = binaryArchOnly;
+    }
+
+    /**
+     * Get the options for dpkg-buildpackage that say what to build.
+     */
+    protected final String getBuildTypeOption(){
+        if( m_binaryArchOnly ){
+            return "-B";
+        }
+
+        return "-sa";
+    }
+
+    /**
+     * Set the policy used to decide if the base needs to be updated before building.
+     */
+    void setFreshness( BaseFreshness freshness ){
+        m_freshness = freshness;
+    }
+
+    /**
+     * Check if the base at the given path needs to be updated.
+     *
+     * @param basePath The path to the base
+     * @return The result of the check, or null if bases are always updated
+     */
+    protected final BaseFreshness.Result checkBaseFreshness( String basePath ) throws IOException, InterruptedException {
+        if( m_freshness == null || !m_freshness.isEnabled() ){
+            return null;
+        }
+
+        return m_workspace.act( m_freshness.check( BaseFreshness.getStampPath( basePath ) ) );
+    }
+
+    /**
+     * Record that the base at the given path has been created or updated.
+     *
+     * @param basePath The path to the base
+     * @param checkResult The result of the check done before the update
+     */
+    protected final void recordBaseUpdate( String basePath, BaseFreshness.Result checkResult ) throws IOException, InterruptedException {
+        String mirrorsPath = getMirrorsPath( basePath );
+        if( !m_workspace.act( new WriteMirrors( mirrorsPath, m_mirrors ) ) ){
+            m_logger.println( "Unable to write " + mirrorsPath + ": base will be updated with --override-config "
+                    + "on every build while the apt proxy is used(is the directory writable by this user?)" );
+        }
 
-        if( status != 0 ){
+        if( checkResult == null ){
             return;
         }
 
-        InputStream is = proc.getStdout();
-        if( is != null ){
-            Scanner scan = new Scanner( is, "UTF-8" );
-            m_buildArch = scan.nextLine();
+        String stampPath = BaseFreshness.getStampPath( basePath );
+        if( !m_workspace.act( m_freshness.record( stampPath, checkResult ) ) ){
+            m_logger.println( "Unable to write " + stampPath + ": base will be updated "
+                    + "on every build(is the directory writable by this user?)" );
         }
     }
 
+    /**
+     * Set the mirrors that the base uses, so that its sources.list is
+     * rewritten when they change, e.g. when the apt proxy is turned on or off.
+     */
+    void setMirrors( PbuilderConfiguration config ){
+        m_mirrors = "MIRRORSITE=" + Objects.toString( config.getMirrorSite(), "" ) + "\n"
+                + "OTHERMIRROR=" + Objects.toString( config.getOtherMirror(), "" ) + "\n";
+    }
+
+    /**
+     * Get the path of the file that holds the mirrors that the given base was
+     * last created or updated with.
+     */
+    static String getMirrorsPath( String basePath ){
+        return basePath + ".mirrors";
+    }
+
+    /**
+     * Check if the sources.list of the base was written for other mirrors
+     * than the ones that it should use now.  If it was, the base has to be
+     * updated with --override-config, whether or not it is fresh.
+     *
+     * @return True if the mirrors have changed
+     */
+    protected final boolean checkMirrorsChanged( String basePath ) throws IOException, InterruptedException {
+        String recorded = m_workspace.act( new ReadMirrors( getMirrorsPath( basePath ) ) );
+
+        if( recorded == null ){
+            // Bases from before the mirrors were recorded never used the apt proxy
+            m_mirrorsChanged = AptProxy.isRewritten( m_mirrors );
+        }else{
+            m_mirrorsChanged = !recorded.equals( m_mirrors );
+        }
+
+        if( m_mirrorsChanged ){
+            m_logger.println( basePath + " was set up for other mirrors(was the apt proxy turned on or off?), "
+                    + "updating it with --override-config" );
+        }
+
+        return m_mirrorsChanged;
+    }
+
+    /**
+     * Add --override-config to an update command if the sources.list of the
+     * base has to be rewritten.
+     */
+    protected final void addOverrideConfig( List<String> cmds ){
+        if( m_mirrorsChanged ){
+            cmds.add( "--override-config" );
+        }
+    }
+
+    protected final String getDebootstrap(){
+        if( m_buildArch.equals(m_hostArch ) ){
+            return "debootstrap";
+        }else{
+            return "qemu-debootstrap";
+        }
+    }
+
+    protected final void setBuildArch( HostFacts hostFacts ){
+        m_buildArch = hostFacts.getBuildArch();
+    }
+
     /**
      * Returns the system architecture if 'architecture' is set to 'all',
      * otherwise get the architecture to build for.
@@ -140,6 +570,105 @@ public abstract class PbuilderInterface {
 
     }
 
+    /**
+     * Returns the target of a symbolic link, or null if the path is not a symbolic link.
+     */
+    protected static final class ReadSymbolicLink implements FilePath.FileCallable<String>{
+
+        private static final long serialVersionUID = 1L;
+
+        private final String m_path;
+
+        public ReadSymbolicLink( String path ){
+            m_path = path;
+        }
+
+        @Override
+        public String invoke( File file, VirtualChannel vc ) throws IOException, InterruptedException {
+            Path link = new File( m_path ).toPath();
+
+            if( !Files.isSymbolicLink( link ) ){
+                return null;
+            }
+
+            return link.resolveSibling( Files.readSymbolicLink( link ) ).toString();
+        }
+
+        @Override
+        public void checkRoles( RoleChecker rc ) throws SecurityException {
+        }
+    }
+
+    /**
+     * Reads the mirrors that a base was set up with; null if they are not known.
+     */
+    private static final class ReadMirrors implements FilePath.FileCallable<String>{
+
+        private static final long serialVersionUID = 1L;
+
+        private final String m_path;
+
+        ReadMirrors( String path ){
+            m_path = path;
+        }
+
+        @Override
+        public String invoke( File file, VirtualChannel vc ) throws IOException, InterruptedException {
+            Path path = new File( m_path ).toPath();
+
+            if( !Files.isRegularFile( path ) ){
+                return null;
+            }
+
+            return new String( Files.readAllBytes( path ), StandardCharsets.UTF_8 );
+        }
+
+        @Override
+        public void checkRoles( RoleChecker rc ) throws SecurityException {
+        }
+    }
+
+    /**
+     * Records the mirrors that a base was set up with.
+     */
+    private static final class WriteMirrors implements FilePath.FileCallable<Boolean>{
+
+        private static final long serialVersionUID = 1L;
+
+        private final String m_path;
+        private final String m_mirrors;
+
+        WriteMirrors( String path, String mirrors ){
+            m_path = path;
+            m_mirrors = mirrors;
+        }
+
+        @Override
+        public Boolean invoke( File file, VirtualChannel vc ) throws IOException, InterruptedException {
+            Path path = new File( m_path ).toPath();
+            Path tmp = null;
+
+            try{
+                tmp = Files.createTempFile( path.getParent(), ".mirrors", ".tmp" );
+                Files.write( tmp, m_mirrors.getBytes( StandardCharsets.UTF_8 ) );
+                Files.move( tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+            }catch( IOException ex ){
+                LOGGER.log( Level.FINE, "Unable to write " + m_path, ex );
+                return false;
+            }finally{
+                if( tmp != null ){
+                    Files.deleteIfExists( tmp );
+                }
+            }
+
+            return true;
+        }
+
+        @Override
+        public void checkRoles( RoleChecker rc ) throws SecurityException {
+        }
+    }
+
     protected static final class CheckIfAbsolutePathExists implements FilePath.FileCallable<Boolean>{
 
         private final String m_path;
@@ -0,0 +1,162 @@
+package com.rm5248.debianpbuilder;
+
+import hudson.model.Action;
+import hudson.model.Run;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import jenkins.model.RunAction2;
+import jenkins.tasks.SimpleBuildStep;
+
+/**
+ * How long each phase of a build took.
+ *
+ * This is shown on the build page, and the last build gives the project a
+ * trend graph of the phase durations.
+ */
+public class PhaseTimingAction implements RunAction2, SimpleBuildStep.LastBuildAction {
+
+    private final LinkedHashMap<String,Long> m_durations = new LinkedHashMap<>();
+    // When the first phase started and the last one ended; 0 for builds from
+    // before these were recorded
+    private long m_firstStart;
+    private long m_lastEnd;
+    private transient Run<?,?> m_run;
+
+    /**
+     * Something that we want to time.
+     */
+    interface Phase<T> {
+        T run() throws IOException, InterruptedException;
+    }
+
+    /**
+     * Get the timings of a run, adding them to the run if they are not there
+     * yet.
+     */
+    static PhaseTimingAction forRun( Run<?,?> run ){
+        synchronized( run ){
+            PhaseTimingAction action = run.getAction( PhaseTimingAction.class );
+            if( action == null ){
+                action = new PhaseTimingAction();
+                run.addAction( action );
+            }
+            return action;
+        }
+    }
+
+    /**
+     * Run a phase, and record how long it took.  If a phase with the same
+     * name has already run, the durations are added together.
+     */
+    <T> T time( String phase, Phase<T> toRun ) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        try{
+            return toRun.run();
+        }finally{
+            record( phase, TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start ) );
+        }
+    }
+
+    /**
+     * Record a phase that took the given time and has just ended.
+     */
+    synchronized void record( String phase, long millis ){
+        m_durations.merge( phase, millis, Long::sum );
+
+        long end = System.currentTimeMillis();
+        long start = end - millis;
+        if( m_lastEnd == 0 || start < m_firstStart ){
+            m_firstStart = start;
+        }
+        m_lastEnd = Math.max( m_lastEnd, end );
+    }
+
+    /**
+     * @return The duration of each phase in milliseconds, in the order that
+     * they were run
+     */
+    public synchronized Map<String,Long> getDurations(){
+        return new LinkedHashMap<>( m_durations );
+    }
+
+    /**
+     * @return How long the build took from the start of the first phase to
+     * the end of the last one.  Phases of a matrix build can run at the same
+     * time, so this can be less than the durations added together.
+     */
+    public synchronized long getTotalDuration(){
+        if( m_lastEnd == 0 ){
+            return getSumOfDurations();
+        }
+
+        return m_lastEnd - m_firstStart;
+    }
+
+    /**
+     * @return The durations of all of the phases added together
+     */
+    synchronized long getSumOfDurations(){
+        long total = 0;
+        for( long duration : m_durations.values() ){
+            total += duration;
+        }
+        return total;
+    }
+
+    /**
+     * Format a duration for display, e.g. 1:02:03 or 2:03.4
+     */
+    public static String formatDuration( long millis ){
+        long hours = TimeUnit.MILLISECONDS.toHours( millis );
+        long minutes = TimeUnit.MILLISECONDS.toMinutes( millis ) % 60;
+        long seconds = TimeUnit.MILLISECONDS.toSeconds( millis ) % 60;
+
+        if( hours > 0 ){
+            return String.format( "%d:%02d:%02d", hours, minutes, seconds );
+        }
+
+        return String.format( "%d:%02d.%d", minutes, seconds, (millis % 1000) / 100 );
+    }
+
+    public Run<?,?> getRun(){
+        return m_run;
+    }
+
+    @Override
+    public void onAttached( Run<?,?> r ){
+        m_run = r;
+    }
+
+    @Override
+    public void onLoad( Run<?,?> r ){
+        m_run = r;
+    }
+
+    @Override
+    public Collection<? extends Action> getProjectActions(){
+        if( m_run == null ){
+            return Collections.emptyList();
+        }
+
+        return Collections.singletonList( new PhaseTimingProjectAction( m_run.getParent() ) );
+    }
+
+    @Override
+    public String getIconFileName(){
+        return null;
+    }
+
+    @Override
+    public String getDisplayName(){
+        return "Debian Pbuilder Build Phases";
+    }
+
+    @Override
+    public String getUrlName(){
+        return null;
+    }
+}
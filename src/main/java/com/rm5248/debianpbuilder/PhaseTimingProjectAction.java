@@ -0,0 +1,177 @@
+package com.rm5248.debianpbuilder;
+
+import hudson.model.Action;
+import hudson.model.Job;
+import hudson.model.Run;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.kohsuke.stapler.StaplerRequest2;
+import org.kohsuke.stapler.StaplerResponse2;
+
+/**
+ * Shows a graph of how long each phase of the recent builds of a project
+ * took.
+ */
+public class PhaseTimingProjectAction implements Action {
+
+    private static final int MAX_BUILDS = 30;
+    private static final int BAR_WIDTH = 16;
+    private static final int BAR_GAP = 6;
+    private static final int GRAPH_HEIGHT = 200;
+    private static final int LEFT_MARGIN = 50;
+    private static final int TOP_MARGIN = 10;
+    private static final int BOTTOM_MARGIN = 20;
+    private static final int LEGEND_LINE_HEIGHT = 16;
+
+    private static final String[] COLORS = {
+        "#4e79a7", "#f28e2b", "#e15759", "#76b7b2",
+        "#59a14f", "#edc948", "#b07aa1", "#ff9da7",
+        "#9c755f", "#bab0ac"
+    };
+
+    private final Job<?,?> m_job;
+
+    PhaseTimingProjectAction( Job<?,?> job ){
+        m_job = job;
+    }
+
+    public Job<?,?> getJob(){
+        return m_job;
+    }
+
+    /**
+     * @return True if there is at least one build to show on the graph
+     */
+    public boolean hasTimings(){
+        return !getTimedBuilds().isEmpty();
+    }
+
+    /**
+     * Get the timings of the recent builds, oldest first.
+     */
+    private List<PhaseTimingAction> getTimedBuilds(){
+        List<PhaseTimingAction> timings = new ArrayList<>();
+
+        for( Run<?,?> run : m_job.getBuilds() ){
+            if( timings.size() >= MAX_BUILDS ){
+                break;
+            }
+            if( run.isBuilding() ){
+                continue;
+            }
+
+            PhaseTimingAction action = run.getAction( PhaseTimingAction.class );
+            if( action != null && !action.getDurations().isEmpty() ){
+                timings.add( action );
+            }
+        }
+
+        Collections.reverse( timings );
+        return timings;
+    }
+
+    /**
+     * Draw the trend graph as an SVG: one stacked bar per build.
+     */
+    public void doTrend( StaplerRequest2 req, StaplerResponse2 rsp ) throws IOException {
+        List<PhaseTimingAction> timings = getTimedBuilds();
+        Set<String> phases = new LinkedHashSet<>();
+        long maxTotal = 1;
+
+        for( PhaseTimingAction timing : timings ){
+            phases.addAll( timing.getDurations().keySet() );
+            // The bars are stacked, so they are as tall as all of the phases together
+            maxTotal = Math.max( maxTotal, timing.getSumOfDurations() );
+        }
+
+        List<String> phaseList = new ArrayList<>( phases );
+        int graphWidth = Math.max( 1, timings.size() ) * (BAR_WIDTH + BAR_GAP);
+        int legendTop = TOP_MARGIN + GRAPH_HEIGHT + BOTTOM_MARGIN;
+        int width = LEFT_MARGIN + graphWidth + 10;
+        int height = legendTop + phaseList.size() * LEGEND_LINE_HEIGHT + 5;
+
+        rsp.setContentType( "image/svg+xml;charset=UTF-8" );
+        rsp.setHeader( "Cache-Control", "no-cache" );
+        PrintWriter w = rsp.getWriter();
+
+        w.println( "<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"" + Math.max( width, 250 )
+                + "\" height=\"" + height + "\" font-family=\"sans-serif\" font-size=\"11\">" );
+
+        // Axis, with the longest build at the top
+        int axisBottom = TOP_MARGIN + GRAPH_HEIGHT;
+        w.println( "<line x1=\"" + LEFT_MARGIN + "\" y1=\"" + TOP_MARGIN + "\" x2=\"" + LEFT_MARGIN
+                + "\" y2=\"" + axisBottom + "\" stroke=\"#888\"/>" );
+        w.println( "<line x1=\"" + LEFT_MARGIN + "\" y1=\"" + axisBottom + "\" x2=\"" + (LEFT_MARGIN + graphWidth)
+                + "\" y2=\"" + axisBottom + "\" stroke=\"#888\"/>" );
+        w.println( "<text x=\"" + (LEFT_MARGIN - 4) + "\" y=\"" + (TOP_MARGIN + 8)
+                + "\" text-anchor=\"end\">" + escape( PhaseTimingAction.formatDuration( maxTotal ) ) + "</text>" );
+        w.println( "<text x=\"" + (LEFT_MARGIN - 4) + "\" y=\"" + axisBottom
+                + "\" text-anchor=\"end\">0</text>" );
+
+        int x = LEFT_MARGIN + BAR_GAP / 2;
+        for( PhaseTimingAction timing : timings ){
+            Map<String,Long> durations = timing.getDurations();
+            double y = axisBottom;
+            String buildName = timing.getRun() == null ? "" : "#" + timing.getRun().getNumber();
+
+            for( Map.Entry<String,Long> duration : durations.entrySet() ){
+                double barHeight = (double)duration.getValue() * GRAPH_HEIGHT / maxTotal;
+                y -= barHeight;
+                w.println( String.format( "<rect x=\"%d\" y=\"%.1f\" width=\"%d\" height=\"%.1f\" fill=\"%s\">"
+                        + "<title>%s %s: %s</title></rect>",
+                        x, y, BAR_WIDTH, barHeight,
+                        getColor( phaseList.indexOf( duration.getKey() ) ),
+                        escape( buildName ),
+                        escape( duration.getKey() ),
+                        escape( PhaseTimingAction.formatDuration( duration.getValue() ) ) ) );
+            }
+
+            w.println( "<text x=\"" + (x + BAR_WIDTH / 2) + "\" y=\"" + (axisBottom + 14)
+                    + "\" text-anchor=\"middle\" font-size=\"9\">" + escape( buildName ) + "</text>" );
+            x += BAR_WIDTH + BAR_GAP;
+        }
+
+        for( int phase = 0; phase < phaseList.size(); phase++ ){
+            int y = legendTop + phase * LEGEND_LINE_HEIGHT;
+            w.println( "<rect x=\"" + LEFT_MARGIN + "\" y=\"" + y + "\" width=\"10\" height=\"10\" fill=\""
+                    + getColor( phase ) + "\"/>" );
+            w.println( "<text x=\"" + (LEFT_MARGIN + 15) + "\" y=\"" + (y + 9) + "\">"
+                    + escape( phaseList.get( phase ) ) + "</text>" );
+        }
+
+        w.println( "</svg>" );
+        w.flush();
+    }
+
+    private static String getColor( int index ){
+        return COLORS[ index % COLORS.length ];
+    }
+
+    private static String escape( String s ){
+        return s.replace( "&", "&amp;" )
+                .replace( "<", "&lt;" )
+                .replace( ">", "&gt;" )
+                .replace( "\"", "&quot;" );
+    }
+
+    @Override
+    public String getIconFileName(){
+        return null;
+    }
+
+    @Override
+    public String getDisplayName(){
+        return "Debian Pbuilder Build Phases";
+    }
+
+    @Override
+    public String getUrlName(){
+        return "debianPbuilderPhases";
+    }
+}
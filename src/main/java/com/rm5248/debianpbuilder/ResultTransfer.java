@@ -0,0 +1,347 @@
+package com.rm5248.debianpbuilder;
+
+import hudson.FilePath;
+import hudson.remoting.Pipe;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DirScanner;
+import hudson.util.FileVisitor;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+import org.jenkinsci.remoting.RoleChecker;
+
+/**
+ * Copies the results of a build from the node to the controller as tar
+ * streams, instead of one file at a time.
+ *
+ * The files are split into a number of streams that are copied at the same
+ * time, with about the same number of bytes in each.  Streams can be
+ * compressed with gzip on the node; with automatic compression, files that
+ * are already compressed(such as .deb files) are put into streams of their
+ * own that are not compressed again.
+ */
+final class ResultTransfer {
+
+    enum Compression {
+        Auto,
+        None,
+        Gzip
+    }
+
+    private static final Pattern COMPRESSED_PATTERN = Pattern.compile(
+            "\\.(u?deb|ddeb|gz|tgz|xz|txz|bz2|tbz2?|lzma|lz4|zst|zip|jar|png|jpe?g)$" );
+
+    private static final long PROGRESS_INTERVAL_SECONDS = 10;
+    private static final double MIB = 1024 * 1024;
+
+    private final int m_streams;
+    private final Compression m_compression;
+    private final PrintStream m_logger;
+
+    /**
+     * @param streams How many streams to copy at the same time
+     * @param compression How to compress the streams
+     * @param logger Where to log progress to
+     */
+    ResultTransfer( int streams, Compression compression, PrintStream logger ){
+        m_streams = Math.max( 1, streams );
+        m_compression = compression == null ? Compression.Auto : compression;
+        m_logger = logger;
+    }
+
+    /**
+     * A set of files that are sent in one tar stream.
+     */
+    private static final class Stream {
+        private final boolean m_gzip;
+        private final List<String> m_files = new ArrayList<>();
+        private long m_bytes;
+
+        Stream( boolean gzip ){
+            m_gzip = gzip;
+        }
+    }
+
+    /**
+     * Copy files from a directory on the node to a directory on the controller.
+     *
+     * @param source The directory on the node
+     * @param target The directory on the controller
+     * @param files The paths of the files to copy, relative to source
+     */
+    void transfer( FilePath source, FilePath target, List<String> files ) throws IOException, InterruptedException {
+        if( files.isEmpty() ){
+            return;
+        }
+
+        Map<String,Long> sizes = source.act( new ListSizes( files ) );
+        List<Stream> streams = plan( sizes );
+        long totalBytes = 0;
+        int gzipStreams = 0;
+        for( Stream stream : streams ){
+            totalBytes += stream.m_bytes;
+            gzipStreams += stream.m_gzip ? 1 : 0;
+        }
+
+        m_logger.println( String.format( "Copying %d files(%.1f MiB) in %d streams, %d of them compressed",
+                files.size(), totalBytes / MIB, streams.size(), gzipStreams ) );
+
+        AtomicLong sent = new AtomicLong();
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool( streams.size() );
+        List<Future<Void>> results = new ArrayList<>();
+
+        try{
+            for( Stream stream : streams ){
+                results.add( executor.submit( () -> copyStream( source, target, stream, sent ) ) );
+            }
+
+            for( Future<Void> result : results ){
+                while( true ){
+                    try{
+                        result.get( PROGRESS_INTERVAL_SECONDS, TimeUnit.SECONDS );
+                        break;
+                    }catch( TimeoutException ex ){
+                        logProgress( "Copied", sent.get(), start );
+                    }catch( ExecutionException ex ){
+                        if( ex.getCause() instanceof IOException ){
+                            throw (IOException)ex.getCause();
+                        }
+                        throw new IOException( ex.getCause() );
+                    }
+                }
+            }
+        }finally{
+            executor.shutdownNow();
+        }
+
+        logProgress( String.format( "Copied %d files(%.1f MiB):", files.size(), totalBytes / MIB ), sent.get(), start );
+    }
+
+    private void logProgress( String what, long sent, long start ){
+        double seconds = Math.max( 0.001, (System.nanoTime() - start) / 1e9 );
+        m_logger.println( String.format( "%s %.1f MiB sent in %.1f seconds(%.1f MiB/s)",
+                what, sent / MIB, seconds, sent / MIB / seconds ) );
+    }
+
+    private Void copyStream( FilePath source, FilePath target, Stream stream, AtomicLong sent )
+            throws IOException, InterruptedException {
+        Pipe pipe = Pipe.createRemoteToLocal();
+        Future<Integer> writer = source.actAsync( new WriteTar( stream.m_files, stream.m_gzip, pipe ) );
+
+        try( InputStream is = new CountingInputStream( pipe.getIn(), sent ) ){
+            target.untarFrom( is, stream.m_gzip ? FilePath.TarCompression.GZIP : FilePath.TarCompression.NONE );
+        }
+
+        try{
+            writer.get();
+        }catch( ExecutionException ex ){
+            throw new IOException( "Unable to send " + stream.m_files, ex.getCause() );
+        }
+
+        return null;
+    }
+
+    /**
+     * Split the files into streams.  Compressed and uncompressed files go
+     * into separate streams, and each kind gets a share of the streams
+     * depending on how many bytes of it there are.
+     */
+    private List<Stream> plan( Map<String,Long> sizes ){
+        Map<String,Long> compressible = new LinkedHashMap<>();
+        Map<String,Long> incompressible = new LinkedHashMap<>();
+        long compressibleBytes = 0;
+        long incompressibleBytes = 0;
+
+        for( Map.Entry<String,Long> file : sizes.entrySet() ){
+            boolean compress;
+            switch( m_compression ){
+                case Gzip:
+                    compress = true;
+                    break;
+                case None:
+                    compress = false;
+                    break;
+                default:
+                    compress = !COMPRESSED_PATTERN.matcher( file.getKey() ).find();
+                    break;
+            }
+
+            if( compress ){
+                compressible.put( file.getKey(), file.getValue() );
+                compressibleBytes += file.getValue();
+            }else{
+                incompressible.put( file.getKey(), file.getValue() );
+                incompressibleBytes += file.getValue();
+            }
+        }
+
+        List<Stream> streams = new ArrayList<>();
+
+        if( m_streams == 1 || compressible.isEmpty() || incompressible.isEmpty() ){
+            // One kind of stream: compress if most of the bytes can be compressed
+            Map<String,Long> all = new LinkedHashMap<>( compressible );
+            all.putAll( incompressible );
+            streams.addAll( split( all, m_streams, compressibleBytes > incompressibleBytes ) );
+            return streams;
+        }
+
+        long totalBytes = Math.max( 1, compressibleBytes + incompressibleBytes );
+        int compressedStreams = (int)Math.round( (double)m_streams * compressibleBytes / totalBytes );
+        compressedStreams = Math.max( 1, Math.min( m_streams - 1, compressedStreams ) );
+
+        streams.addAll( split( compressible, compressedStreams, true ) );
+        streams.addAll( split( incompressible, m_streams - compressedStreams, false ) );
+
+        return streams;
+    }
+
+    /**
+     * Split files into at most count streams, biggest files first into the
+     * stream with the fewest bytes.
+     */
+    private static List<Stream> split( Map<String,Long> files, int count, boolean gzip ){
+        List<Stream> streams = new ArrayList<>();
+        for( int x = 0; x < Math.min( count, files.size() ); x++ ){
+            streams.add( new Stream( gzip ) );
+        }
+
+        List<Map.Entry<String,Long>> bySize = new ArrayList<>( files.entrySet() );
+        bySize.sort( Map.Entry.<String,Long>comparingByValue().reversed() );
+
+        for( Map.Entry<String,Long> file : bySize ){
+            Stream smallest = streams.stream()
+                    .min( Comparator.comparingLong( s -> s.m_bytes ) )
+                    .get();
+            smallest.m_files.add( file.getKey() );
+            smallest.m_bytes += file.getValue();
+        }
+
+        return streams;
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+        private final AtomicLong m_count;
+
+        CountingInputStream( InputStream in, AtomicLong count ){
+            super( in );
+            m_count = count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if( b >= 0 ){
+                m_count.incrementAndGet();
+            }
+            return b;
+        }
+
+        @Override
+        public int read( byte[] b, int off, int len ) throws IOException {
+            int read = super.read( b, off, len );
+            if( read > 0 ){
+                m_count.addAndGet( read );
+            }
+            return read;
+        }
+    }
+
+    /**
+     * Get the sizes of files, relative to the directory this is run on.
+     */
+    private static final class ListSizes implements FilePath.FileCallable<Map<String,Long>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> m_files;
+
+        ListSizes( List<String> files ){
+            m_files = new ArrayList<>( files );
+        }
+
+        @Override
+        public Map<String,Long> invoke( File f, VirtualChannel channel ) throws IOException, InterruptedException {
+            Map<String,Long> sizes = new LinkedHashMap<>();
+            for( String file : m_files ){
+                File toSend = new File( f, file );
+                if( !toSend.isFile() ){
+                    throw new IOException( toSend + " does not exist" );
+                }
+                sizes.put( file, toSend.length() );
+            }
+            return sizes;
+        }
+
+        @Override
+        public void checkRoles( RoleChecker checker ) throws SecurityException {}
+    }
+
+    /**
+     * Write a tar of files, relative to the directory this is run on, to a pipe.
+     */
+    private static final class WriteTar implements FilePath.FileCallable<Integer> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> m_files;
+        private final boolean m_gzip;
+        private final Pipe m_pipe;
+
+        WriteTar( List<String> files, boolean gzip, Pipe pipe ){
+            m_files = new ArrayList<>( files );
+            m_gzip = gzip;
+            m_pipe = pipe;
+        }
+
+        @Override
+        public Integer invoke( File f, VirtualChannel channel ) throws IOException, InterruptedException {
+            try( OutputStream os = m_gzip ?
+                    new GZIPOutputStream( m_pipe.getOut(), 64 * 1024 ) :
+                    m_pipe.getOut() ){
+                return new FilePath( f ).tar( os, new ListScanner( m_files ) );
+            }
+        }
+
+        @Override
+        public void checkRoles( RoleChecker checker ) throws SecurityException {}
+    }
+
+    /**
+     * Visits the given files, relative to the directory being scanned.
+     */
+    private static final class ListScanner extends DirScanner {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> m_files;
+
+        ListScanner( List<String> files ){
+            m_files = files;
+        }
+
+        @Override
+        public void scan( File dir, FileVisitor visitor ) throws IOException {
+            for( String file : m_files ){
+                visitor.visit( new File( dir, file ), file );
+            }
+        }
+    }
+}
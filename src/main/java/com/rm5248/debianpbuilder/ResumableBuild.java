@@ -0,0 +1,456 @@
+package com.rm5248.debianpbuilder;
+
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A build by the Pipeline step once its source package is ready: where the
+ * source package and the results are, and for each architecture, the
+ * durable process that is building it.
+ *
+ * This is filled in by {@link DebianPbuilder} once it starts building the
+ * package, and saved with the step every time it changes.  Nothing waits
+ * for the processes; the step polls them, and finishes each architecture
+ * once its process has exited, the same way whether or not the controller
+ * restarted in the meantime.
+ */
+final class ResumableBuild implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private String m_binariesLocation;
+    private String m_dscFile;
+    private String m_packageName;
+    private String m_distribution;
+    private ArrayList<String> m_architectures;
+    private boolean m_perArchitecture;
+    private String m_fingerprint;
+    private final LinkedHashMap<String,Architecture> m_states = new LinkedHashMap<>();
+    private boolean m_stopped;
+    // Only needed to start the processes, and may hold credentials
+    private transient EnvVars m_env;
+    private transient Runnable m_onChange;
+    private transient Map<String,Live> m_live;
+    private transient Map<String,PrintStream> m_loggers;
+
+    /**
+     * What can only be done for an architecture by the build that started
+     * building it, and not once the controller has restarted.
+     */
+    interface Live {
+        /**
+         * Start building again, after the base that the build was using was
+         * removed.
+         *
+         * @return False if the build could not be started again
+         */
+        boolean rebuild() throws IOException, InterruptedException;
+
+        /**
+         * Clean up after the build.
+         */
+        void cleanup() throws IOException, InterruptedException;
+    }
+
+    /**
+     * Set what to do when the state changes, which should be to save it.
+     */
+    void setOnChange( Runnable onChange ){
+        m_onChange = onChange;
+    }
+
+    /**
+     * Set the environment to run pbuilder with.
+     */
+    void setEnvironment( EnvVars env ){
+        m_env = env;
+    }
+
+    private void changed(){
+        if( m_onChange != null ){
+            m_onChange.run();
+        }
+    }
+
+    private synchronized void writeObject( ObjectOutputStream out ) throws IOException {
+        out.defaultWriteObject();
+    }
+
+    /**
+     * Record that the source package is ready, and the architectures are
+     * about to be built.
+     */
+    synchronized void building( FilePath binariesLocation, FilePath dscFile, String packageName,
+            String distribution, List<String> architectures, boolean perArchitecture, String fingerprint ){
+        m_binariesLocation = binariesLocation.getRemote();
+        m_dscFile = dscFile == null ? null : dscFile.getRemote();
+        m_packageName = packageName;
+        m_distribution = distribution;
+        m_architectures = new ArrayList<>( architectures );
+        m_perArchitecture = perArchitecture;
+        m_fingerprint = fingerprint;
+        for( String architecture : architectures ){
+            m_states.put( architecture, new Architecture() );
+        }
+        changed();
+    }
+
+    synchronized boolean isBuilding(){
+        return m_binariesLocation != null;
+    }
+
+    /**
+     * Get the runner that starts building an architecture as a durable
+     * process, without waiting for it.
+     *
+     * @param lockTimeout How many minutes the build waits for its lock
+     * @param metricLabels The labels to record the build with
+     * @param phaseSuffix What to add to the name of the build phase
+     */
+    PbuilderInterface.BuildRunner getRunner( String architecture, Launcher launcher, TaskListener listener,
+            int lockTimeout, BuildMetrics.Labels metricLabels, String phaseSuffix ){
+        synchronized( this ){
+            Architecture state = m_states.get( architecture );
+            state.m_lockTimeout = lockTimeout;
+            state.m_metricLabels = metricLabels;
+            state.m_phaseSuffix = phaseSuffix;
+        }
+
+        return ( procStarter, cmds, lockfile, waitFile ) -> {
+            synchronized( this ){
+                // Don't start anything that would not be stopped
+                if( m_stopped ){
+                    throw new AbortException( "The build was stopped" );
+                }
+
+                EnvVars env = m_env == null ? new EnvVars() : new EnvVars( m_env );
+                for( String var : procStarter.envs() ){
+                    int equals = var.indexOf( '=' );
+                    env.put( var.substring( 0, equals ), var.substring( equals + 1 ) );
+                }
+
+                Architecture state = m_states.get( architecture );
+                state.m_process = DurableProcess.launch( procStarter.pwd(), launcher, listener, env, cmds );
+                state.m_exitStatus = null;
+                state.m_lockfile = lockfile;
+                state.m_waitFile = waitFile.getRemote();
+                if( state.m_started == 0 ){
+                    state.m_started = System.currentTimeMillis();
+                }
+            }
+            changed();
+
+            return PbuilderInterface.LAUNCHED_STATUS;
+        };
+    }
+
+    synchronized void setLive( String architecture, Live live ){
+        if( m_live == null ){
+            m_live = new HashMap<>();
+        }
+        m_live.put( architecture, live );
+    }
+
+    /**
+     * Record the temporary hook directory of an architecture, which is
+     * removed if the controller restarts.
+     */
+    synchronized void setHookdir( String architecture, FilePath hookdir ){
+        m_states.get( architecture ).m_hookdir = hookdir == null ? null : hookdir.getRemote();
+        changed();
+    }
+
+    /**
+     * Record the cores that an architecture was given, which are given back
+     * once it has finished.
+     */
+    synchronized void setCoreGrant( String architecture, String grant ){
+        m_states.get( architecture ).m_coreGrant = grant;
+        changed();
+    }
+
+    /**
+     * Copy the new output of the processes to the log, and check which of
+     * them have exited.
+     *
+     * @return The architectures whose processes have exited, and that have
+     * not been finished yet
+     */
+    synchronized List<String> poll( FilePath workspace, Launcher launcher, TaskListener listener )
+            throws IOException, InterruptedException {
+        List<String> exited = new ArrayList<>();
+        boolean changed = false;
+
+        for( Map.Entry<String,Architecture> entry : m_states.entrySet() ){
+            Architecture state = entry.getValue();
+            if( state.m_process != null ){
+                Integer status = state.m_process.poll( workspace, launcher, listener,
+                        getLogger( entry.getKey(), listener ) );
+                if( status != null ){
+                    state.m_process = null;
+                    state.m_exitStatus = status;
+                    changed = true;
+                }
+            }
+
+            if( state.m_exitStatus != null && state.m_succeeded == null ){
+                exited.add( entry.getKey() );
+            }
+        }
+
+        if( changed ){
+            changed();
+        }
+
+        return exited;
+    }
+
+    /**
+     * Finish an architecture whose process has exited: report on its lock,
+     * record how long it took, give back its cores and clean up after it.
+     * If the base that it was using was removed, it is built again instead.
+     */
+    void finish( String architecture, Run<?,?> run, FilePath workspace, TaskListener listener )
+            throws IOException, InterruptedException {
+        Architecture state;
+        Live live;
+        PrintStream logger;
+        synchronized( this ){
+            state = m_states.get( architecture );
+            live = m_live == null ? null : m_live.get( architecture );
+            logger = getLogger( architecture, listener );
+        }
+
+        int status = state.m_exitStatus;
+        if( state.m_waitFile != null ){
+            PbuilderInterface.reportLock( logger, state.m_metricLabels, state.m_lockfile, false,
+                    state.m_lockTimeout, workspace.child( state.m_waitFile ), status );
+            state.m_waitFile = null;
+        }
+
+        if( status == CowbuilderHelper.GENERATION_GONE_STATUS && live != null && live.rebuild() ){
+            return;
+        }
+
+        boolean succeeded = status == 0;
+        long millis = System.currentTimeMillis() - state.m_started;
+        PhaseTimingAction.forRun( run ).record( "Build" + state.m_phaseSuffix, millis );
+        if( state.m_metricLabels != null ){
+            BuildMetrics.recordBuild( state.m_metricLabels, succeeded, millis );
+            if( !succeeded ){
+                BuildMetrics.recordFailure( state.m_metricLabels, "build" );
+            }
+        }
+
+        cleanup( state, workspace, live );
+        logger.flush();
+        synchronized( this ){
+            state.m_succeeded = succeeded;
+            if( m_loggers != null && m_loggers.remove( architecture ) != null ){
+                logger.close();
+            }
+        }
+        changed();
+    }
+
+    /**
+     * Record that an architecture failed before its process was started,
+     * and give back its cores.
+     */
+    void failed( String architecture, FilePath workspace ) throws IOException, InterruptedException {
+        Architecture state;
+        synchronized( this ){
+            state = m_states.get( architecture );
+        }
+
+        cleanup( state, workspace, null );
+        synchronized( this ){
+            state.m_succeeded = false;
+        }
+        changed();
+    }
+
+    /**
+     * Called once the controller has restarted: the architectures whose
+     * process had not been started yet are failed, since what was starting
+     * them is gone.
+     */
+    void resumed( FilePath workspace, TaskListener listener ) throws IOException, InterruptedException {
+        List<String> notStarted = new ArrayList<>();
+        synchronized( this ){
+            for( Map.Entry<String,Architecture> entry : m_states.entrySet() ){
+                Architecture state = entry.getValue();
+                if( state.m_process == null && state.m_exitStatus == null && state.m_succeeded == null ){
+                    notStarted.add( entry.getKey() );
+                }
+            }
+        }
+
+        for( String architecture : notStarted ){
+            getLogger( architecture, listener ).println( "The build had not started when Jenkins restarted" );
+            failed( architecture, workspace );
+        }
+    }
+
+    /**
+     * Give back the cores of an architecture and remove its temporary hook
+     * directory.
+     */
+    private void cleanup( Architecture state, FilePath workspace, Live live ) throws IOException, InterruptedException {
+        String grant;
+        String hookdir;
+        synchronized( this ){
+            grant = state.m_coreGrant;
+            hookdir = state.m_hookdir;
+            state.m_coreGrant = null;
+            state.m_hookdir = null;
+        }
+
+        if( grant != null ){
+            workspace.act( new CoreBudget.Release( grant ) );
+        }
+
+        if( live != null ){
+            live.cleanup();
+        }else if( hookdir != null ){
+            workspace.child( hookdir ).deleteRecursive();
+        }
+    }
+
+    /**
+     * Stop the architectures that are still building, and clean up after
+     * the ones that have not finished.  Nothing is started after this.
+     *
+     * @param workspace The workspace, or null if the agent is not connected
+     */
+    void stop( FilePath workspace, Launcher launcher ) throws IOException, InterruptedException {
+        Map<Architecture,Live> unfinished = new LinkedHashMap<>();
+        synchronized( this ){
+            m_stopped = true;
+            for( Map.Entry<String,Architecture> entry : m_states.entrySet() ){
+                if( entry.getValue().m_succeeded == null ){
+                    unfinished.put( entry.getValue(), m_live == null ? null : m_live.get( entry.getKey() ) );
+                }
+            }
+        }
+        changed();
+
+        if( workspace == null ){
+            return;
+        }
+
+        for( Map.Entry<Architecture,Live> entry : unfinished.entrySet() ){
+            DurableProcess process = entry.getKey().m_process;
+            if( process != null ){
+                process.stop( workspace, launcher );
+            }
+            cleanup( entry.getKey(), workspace, entry.getValue() );
+        }
+    }
+
+    /**
+     * @return True once every architecture has been finished
+     */
+    synchronized boolean isFinished(){
+        for( Architecture state : m_states.values() ){
+            if( state.m_succeeded == null ){
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return The architectures that built successfully
+     */
+    synchronized List<String> getSucceeded(){
+        List<String> succeeded = new ArrayList<>();
+        for( Map.Entry<String,Architecture> entry : m_states.entrySet() ){
+            if( Boolean.TRUE.equals( entry.getValue().m_succeeded ) ){
+                succeeded.add( entry.getKey() );
+            }
+        }
+
+        return succeeded;
+    }
+
+    private synchronized PrintStream getLogger( String architecture, TaskListener listener )
+            throws UnsupportedEncodingException {
+        if( !m_perArchitecture ){
+            return listener.getLogger();
+        }
+
+        if( m_loggers == null ){
+            m_loggers = new HashMap<>();
+        }
+
+        PrintStream logger = m_loggers.get( architecture );
+        if( logger == null ){
+            logger = new PrintStream( new LinePrefixOutputStream( listener.getLogger(), "[" + architecture + "] " ),
+                    true,
+                    "UTF-8" );
+            m_loggers.put( architecture, logger );
+        }
+
+        return logger;
+    }
+
+    FilePath getBinariesLocation( FilePath workspace ){
+        return workspace.child( m_binariesLocation );
+    }
+
+    FilePath getDscFile( FilePath workspace ){
+        return m_dscFile == null ? null : workspace.child( m_dscFile );
+    }
+
+    String getPackageName(){
+        return m_packageName;
+    }
+
+    String getDistribution(){
+        return m_distribution;
+    }
+
+    List<String> getArchitectures(){
+        return m_architectures;
+    }
+
+    boolean isPerArchitecture(){
+        return m_perArchitecture;
+    }
+
+    String getFingerprint(){
+        return m_fingerprint;
+    }
+
+    private static final class Architecture implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private DurableProcess m_process;
+        private Integer m_exitStatus;
+        private String m_lockfile;
+        private String m_waitFile;
+        private int m_lockTimeout;
+        private BuildMetrics.Labels m_metricLabels;
+        private String m_phaseSuffix = "";
+        private long m_started;
+        private String m_hookdir;
+        private String m_coreGrant;
+        private Boolean m_succeeded;
+    }
+}
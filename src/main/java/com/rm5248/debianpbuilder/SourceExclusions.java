@@ -0,0 +1,307 @@
+package com.rm5248.debianpbuilder;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.remoting.VirtualChannel;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import org.jenkinsci.remoting.RoleChecker;
+
+/**
+ * The files to leave out of the source package that dpkg-source -b makes.
+ *
+ * Each exclusion is a glob, which is given to dpkg-source both as a
+ * --tar-ignore pattern(for the tarball of native packages) and as an
+ * --extend-diff-ignore regex(for the diff of quilt packages).  Patterns
+ * without a '/' match a file or directory anywhere in the tree; patterns
+ * with a '/' are relative to the top of the source tree.
+ *
+ * With automatic exclusion, the default exclusions of dpkg-source(version
+ * control directories, object files, editor backups and so on) are used, as
+ * well as the directories that are left behind by building the package, and
+ * everything that git says is ignored.
+ */
+final class SourceExclusions {
+
+    // What building a package with debhelper leaves in the source tree
+    private static final String[] BUILD_LEFTOVERS = {
+        "debian/tmp",
+        "debian/.debhelper",
+        "debian/debhelper-build-stamp",
+        "debian/files",
+        "debian/*.debhelper.log",
+        "debian/*.substvars",
+        "obj-*-linux-gnu*"
+    };
+
+    // Don't make a command line that is too long if git ignores a lot of files
+    private static final int MAX_IGNORED = 1000;
+
+    private final boolean m_useDefaults;
+    private final List<String> m_patterns = new ArrayList<>();
+    private final List<String> m_paths = new ArrayList<>();
+
+    private SourceExclusions( boolean useDefaults ){
+        m_useDefaults = useDefaults;
+    }
+
+    /**
+     * @param auto True to use the default exclusions and the files that git
+     * ignores
+     * @param patterns User supplied patterns, separated by commas or whitespace
+     * @param sourceDir The source tree
+     */
+    static SourceExclusions create( boolean auto, String patterns, FilePath sourceDir,
+            Launcher launcher, PrintStream logger ) throws IOException, InterruptedException {
+        SourceExclusions exclusions = new SourceExclusions( auto );
+
+        if( auto ){
+            for( String leftover : BUILD_LEFTOVERS ){
+                exclusions.m_patterns.add( leftover );
+            }
+            exclusions.addGitIgnored( sourceDir, launcher, logger );
+        }
+
+        if( patterns != null ){
+            for( String pattern : patterns.split( "[,\\s]+" ) ){
+                pattern = pattern.replaceAll( "^/+|/+$", "" );
+                if( !pattern.isEmpty() && !exclusions.m_patterns.contains( pattern ) ){
+                    exclusions.m_patterns.add( pattern );
+                }
+            }
+        }
+
+        return exclusions;
+    }
+
+    boolean isEmpty(){
+        return !m_useDefaults && m_patterns.isEmpty() && m_paths.isEmpty();
+    }
+
+    /**
+     * How many files or directories git ignores, that are excluded.
+     */
+    int getIgnoredCount(){
+        return m_paths.size();
+    }
+
+    /**
+     * Get the options for dpkg-source -b that leave out the excluded files.
+     *
+     * @param sourceDirName The name of the source tree directory, which is
+     * the first part of every path in the tarball
+     */
+    List<String> getDpkgSourceOptions( String sourceDirName ){
+        List<String> options = new ArrayList<>();
+
+        if( m_useDefaults ){
+            options.add( "-I" );
+            options.add( "-i" );
+        }
+
+        for( String pattern : m_patterns ){
+            if( pattern.contains( "/" ) ){
+                addAnchored( options, sourceDirName, pattern );
+            }else{
+                options.add( "--tar-ignore=" + pattern );
+                options.add( "--extend-diff-ignore=(?:^|/)" + globToRegex( pattern ) + "(?:/|$)" );
+            }
+        }
+
+        for( String path : m_paths ){
+            addAnchored( options, sourceDirName, path );
+        }
+
+        return options;
+    }
+
+    /**
+     * tar matches an exclude pattern after any '/' in a path, so prefix it
+     * with the name of the top directory of the tarball.
+     */
+    private static void addAnchored( List<String> options, String sourceDirName, String pattern ){
+        options.add( "--tar-ignore=" + sourceDirName + "/" + pattern );
+        options.add( "--extend-diff-ignore=^" + globToRegex( pattern ) + "(?:/|$)" );
+    }
+
+    /**
+     * Add everything in the source tree that git ignores, if it is a git
+     * checkout.
+     */
+    private void addGitIgnored( FilePath sourceDir, Launcher launcher, PrintStream logger )
+            throws InterruptedException {
+        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        int status;
+        try{
+            Proc proc = launcher.launch()
+                .pwd( sourceDir )
+                .cmds( "git", "ls-files", "-z", "--others", "--ignored", "--exclude-standard", "--directory" )
+                .stdout( stdout )
+                .stderr( new ByteArrayOutputStream() )
+                .quiet( true )
+                .start();
+            status = proc.join();
+        }catch( IOException ex ){
+            // No git on this node
+            return;
+        }
+
+        if( status != 0 ){
+            // Not a git checkout
+            return;
+        }
+
+        addGitIgnored( stdout.toString( StandardCharsets.UTF_8 ), logger );
+    }
+
+    /**
+     * Add the paths that 'git ls-files -z' printed.
+     */
+    void addGitIgnored( String gitOutput, PrintStream logger ){
+        int ignored = 0;
+        for( String path : gitOutput.split( "\0" ) ){
+            path = path.replaceAll( "/+$", "" );
+            if( path.isEmpty() ){
+                continue;
+            }
+
+            if( ignored++ == MAX_IGNORED ){
+                logger.println( "git ignores more than " + MAX_IGNORED + " files or directories, "
+                        + "only excluding the first " + MAX_IGNORED + " from the source package" );
+                break;
+            }
+
+            // A path and not a pattern, so always relative to the top of the tree
+            m_paths.add( escapeGlob( path ) );
+        }
+    }
+
+    private static String escapeGlob( String path ){
+        return path.replaceAll( "([\\\\*?\\[\\]])", "\\\\$1" );
+    }
+
+    /**
+     * Convert a glob to a regex that matches it in one or more directories
+     * of a path.  dpkg-source uses the regex in Perl, so literal characters
+     * other than letters, digits, '/', '_' and '-' are escaped with a
+     * backslash; \Q...\E only works in Perl string literals, not in a regex
+     * that is read at run time.
+     */
+    static String globToRegex( String glob ){
+        StringBuilder sb = new StringBuilder();
+        boolean escaped = false;
+
+        for( char c : glob.toCharArray() ){
+            if( escaped ){
+                appendLiteral( sb, c );
+                escaped = false;
+                continue;
+            }
+
+            switch( c ){
+                case '\\':
+                    escaped = true;
+                    break;
+                case '*':
+                    sb.append( "[^/]*" );
+                    break;
+                case '?':
+                    sb.append( "[^/]" );
+                    break;
+                default:
+                    appendLiteral( sb, c );
+                    break;
+            }
+        }
+
+        return sb.toString();
+    }
+
+    private static void appendLiteral( StringBuilder sb, char c ){
+        if( Character.isLetterOrDigit( c ) || c == '/' || c == '_' || c == '-' ){
+            sb.append( c );
+        }else{
+            sb.append( '\\' ).append( c );
+        }
+    }
+
+    /**
+     * Get the size of the files in a directory tree.
+     */
+    static FilePath.FileCallable<Long> getTreeSize(){
+        return new TreeSize();
+    }
+
+    /**
+     * Get the size of a source package: the .dsc and all of the files that
+     * it lists.
+     */
+    static long getSourcePackageSize( FilePath dsc ) throws IOException, InterruptedException {
+        long size = dsc.length();
+        boolean inFiles = false;
+
+        try( BufferedReader reader = new BufferedReader( new StringReader( dsc.readToString() ) ) ){
+            String line;
+            while( (line = reader.readLine()) != null ){
+                if( !line.startsWith( " " ) ){
+                    inFiles = line.startsWith( "Files:" );
+                    continue;
+                }
+
+                String[] parts = line.trim().split( "\\s+" );
+                if( inFiles && parts.length == 3 ){
+                    try{
+                        size += Long.parseLong( parts[ 1 ] );
+                    }catch( NumberFormatException ex ){
+                        // Not a file entry
+                    }
+                }
+            }
+        }
+
+        return size;
+    }
+
+    private static final class TreeSize implements FilePath.FileCallable<Long> {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Long invoke( File f, VirtualChannel channel ) throws IOException, InterruptedException {
+            long[] size = { 0 };
+
+            Files.walkFileTree( f.toPath(), new SimpleFileVisitor<Path>(){
+                @Override
+                public FileVisitResult visitFile( Path file, BasicFileAttributes attrs ){
+                    if( attrs.isRegularFile() ){
+                        size[ 0 ] += attrs.size();
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed( Path file, IOException ex ){
+                    return FileVisitResult.CONTINUE;
+                }
+            } );
+
+            return size[ 0 ];
+        }
+
+        @Override
+        public void checkRoles( RoleChecker checker ) throws SecurityException {}
+    }
+}
@@ -0,0 +1,220 @@
+package com.rm5248.debianpbuilder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Runs the proxy in front of a fake mirror, which serves whatever files the
+ * test puts in it and remembers the requests that it got.
+ */
+class AptProxyTest {
+
+    @TempDir
+    Path m_dir;
+
+    private HttpServer m_mirror;
+    private AptProxy m_proxy;
+    private final Map<String,byte[]> m_files = new ConcurrentHashMap<>();
+    private final List<String> m_requests = Collections.synchronizedList( new ArrayList<>() );
+    private volatile boolean m_notModified;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        m_mirror = HttpServer.create( new InetSocketAddress( InetAddress.getLoopbackAddress(), 0 ), 0 );
+        m_mirror.createContext( "/", this::handle );
+        m_mirror.start();
+    }
+
+    @AfterEach
+    void tearDown(){
+        if( m_proxy != null ){
+            m_proxy.stop();
+        }
+        m_mirror.stop( 0 );
+    }
+
+    private void handle( HttpExchange exchange ) throws IOException {
+        String path = exchange.getRequestURI().getRawPath();
+        boolean conditional = exchange.getRequestHeaders().getFirst( "If-Modified-Since" ) != null;
+        m_requests.add( (conditional ? "conditional " : "") + path );
+
+        byte[] contents = m_files.get( path );
+        if( contents == null ){
+            exchange.sendResponseHeaders( 404, -1 );
+        }else if( conditional && m_notModified ){
+            exchange.sendResponseHeaders( 304, -1 );
+        }else{
+            exchange.sendResponseHeaders( 200, contents.length == 0 ? -1 : contents.length );
+            exchange.getResponseBody().write( contents );
+        }
+        exchange.close();
+    }
+
+    private void startProxy( long maxBytes ) throws IOException {
+        m_proxy = new AptProxy( 0, m_dir.resolve( "cache" ), maxBytes );
+    }
+
+    private void put( String path, String contents ){
+        m_files.put( path, contents.getBytes( StandardCharsets.UTF_8 ) );
+    }
+
+    private String getProxyUrl( String path ){
+        return "http://127.0.0.1:" + m_proxy.getPort() + "/http/127.0.0.1:" + m_mirror.getAddress().getPort() + path;
+    }
+
+    private HttpURLConnection open( String path ) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection)new URL( getProxyUrl( path ) ).openConnection();
+        conn.setUseCaches( false );
+        return conn;
+    }
+
+    /**
+     * Get the given path from the mirror through the proxy.
+     *
+     * @return The contents, or null if the proxy did not answer with 200
+     */
+    private String get( String path ) throws IOException {
+        HttpURLConnection conn = open( path );
+        try{
+            if( conn.getResponseCode() != HttpURLConnection.HTTP_OK ){
+                return null;
+            }
+            try( InputStream is = conn.getInputStream() ){
+                return new String( is.readAllBytes(), StandardCharsets.UTF_8 );
+            }
+        }finally{
+            conn.disconnect();
+        }
+    }
+
+    private int getStatus( String path ) throws IOException {
+        HttpURLConnection conn = open( path );
+        try{
+            return conn.getResponseCode();
+        }finally{
+            conn.disconnect();
+        }
+    }
+
+    private Path getCached( String path ){
+        return m_dir.resolve( "cache" ).resolve( "http" )
+                .resolve( "127.0.0.1_" + m_mirror.getAddress().getPort() )
+                .resolve( path.substring( 1 ) );
+    }
+
+    @Test
+    void rewritesEveryMirrorUrl(){
+        assertEquals( "http://127.0.0.1:3142/http/deb.debian.org/debian",
+                AptProxy.rewrite( "http://deb.debian.org/debian", 3142 ) );
+        assertEquals( "deb [trusted=yes] http://127.0.0.1:3142/https/example.com/repo ./"
+                + "|deb http://127.0.0.1:3142/http/security.debian.org/ bookworm-security main",
+                AptProxy.rewrite( "deb [trusted=yes] https://example.com/repo ./"
+                + "|deb http://security.debian.org/ bookworm-security main", 3142 ) );
+        assertEquals( "file:///srv/mirror", AptProxy.rewrite( "file:///srv/mirror", 3142 ) );
+        assertNull( AptProxy.rewrite( null, 3142 ) );
+    }
+
+    @Test
+    void servesPackagesFromTheCache() throws IOException {
+        startProxy( 1024 * 1024 );
+        put( "/pool/main/f/foo/foo_1.0_amd64.deb", "package 1" );
+
+        assertEquals( "package 1", get( "/pool/main/f/foo/foo_1.0_amd64.deb" ) );
+        put( "/pool/main/f/foo/foo_1.0_amd64.deb", "package 2" );
+        assertEquals( "package 1", get( "/pool/main/f/foo/foo_1.0_amd64.deb" ) );
+
+        assertEquals( Collections.singletonList( "/pool/main/f/foo/foo_1.0_amd64.deb" ), m_requests );
+    }
+
+    @Test
+    void revalidatesIndexes() throws IOException {
+        startProxy( 1024 * 1024 );
+        put( "/dists/bookworm/InRelease", "release 1" );
+
+        assertEquals( "release 1", get( "/dists/bookworm/InRelease" ) );
+        put( "/dists/bookworm/InRelease", "release 2" );
+        assertEquals( "release 2", get( "/dists/bookworm/InRelease" ) );
+
+        m_notModified = true;
+        put( "/dists/bookworm/InRelease", "release 3" );
+        assertEquals( "release 2", get( "/dists/bookworm/InRelease" ) );
+
+        assertEquals( 3, m_requests.size() );
+        assertEquals( "/dists/bookworm/InRelease", m_requests.get( 0 ) );
+        assertEquals( "conditional /dists/bookworm/InRelease", m_requests.get( 1 ) );
+        assertEquals( "conditional /dists/bookworm/InRelease", m_requests.get( 2 ) );
+    }
+
+    @Test
+    void servesCachedIndexesWhenTheMirrorIsDown() throws IOException {
+        startProxy( 1024 * 1024 );
+        put( "/dists/bookworm/InRelease", "release 1" );
+        assertEquals( "release 1", get( "/dists/bookworm/InRelease" ) );
+
+        m_mirror.stop( 0 );
+        assertEquals( "release 1", get( "/dists/bookworm/InRelease" ) );
+        assertEquals( 502, getStatus( "/dists/bookworm/Release" ) );
+    }
+
+    @Test
+    void passesOnMissingFiles() throws IOException {
+        startProxy( 1024 * 1024 );
+
+        assertEquals( 404, getStatus( "/pool/main/f/foo/foo_1.0_amd64.deb" ) );
+        assertFalse( Files.exists( getCached( "/pool/main/f/foo/foo_1.0_amd64.deb" ) ) );
+    }
+
+    @Test
+    void rejectsPathsOutsideOfTheCache() throws IOException {
+        startProxy( 1024 * 1024 );
+
+        assertEquals( 400, getStatus( "/pool/../../../etc/passwd" ) );
+        assertEquals( 400, getStatus( "/dists/bookworm/" ) );
+        assertTrue( m_requests.isEmpty() );
+    }
+
+    @Test
+    void removesTheLeastRecentlyUsedPackages() throws Exception {
+        startProxy( 250 );
+        String hundredBytes = String.format( "%100s", "" );
+        for( String name : new String[]{ "a", "b", "c" } ){
+            put( "/pool/" + name + ".deb", hundredBytes );
+        }
+
+        assertNotNull( get( "/pool/a.deb" ) );
+        Thread.sleep( 20 );
+        assertNotNull( get( "/pool/b.deb" ) );
+        Thread.sleep( 20 );
+        assertNotNull( get( "/pool/a.deb" ) );
+        Thread.sleep( 20 );
+        assertNotNull( get( "/pool/c.deb" ) );
+
+        assertTrue( Files.exists( getCached( "/pool/a.deb" ) ) );
+        assertFalse( Files.exists( getCached( "/pool/b.deb" ) ) );
+        assertTrue( Files.exists( getCached( "/pool/c.deb" ) ) );
+    }
+}
@@ -0,0 +1,245 @@
+package com.rm5248.debianpbuilder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import hudson.FilePath;
+import hudson.util.Secret;
+import hudson.util.StreamTaskListener;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HexFormat;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Deploys files to a fake Artifactory, which answers each request with the
+ * next of the status codes that the test gives it.
+ */
+class ArtifactoryPublisherTest {
+
+    @TempDir
+    Path m_dir;
+
+    private HttpServer m_server;
+    private final Deque<Integer> m_responses = new ArrayDeque<>();
+    private final List<Request> m_requests = Collections.synchronizedList( new ArrayList<>() );
+    private final ByteArrayOutputStream m_log = new ByteArrayOutputStream();
+
+    private static final class Request {
+        private final String m_path;
+        private final boolean m_checksumDeploy;
+        private final String m_sha256;
+        private final String m_authorization;
+        private final byte[] m_body;
+
+        Request( HttpExchange exchange, byte[] body ){
+            m_path = exchange.getRequestURI().getRawPath();
+            m_checksumDeploy = "true".equals( exchange.getRequestHeaders().getFirst( "X-Checksum-Deploy" ) );
+            m_sha256 = exchange.getRequestHeaders().getFirst( "X-Checksum-Sha256" );
+            m_authorization = exchange.getRequestHeaders().getFirst( "Authorization" );
+            m_body = body;
+        }
+    }
+
+    @BeforeEach
+    void startServer() throws IOException {
+        m_server = HttpServer.create( new InetSocketAddress( InetAddress.getLoopbackAddress(), 0 ), 0 );
+        m_server.createContext( "/", this::handle );
+        m_server.start();
+    }
+
+    @AfterEach
+    void stopServer(){
+        m_server.stop( 0 );
+    }
+
+    private void handle( HttpExchange exchange ) throws IOException {
+        byte[] body;
+        try( InputStream is = exchange.getRequestBody() ){
+            body = is.readAllBytes();
+        }
+        m_requests.add( new Request( exchange, body ) );
+
+        Integer code;
+        synchronized( m_responses ){
+            code = m_responses.poll();
+        }
+        if( code == null ){
+            code = 500;
+        }
+
+        byte[] response = ("status " + code).getBytes( StandardCharsets.UTF_8 );
+        exchange.sendResponseHeaders( code, response.length );
+        exchange.getResponseBody().write( response );
+        exchange.close();
+    }
+
+    private void respond( Integer ... codes ){
+        m_responses.addAll( Arrays.asList( codes ) );
+    }
+
+    private ArtifactoryPublisher newPublisher( String username, String password ){
+        ArtifactoryPublisher publisher = new ArtifactoryPublisher(
+                "http://127.0.0.1:" + m_server.getAddress().getPort() + "/artifactory/",
+                "debian-local",
+                username,
+                password == null ? null : Secret.fromString( password ),
+                1 );
+        publisher.setRetryDelay( 1 );
+        return publisher;
+    }
+
+    private void publish( ArtifactoryPublisher publisher, ArtifactoryPublisher.Deploy ... deploys )
+            throws IOException, InterruptedException {
+        publisher.publish( new FilePath( m_dir.toFile() ), Arrays.asList( deploys ),
+                new StreamTaskListener( m_log ) );
+    }
+
+    private ArtifactoryPublisher.Deploy writeDeb( String contents ) throws IOException {
+        Files.write( m_dir.resolve( "foo_1.0_amd64.deb" ), contents.getBytes( StandardCharsets.UTF_8 ) );
+        return new ArtifactoryPublisher.Deploy( "foo_1.0_amd64.deb", "pool/foo/foo_1.0_amd64.deb",
+                "deb.distribution", "bookworm",
+                "deb.component", "main",
+                "deb.architecture", "amd64" );
+    }
+
+    @Test
+    void deploysByChecksumWhenArtifactoryHasTheFile() throws Exception {
+        respond( 201 );
+        publish( newPublisher( null, null ), writeDeb( "package" ) );
+
+        assertEquals( 1, m_requests.size() );
+        Request request = m_requests.get( 0 );
+        assertTrue( request.m_checksumDeploy );
+        assertEquals( 0, request.m_body.length );
+        assertEquals( HexFormat.of().formatHex( MessageDigest.getInstance( "SHA-256" )
+                .digest( "package".getBytes( StandardCharsets.UTF_8 ) ) ), request.m_sha256 );
+        assertNull( request.m_authorization );
+    }
+
+    @Test
+    void uploadsWhenTheChecksumIsNotFound() throws Exception {
+        respond( 404, 201 );
+        publish( newPublisher( "jenkins", "secret" ), writeDeb( "package" ) );
+
+        assertEquals( 2, m_requests.size() );
+        assertTrue( m_requests.get( 0 ).m_checksumDeploy );
+        Request upload = m_requests.get( 1 );
+        assertFalse( upload.m_checksumDeploy );
+        assertEquals( "package", new String( upload.m_body, StandardCharsets.UTF_8 ) );
+        assertEquals( m_requests.get( 0 ).m_sha256, upload.m_sha256 );
+        assertEquals( "Basic amVua2luczpzZWNyZXQ=", upload.m_authorization );
+    }
+
+    @Test
+    void retriesOnServerErrors() throws Exception {
+        respond( 503, 502, 201 );
+        publish( newPublisher( null, "token" ), writeDeb( "package" ) );
+
+        assertEquals( 3, m_requests.size() );
+        assertEquals( "Bearer token", m_requests.get( 2 ).m_authorization );
+        assertTrue( m_log.toString( StandardCharsets.UTF_8 ).contains( "Retrying deploy of pool/foo/foo_1.0_amd64.deb" ) );
+    }
+
+    @Test
+    void retriesWhenRateLimited() throws Exception {
+        respond( 429, 404, 201 );
+        publish( newPublisher( null, null ), writeDeb( "package" ) );
+
+        assertEquals( 3, m_requests.size() );
+        assertTrue( m_requests.get( 1 ).m_checksumDeploy );
+        assertEquals( "package", new String( m_requests.get( 2 ).m_body, StandardCharsets.UTF_8 ) );
+    }
+
+    @Test
+    void givesUpAfterTheLastAttempt() throws Exception {
+        respond( 500, 500, 500, 201 );
+        ArtifactoryPublisher.Deploy deploy = writeDeb( "package" );
+
+        IOException ex = assertThrows( IOException.class, () -> publish( newPublisher( null, null ), deploy ) );
+        assertTrue( ex.getMessage().contains( "pool/foo/foo_1.0_amd64.deb" ) );
+        assertEquals( 3, m_requests.size() );
+    }
+
+    @Test
+    void doesNotRetryOtherClientErrors() throws Exception {
+        respond( 403, 201 );
+        ArtifactoryPublisher.Deploy deploy = writeDeb( "package" );
+
+        assertThrows( IOException.class, () -> publish( newPublisher( null, null ), deploy ) );
+        assertEquals( 1, m_requests.size() );
+        assertTrue( m_log.toString( StandardCharsets.UTF_8 ).contains( "HTTP 403" ) );
+    }
+
+    @Test
+    void doesNotRetryAFailedUpload() throws Exception {
+        respond( 404, 400, 201 );
+        ArtifactoryPublisher.Deploy deploy = writeDeb( "package" );
+
+        assertThrows( IOException.class, () -> publish( newPublisher( null, null ), deploy ) );
+        assertEquals( 2, m_requests.size() );
+    }
+
+    @Test
+    void encodesTheTargetAndMatrixParameters() throws Exception {
+        respond( 201 );
+        Files.write( m_dir.resolve( "foo_1.0+git~1.dsc" ), new byte[]{ 1 } );
+        publish( newPublisher( null, null ), new ArtifactoryPublisher.Deploy( "foo_1.0+git~1.dsc",
+                "pool/foo/foo_1.0+git~1.dsc",
+                "deb.distribution", "stable updates;x=y",
+                "deb.component", "main" ) );
+
+        assertEquals( "/artifactory/debian-local/pool/foo/foo_1.0%2Bgit%7E1.dsc"
+                + ";deb.distribution=stable%20updates%3Bx%3Dy;deb.component=main",
+                m_requests.get( 0 ).m_path );
+    }
+
+    @Test
+    void plansEachPackageOnceWithItsArchitecture() throws Exception {
+        for( String arch : Arrays.asList( "amd64", "armhf" ) ){
+            Path dir = Files.createDirectories( m_dir.resolve( arch ) );
+            Files.write( dir.resolve( "foo_1.0_" + arch + ".deb" ), new byte[]{ 1 } );
+            Files.write( dir.resolve( "foo-doc_1.0_all.deb" ), new byte[]{ 1 } );
+        }
+        Files.write( m_dir.resolve( "amd64" ).resolve( "foo_1.0.dsc" ), new byte[]{ 1 } );
+        Files.write( m_dir.resolve( "amd64" ).resolve( "foo_1.0.tar.xz" ), new byte[]{ 1 } );
+
+        respond( 201, 201, 201, 201, 201 );
+        publish( newPublisher( null, null ), ArtifactoryPublisher.plan( new FilePath( m_dir.toFile() ),
+                "foo", "bookworm", Arrays.asList( "amd64", "armhf" ), true ).toArray( new ArtifactoryPublisher.Deploy[ 0 ] ) );
+
+        List<String> paths = new ArrayList<>();
+        for( Request request : m_requests ){
+            paths.add( request.m_path );
+        }
+        Collections.sort( paths );
+        assertEquals( Arrays.asList(
+                "/artifactory/debian-local/pool/foo/foo-doc_1.0_all.deb;deb.distribution=bookworm;deb.component=main;deb.architecture=amd64",
+                "/artifactory/debian-local/pool/foo/foo_1.0.dsc;deb.distribution=bookworm;deb.component=main",
+                "/artifactory/debian-local/pool/foo/foo_1.0.tar.xz;deb.distribution=bookworm;deb.component=main",
+                "/artifactory/debian-local/pool/foo/foo_1.0_amd64.deb;deb.distribution=bookworm;deb.component=main;deb.architecture=amd64",
+                "/artifactory/debian-local/pool/foo/foo_1.0_armhf.deb;deb.distribution=bookworm;deb.component=main;deb.architecture=armhf" ),
+                paths );
+    }
+}
@@ -0,0 +1,105 @@
+package com.rm5248.debianpbuilder;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs updates that block until the test lets them go, and then fails
+ * preparing the source package.
+ */
+class BackgroundBaseUpdatesTest {
+
+    private final ByteArrayOutputStream m_log = new ByteArrayOutputStream();
+    private final CountDownLatch m_started = new CountDownLatch( 1 );
+    private final CountDownLatch m_release = new CountDownLatch( 1 );
+    private final AtomicBoolean m_finished = new AtomicBoolean();
+    private final AtomicBoolean m_interrupted = new AtomicBoolean();
+    private BackgroundBaseUpdates m_updates;
+    private PrintStream m_updateLog;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        m_updates = new BackgroundBaseUpdates();
+        m_updateLog = m_updates.getLogger( "amd64", new PrintStream( m_log, true, "UTF-8" ) );
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        m_release.countDown();
+        m_updates.close();
+    }
+
+    private boolean update() throws InterruptedException {
+        m_started.countDown();
+        try{
+            m_release.await();
+        }catch( InterruptedException ex ){
+            m_interrupted.set( true );
+            throw ex;
+        }
+        m_updateLog.println( "Updated the base" );
+        m_finished.set( true );
+        return true;
+    }
+
+    private String getLog(){
+        return new String( m_log.toByteArray(), StandardCharsets.UTF_8 );
+    }
+
+    @Test
+    void cancelsUpdatesThatCanBeStopped() throws Exception {
+        m_updates.setUpdate( "amd64", this::update, () -> true );
+        m_updates.start();
+        assertTrue( m_started.await( 10, TimeUnit.SECONDS ) );
+
+        m_updates.sourcesPrepared( false );
+
+        assertFalse( m_finished.get() );
+        assertTrue( getLog().contains( "Cancelled creating or updating the base" ) );
+    }
+
+    @Test
+    void waitsForUpdatesInPlace() throws Exception {
+        m_updates.setUpdate( "amd64", this::update, () -> false );
+        m_updates.start();
+        assertTrue( m_started.await( 10, TimeUnit.SECONDS ) );
+
+        new Thread( () -> {
+            try{
+                Thread.sleep( 100 );
+            }catch( InterruptedException ex ){
+                // Released straight away then
+            }
+            m_release.countDown();
+        } ).start();
+        m_updates.sourcesPrepared( false );
+
+        assertTrue( m_finished.get() );
+        assertFalse( m_interrupted.get() );
+        assertTrue( getLog().contains( "waiting for it to finish" ) );
+        assertTrue( getLog().contains( "Updated the base" ) );
+    }
+
+    @Test
+    void doesNotCancelWhenTheSourcesWerePrepared() throws Exception {
+        m_updates.setUpdate( "amd64", this::update, () -> true );
+        m_updates.start();
+        assertTrue( m_started.await( 10, TimeUnit.SECONDS ) );
+
+        m_updates.sourcesPrepared( true );
+        m_release.countDown();
+
+        assertTrue( m_updates.join( "amd64" ) );
+        assertTrue( getLog().contains( "Updated the base" ) );
+    }
+}
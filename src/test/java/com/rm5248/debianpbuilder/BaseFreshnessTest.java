@@ -0,0 +1,199 @@
+package com.rm5248.debianpbuilder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks bases against stamps in a temporary directory, with mirrors that
+ * are file: URLs so that they can be changed by the test.
+ */
+class BaseFreshnessTest {
+
+    @TempDir
+    Path m_dir;
+
+    private String m_stamp;
+    private Path m_mirror;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        m_stamp = BaseFreshness.getStampPath( m_dir.resolve( "base-bookworm-amd64.cow" ).toString() );
+        m_mirror = Files.createDirectories( m_dir.resolve( "mirror" ) );
+        Files.createDirectories( m_mirror.resolve( "dists/bookworm" ) );
+    }
+
+    private String getMirrorUrl(){
+        return m_mirror.toUri().toString();
+    }
+
+    private void writeIndex( String name, String contents ) throws IOException {
+        Files.write( m_mirror.resolve( "dists/bookworm" ).resolve( name ), contents.getBytes( StandardCharsets.UTF_8 ) );
+    }
+
+    private BaseFreshness forMirror( int maxAgeMinutes, boolean checkMirrorIndexes ){
+        PbuilderConfiguration config = new PbuilderConfiguration();
+        config.setMirrorSite( getMirrorUrl() );
+        return BaseFreshness.forConfiguration( maxAgeMinutes, checkMirrorIndexes, config, "bookworm" );
+    }
+
+    private BaseFreshness.Result check( BaseFreshness freshness ) throws Exception {
+        return freshness.check( m_stamp ).invoke( null, null );
+    }
+
+    private void record( BaseFreshness freshness, BaseFreshness.Result result ) throws Exception {
+        assertTrue( freshness.record( m_stamp, result ).invoke( null, null ) );
+    }
+
+    private void writeStamp( long updated ) throws IOException {
+        Properties props = new Properties();
+        props.setProperty( "updated", Long.toString( updated ) );
+        try( OutputStream os = Files.newOutputStream( Path.of( m_stamp ) ) ){
+            props.store( os, null );
+        }
+    }
+
+    @Test
+    void isDisabledWithoutMaxAgeOrMirrors(){
+        assertFalse( new BaseFreshness( 0, true, Collections.emptyList() ).isEnabled() );
+        assertFalse( forMirror( 0, false ).isEnabled() );
+        assertTrue( forMirror( 0, true ).isEnabled() );
+        assertTrue( new BaseFreshness( 60, false, Collections.emptyList() ).isEnabled() );
+    }
+
+    @Test
+    void isNotFreshWithoutAStamp() throws Exception {
+        writeIndex( "InRelease", "release 1" );
+
+        assertFalse( check( forMirror( 60, true ) ).isFresh() );
+    }
+
+    @Test
+    void isFreshWhenUpdatedWithinTheMaxAge() throws Exception {
+        BaseFreshness freshness = new BaseFreshness( 60, false, Collections.emptyList() );
+        record( freshness, check( freshness ) );
+
+        BaseFreshness.Result result = check( freshness );
+        assertTrue( result.isFresh() );
+        assertTrue( result.getFreshReason().contains( "maximum age 60 minutes" ) );
+    }
+
+    @Test
+    void isNotFreshOnceOlderThanTheMaxAge() throws Exception {
+        writeStamp( System.currentTimeMillis() - TimeUnit.MINUTES.toMillis( 61 ) );
+
+        assertFalse( check( new BaseFreshness( 60, false, Collections.emptyList() ) ).isFresh() );
+    }
+
+    @Test
+    void isNotFreshWithAStampFromTheFuture() throws Exception {
+        writeStamp( System.currentTimeMillis() + TimeUnit.MINUTES.toMillis( 10 ) );
+
+        assertFalse( check( new BaseFreshness( 60, false, Collections.emptyList() ) ).isFresh() );
+    }
+
+    @Test
+    void isNotFreshWithABrokenStamp() throws Exception {
+        Files.write( Path.of( m_stamp ), "updated=yesterday\n".getBytes( StandardCharsets.UTF_8 ) );
+
+        assertFalse( check( new BaseFreshness( 60, false, Collections.emptyList() ) ).isFresh() );
+    }
+
+    @Test
+    void isFreshWhenTheMirrorIsUnchanged() throws Exception {
+        writeIndex( "InRelease", "release 1" );
+        BaseFreshness freshness = forMirror( 0, true );
+        record( freshness, check( freshness ) );
+
+        BaseFreshness.Result result = check( freshness );
+        assertTrue( result.isFresh() );
+        assertEquals( "mirror indexes have not changed since the last update", result.getFreshReason() );
+    }
+
+    @Test
+    void isNotFreshWhenTheMirrorChanged() throws Exception {
+        writeIndex( "InRelease", "release 1" );
+        BaseFreshness freshness = forMirror( 0, true );
+        record( freshness, check( freshness ) );
+
+        writeIndex( "InRelease", "release 2" );
+        assertFalse( check( freshness ).isFresh() );
+    }
+
+    @Test
+    void recordsTheMirrorAsSeenBeforeTheUpdate() throws Exception {
+        writeIndex( "InRelease", "release 1" );
+        BaseFreshness freshness = forMirror( 0, true );
+        BaseFreshness.Result before = check( freshness );
+
+        // The mirror changed while the base was being updated
+        writeIndex( "InRelease", "release 2" );
+        record( freshness, before );
+
+        assertFalse( check( freshness ).isFresh() );
+    }
+
+    @Test
+    void usesReleaseWhenThereIsNoInRelease() throws Exception {
+        writeIndex( "Release", "release 1" );
+        BaseFreshness freshness = forMirror( 0, true );
+        record( freshness, check( freshness ) );
+        assertTrue( check( freshness ).isFresh() );
+
+        writeIndex( "Release", "release 2" );
+        assertFalse( check( freshness ).isFresh() );
+    }
+
+    @Test
+    void isNotFreshWhenAMirrorCanNotBeReached() throws Exception {
+        writeIndex( "InRelease", "release 1" );
+        PbuilderConfiguration config = new PbuilderConfiguration();
+        config.setMirrorSite( getMirrorUrl() );
+        config.setOtherMirror( "deb " + m_dir.resolve( "missing" ).toUri() + " ./" );
+        BaseFreshness freshness = BaseFreshness.forConfiguration( 0, true, config, "bookworm" );
+        record( freshness, check( freshness ) );
+
+        assertFalse( check( freshness ).isFresh() );
+        assertNull( freshness.getMirrorIndexes().invoke( null, null ) );
+    }
+
+    @Test
+    void checksEveryOtherMirror() throws Exception {
+        writeIndex( "InRelease", "release 1" );
+        Path flat = Files.createDirectories( m_dir.resolve( "flat" ) );
+        Files.write( flat.resolve( "Release" ), "flat 1".getBytes( StandardCharsets.UTF_8 ) );
+
+        PbuilderConfiguration config = new PbuilderConfiguration();
+        config.setMirrorSite( getMirrorUrl() );
+        config.setOtherMirror( "deb [trusted=yes] " + flat.toUri() + " ./" );
+        BaseFreshness freshness = BaseFreshness.forConfiguration( 0, true, config, "bookworm" );
+
+        TreeMap<String,String> indexes = freshness.getMirrorIndexes().invoke( null, null );
+        assertNotNull( indexes );
+        assertEquals( new TreeSet<>( Arrays.asList( getMirrorUrl() + "dists/bookworm/", flat.toUri() + "./" ) ),
+                indexes.keySet() );
+
+        record( freshness, check( freshness ) );
+        assertTrue( check( freshness ).isFresh() );
+
+        Files.write( flat.resolve( "Release" ), "flat 2".getBytes( StandardCharsets.UTF_8 ) );
+        assertFalse( check( freshness ).isFresh() );
+    }
+}
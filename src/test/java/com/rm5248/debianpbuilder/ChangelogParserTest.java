@@ -0,0 +1,162 @@
+package com.rm5248.debianpbuilder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Parses changelogs from strings, and from files for the decoding.
+ */
+class ChangelogParserTest {
+
+    private static final String TRAILER = " -- Jane Doe <jane@example.com>  Mon, 01 Jan 2024 12:00:00 +0000";
+
+    @TempDir
+    Path m_dir;
+
+    private static ChangelogParser.ChangelogEntry parse( String ... lines ) throws IOException {
+        return ChangelogParser.parseTopEntry( new BufferedReader( new StringReader( String.join( "\n", lines ) ) ) );
+    }
+
+    @Test
+    void parsesTheTopEntry() throws IOException {
+        ChangelogParser.ChangelogEntry entry = parse(
+                "foo (1.2.3-1) unstable; urgency=medium",
+                "",
+                "  * New upstream release.",
+                "",
+                TRAILER,
+                "",
+                "foo (1.2.2-1) unstable; urgency=low",
+                "",
+                "  * Older release.",
+                "",
+                " -- John Roe <john@example.com>  Mon, 01 Jan 2023 12:00:00 +0000" );
+
+        assertNotNull( entry );
+        assertEquals( "foo", entry.getSource() );
+        assertEquals( "1.2.3-1", entry.getVersion() );
+        assertEquals( "unstable", entry.getDistribution() );
+        assertEquals( "medium", entry.getUrgency() );
+        assertEquals( "Jane Doe <jane@example.com>", entry.getMaintainer() );
+    }
+
+    @Test
+    void skipsLeadingBlankLines() throws IOException {
+        assertEquals( "foo", parse( "", "   ", "foo (1.0) unstable; urgency=low", TRAILER ).getSource() );
+    }
+
+    @Test
+    void parsesSeveralDistributions() throws IOException {
+        ChangelogParser.ChangelogEntry entry = parse( "foo (1.0-1) unstable   experimental; urgency=low", TRAILER );
+
+        assertEquals( "unstable experimental", entry.getDistribution() );
+    }
+
+    @Test
+    void findsTheUrgencyAmongOtherKeys() throws IOException {
+        assertEquals( "high", parse( "foo (1.0-1) unstable; binary-only=yes, Urgency=high", TRAILER ).getUrgency() );
+        assertNull( parse( "foo (1.0-1) unstable; binary-only=yes", TRAILER ).getUrgency() );
+    }
+
+    @Test
+    void needsAHeader() throws IOException {
+        assertNull( parse( "  * Not a header", TRAILER ) );
+        assertNull( parse( "foo 1.0-1 unstable; urgency=low", TRAILER ) );
+        assertNull( parse() );
+    }
+
+    @Test
+    void needsATrailer() throws IOException {
+        assertNull( parse( "foo (1.0-1) unstable; urgency=low", "", "  * Change" ) );
+        // The trailer of the next entry does not count
+        assertNull( parse( "foo (1.0-2) unstable; urgency=low",
+                "  * Change",
+                "foo (1.0-1) unstable; urgency=low",
+                TRAILER ) );
+        // One space between the address and the date is allowed, none is not
+        assertNull( parse( "foo (1.0-1) unstable; urgency=low",
+                " -- Jane Doe <jane@example.com>Mon, 01 Jan 2024 12:00:00 +0000" ) );
+        assertNotNull( parse( "foo (1.0-1) unstable; urgency=low",
+                " -- Jane Doe <jane@example.com> Mon, 01 Jan 2024 12:00:00 +0000" ) );
+    }
+
+    @Test
+    void getsTheUpstreamVersion() throws IOException {
+        assertEquals( "1.2.3", parse( "foo (1.2.3-1) unstable; urgency=low", TRAILER ).getUpstreamVersion() );
+        assertEquals( "1.2.3", parse( "foo (2:1.2.3-1) unstable; urgency=low", TRAILER ).getUpstreamVersion() );
+        assertEquals( "1.2-rc1", parse( "foo (1.2-rc1-0ubuntu1) unstable; urgency=low", TRAILER ).getUpstreamVersion() );
+        // Native packages have no Debian revision
+        assertEquals( "1.2.3", parse( "foo (1.2.3) unstable; urgency=low", TRAILER ).getUpstreamVersion() );
+        assertEquals( "1.2.3", parse( "foo (1:1.2.3) unstable; urgency=low", TRAILER ).getUpstreamVersion() );
+    }
+
+    @Test
+    void readsChangelogsThatAreNotUtf8() throws Exception {
+        Path changelog = m_dir.resolve( "changelog" );
+        Files.write( changelog, String.join( "\n",
+                "foo (1.0-1) unstable; urgency=low",
+                "",
+                "  * Fix the handling of \u00e9.",
+                "",
+                " -- Ren\u00e9 Doe <rene@example.com>  Mon, 01 Jan 2024 12:00:00 +0000",
+                "" ).getBytes( StandardCharsets.ISO_8859_1 ) );
+
+        ChangelogParser.ChangelogEntry entry = new ChangelogParser().invoke( changelog.toFile(), null );
+
+        assertNotNull( entry );
+        assertEquals( "1.0-1", entry.getVersion() );
+        assertEquals( "Ren\uFFFD Doe <rene@example.com>", entry.getMaintainer() );
+    }
+
+    @Test
+    void returnsNullWithoutAChangelog() throws Exception {
+        assertNull( new ChangelogParser().invoke( m_dir.resolve( "missing" ).toFile(), null ) );
+    }
+
+    @Test
+    void parsesDpkgOutput() throws IOException {
+        String output = String.join( "\n",
+                "Source: foo",
+                "Version: 1:1.0-1",
+                "Distribution: unstable",
+                "Urgency: medium",
+                "Maintainer: Jane Doe <jane@example.com>",
+                "Timestamp: 1704110400",
+                "Date: Mon, 01 Jan 2024 12:00:00 +0000",
+                "Changes: ",
+                " foo (1:1.0-1) unstable; urgency=medium",
+                " .",
+                "   * Source: not a field",
+                "" );
+
+        ChangelogParser.ChangelogEntry entry = ChangelogParser.parseDpkgOutput(
+                new ByteArrayInputStream( output.getBytes( StandardCharsets.UTF_8 ) ) );
+
+        assertNotNull( entry );
+        assertEquals( "foo", entry.getSource() );
+        assertEquals( "1:1.0-1", entry.getVersion() );
+        assertEquals( "1.0", entry.getUpstreamVersion() );
+        assertEquals( "unstable", entry.getDistribution() );
+        assertEquals( "medium", entry.getUrgency() );
+        assertEquals( "Jane Doe <jane@example.com>", entry.getMaintainer() );
+    }
+
+    @Test
+    void needsAllDpkgFields() throws IOException {
+        String output = "Source: foo\nVersion: 1.0-1\nDistribution: unstable\n";
+
+        assertNull( ChangelogParser.parseDpkgOutput(
+                new ByteArrayInputStream( output.getBytes( StandardCharsets.UTF_8 ) ) ) );
+    }
+}
@@ -0,0 +1,119 @@
+package com.rm5248.debianpbuilder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Formats versions at a fixed time, 2024-02-29 13:05:09 UTC.
+ */
+class PackageVersionFormatterTest {
+
+    private static final long NOW = 1709211909000L;
+
+    private final Map<String,String> m_env = new HashMap<>();
+
+    @BeforeEach
+    void setUp(){
+        m_env.put( "GIT_COMMIT", "0123456789abcdef0123456789abcdef01234567" );
+        m_env.put( "GIT_BRANCH", "origin/feature/foo_bar" );
+    }
+
+    private String format( String format ){
+        return PackageVersionFormatter.formatPackageVersion( format, m_env, 42, NOW );
+    }
+
+    @Test
+    void formatsTheTimeInUtc(){
+        assertEquals( "20240229130509", format( "%utc%" ) );
+        assertEquals( "1709211909", format( "%epoch%" ) );
+    }
+
+    @Test
+    void formatsTheLocalTime(){
+        long local = NOW + TimeZone.getDefault().getOffset( NOW );
+
+        assertEquals( PackageVersionFormatter.formatPackageVersion( "%utc%", m_env, 42, local ),
+                format( "YYYYMMddHHmmss" ) );
+    }
+
+    @Test
+    void formatsDatesBeforeTheEpoch(){
+        assertEquals( "19691231235959",
+                PackageVersionFormatter.formatPackageVersion( "%utc%", m_env, 1, -1000 ) );
+    }
+
+    @Test
+    void formatsGitRevisions(){
+        assertEquals( "~git0123456.42", format( "~%rev%.%build%" ) );
+        assertEquals( "0123456789abcdef0123456789abcdef01234567", format( "%commit%" ) );
+        assertEquals( "0123456", format( "%shortcommit%" ) );
+    }
+
+    @Test
+    void prefersSvnRevisions(){
+        m_env.put( "SVN_REVISION", "1234" );
+
+        assertEquals( "svn1234 1234 1234", format( "%rev% %commit% %shortcommit%" ) );
+    }
+
+    @Test
+    void formatsMissingRevisions(){
+        m_env.clear();
+
+        assertEquals( "NOREV NOREV NOREV NOBRANCH", format( "%rev% %commit% %shortcommit% %branch%" ) );
+    }
+
+    @Test
+    void removesTheRemoteFromTheBranch(){
+        assertEquals( "feature.foo.bar", format( "%branch%" ) );
+
+        m_env.put( "GIT_REMOTE", "upstream" );
+        assertEquals( "origin.feature.foo.bar", format( "%branch%" ) );
+    }
+
+    @Test
+    void copiesQuotedText(){
+        assertEquals( "YYYY-42-%build%", format( "'YYYY'-%build%-'%build%'" ) );
+        assertEquals( "MM", format( "'MM" ) );
+    }
+
+    /**
+     * Once the format has been parsed, formatting should only allocate the
+     * resulting string.
+     */
+    @Test
+    void onlyAllocatesTheResult(){
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if( !(bean instanceof com.sun.management.ThreadMXBean) ){
+            return;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)bean;
+        if( !threads.isThreadAllocatedMemorySupported() ){
+            return;
+        }
+        threads.setThreadAllocatedMemoryEnabled( true );
+
+        String format = "%utc%~git%shortcommit%.%branch%.%build%";
+        int iterations = 20000;
+        for( int x = 0; x < iterations; x++ ){
+            format( format );
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes( threadId );
+        for( int x = 0; x < iterations; x++ ){
+            format( format );
+        }
+        long perCall = (threads.getThreadAllocatedBytes( threadId ) - before) / iterations;
+
+        // A String of this length is about 80 bytes
+        assertTrue( perCall < 200, "Formatting allocated " + perCall + " bytes per call" );
+    }
+}
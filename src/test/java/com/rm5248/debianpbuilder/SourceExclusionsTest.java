@@ -0,0 +1,145 @@
+package com.rm5248.debianpbuilder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the options that are given to dpkg-source.  The regexes are matched
+ * with Java, which escapes the same way as Perl does for everything that
+ * globToRegex makes.
+ */
+class SourceExclusionsTest {
+
+    private static final String SOURCE_DIR = "foo-1.0";
+
+    private static SourceExclusions create( String patterns ) throws IOException, InterruptedException {
+        return SourceExclusions.create( false, patterns, null, null, null );
+    }
+
+    private static Pattern getDiffIgnore( List<String> options, int index ){
+        String option = options.get( index );
+        assertTrue( option.startsWith( "--extend-diff-ignore=" ), option );
+        return Pattern.compile( option.substring( "--extend-diff-ignore=".length() ) );
+    }
+
+    @Test
+    void convertsGlobs(){
+        assertEquals( "[^/]*\\.o", SourceExclusions.globToRegex( "*.o" ) );
+        assertEquals( "a[^/]c", SourceExclusions.globToRegex( "a?c" ) );
+        assertEquals( "debian/tmp", SourceExclusions.globToRegex( "debian/tmp" ) );
+        assertEquals( "obj-[^/]*-linux_gnu", SourceExclusions.globToRegex( "obj-*-linux_gnu" ) );
+    }
+
+    @Test
+    void escapesEverythingElse(){
+        assertEquals( "libc\\+\\+\\.so", SourceExclusions.globToRegex( "libc++.so" ) );
+        assertEquals( "\\(x\\)\\{1\\}\\$\\^\\|", SourceExclusions.globToRegex( "(x){1}$^|" ) );
+        assertEquals( "a\\ b", SourceExclusions.globToRegex( "a b" ) );
+    }
+
+    @Test
+    void escapesEscapedGlobCharactersForPerl(){
+        String regex = SourceExclusions.globToRegex( "a\\*b\\?c\\[d\\]\\\\e" );
+
+        assertEquals( "a\\*b\\?c\\[d\\]\\\\e", regex );
+        assertFalse( regex.contains( "\\Q" ) );
+        assertTrue( Pattern.compile( regex ).matcher( "a*b?c[d]\\e" ).matches() );
+        assertFalse( Pattern.compile( regex ).matcher( "axbycdd\\e" ).matches() );
+    }
+
+    @Test
+    void matchesUnanchoredPatternsAnywhere() throws Exception {
+        List<String> options = create( "*.o" ).getDpkgSourceOptions( SOURCE_DIR );
+
+        assertEquals( Arrays.asList( "--tar-ignore=*.o", "--extend-diff-ignore=(?:^|/)[^/]*\\.o(?:/|$)" ), options );
+        Pattern regex = getDiffIgnore( options, 1 );
+        assertTrue( regex.matcher( "foo.o" ).find() );
+        assertTrue( regex.matcher( "src/foo.o" ).find() );
+        assertTrue( regex.matcher( "src/foo.o/bar" ).find() );
+        assertFalse( regex.matcher( "src/foo.orig" ).find() );
+        assertFalse( regex.matcher( "src/foo_o" ).find() );
+    }
+
+    @Test
+    void anchorsPatternsWithASlash() throws Exception {
+        List<String> options = create( "docs/build" ).getDpkgSourceOptions( SOURCE_DIR );
+
+        assertEquals( Arrays.asList( "--tar-ignore=foo-1.0/docs/build", "--extend-diff-ignore=^docs/build(?:/|$)" ),
+                options );
+        Pattern regex = getDiffIgnore( options, 1 );
+        assertTrue( regex.matcher( "docs/build" ).find() );
+        assertTrue( regex.matcher( "docs/build/index.html" ).find() );
+        assertFalse( regex.matcher( "src/docs/build" ).find() );
+        assertFalse( regex.matcher( "docs/builder" ).find() );
+    }
+
+    @Test
+    void splitsAndCleansUpPatterns() throws Exception {
+        List<String> options = create( " /out/ ,*.o\n*.o  docs/build/ " ).getDpkgSourceOptions( SOURCE_DIR );
+
+        assertEquals( Arrays.asList(
+                "--tar-ignore=out",
+                "--extend-diff-ignore=(?:^|/)out(?:/|$)",
+                "--tar-ignore=*.o",
+                "--extend-diff-ignore=(?:^|/)[^/]*\\.o(?:/|$)",
+                "--tar-ignore=foo-1.0/docs/build",
+                "--extend-diff-ignore=^docs/build(?:/|$)" ),
+                options );
+    }
+
+    @Test
+    void hasNoOptionsWithoutExclusions() throws Exception {
+        assertTrue( create( null ).isEmpty() );
+        assertTrue( create( " , " ).isEmpty() );
+        assertEquals( Collections.emptyList(), create( "" ).getDpkgSourceOptions( SOURCE_DIR ) );
+    }
+
+    @Test
+    void excludesGitIgnoredPathsLiterally() throws Exception {
+        SourceExclusions exclusions = create( null );
+        exclusions.addGitIgnored( "build/\0weird [1]*?.txt\0src/a\\b\0", null );
+
+        List<String> options = exclusions.getDpkgSourceOptions( SOURCE_DIR );
+        assertEquals( 3, exclusions.getIgnoredCount() );
+        assertEquals( Arrays.asList(
+                "--tar-ignore=foo-1.0/build",
+                "--extend-diff-ignore=^build(?:/|$)",
+                "--tar-ignore=foo-1.0/weird \\[1\\]\\*\\?.txt",
+                "--extend-diff-ignore=^weird\\ \\[1\\]\\*\\?\\.txt(?:/|$)",
+                "--tar-ignore=foo-1.0/src/a\\\\b",
+                "--extend-diff-ignore=^src/a\\\\b(?:/|$)" ),
+                options );
+
+        Pattern weird = getDiffIgnore( options, 3 );
+        assertTrue( weird.matcher( "weird [1]*?.txt" ).find() );
+        assertFalse( weird.matcher( "weird 1ab.txt" ).find() );
+        assertFalse( weird.matcher( "dir/weird [1]*?.txt" ).find() );
+        assertTrue( getDiffIgnore( options, 5 ).matcher( "src/a\\b" ).find() );
+    }
+
+    @Test
+    void limitsTheNumberOfGitIgnoredPaths() throws Exception {
+        StringBuilder output = new StringBuilder();
+        for( int x = 0; x < 1005; x++ ){
+            output.append( "file" ).append( x ).append( '\0' );
+        }
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+        SourceExclusions exclusions = create( null );
+        exclusions.addGitIgnored( output.toString(), new PrintStream( log, true, "UTF-8" ) );
+
+        assertEquals( 1000, exclusions.getIgnoredCount() );
+        assertTrue( new String( log.toByteArray(), StandardCharsets.UTF_8 ).contains( "more than 1000" ) );
+    }
+}